@@ -0,0 +1,91 @@
+package com.danil.chartographer.benchmark;
+
+import com.danil.chartographer.service.BmpImageService;
+import com.danil.chartographer.service.ImageService;
+import com.danil.chartographer.service.MappedImageService;
+import com.danil.chartographer.service.TiledImageService;
+import org.springframework.boot.DefaultApplicationArguments;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.stream.Stream;
+
+/**
+ * Helpers shared by benchmarks
+ */
+final class Benchmarks {
+
+  private Benchmarks() {
+  }
+
+  /**
+   * Returns a directory for chartas created by benchmarks, taken from {@code benchmark.dir}
+   * system property or created in the temporary directory
+   */
+  static String storageDirectory() throws IOException {
+    String dir = System.getProperty("benchmark.dir");
+    if (dir != null) {
+      Files.createDirectories(Path.of(dir));
+      return Files.createTempDirectory(Path.of(dir), "chartographer-benchmark").toString();
+    }
+    return Files.createTempDirectory("chartographer-benchmark").toString();
+  }
+
+  /**
+   * Creates a service of given storage without the cache of rows, so that storage itself is
+   * measured
+   *
+   * @param storage one of {@code bmp}, {@code mapped}, {@code tiled} or {@code deflate}, which is
+   *                tiled storage with compressed tiles
+   * @param dir     directory for chartas
+   */
+  static ImageService service(String storage, String dir) {
+    DefaultApplicationArguments args = new DefaultApplicationArguments(dir);
+    switch (storage) {
+      case "bmp":
+        return new BmpImageService(args);
+      case "mapped":
+        return new MappedImageService(args);
+      case "tiled":
+        return new TiledImageService(args, 512, "raw");
+      case "deflate":
+        return new TiledImageService(args, 512, "deflate");
+      default:
+        throw new IllegalArgumentException("Unknown storage " + storage);
+    }
+  }
+
+  /**
+   * Parses sizes written as {@code WIDTHxHEIGHT}
+   */
+  static int[] size(String size) {
+    String[] parts = size.split("x");
+    return new int[]{Integer.parseInt(parts[0]), Integer.parseInt(parts[1])};
+  }
+
+  static BufferedImage randomImage(int width, int height, int type) {
+    BufferedImage image = new BufferedImage(width, height, type);
+    Random random = new Random(42);
+    int[] row = new int[width];
+    for (int j = 0; j < height; ++j) {
+      for (int i = 0; i < width; ++i) {
+        row[i] = random.nextInt();
+      }
+      image.setRGB(0, j, width, 1, row, 0, width);
+    }
+    return image;
+  }
+
+  static void deleteDirectory(String dir) throws IOException {
+    try (Stream<Path> files = Files.walk(Path.of(dir))) {
+      for (Path file : (Iterable<Path>) files.sorted(Comparator.reverseOrder())::iterator) {
+        Files.delete(file);
+      }
+    }
+  }
+
+}
@@ -0,0 +1,77 @@
+package com.danil.chartographer.benchmark;
+
+import com.danil.chartographer.service.ImageService;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares copying of a fragment into a charta by {@link ImageService#copy} with the former
+ * per-pixel {@code getRGB}/{@code setRGB} copy
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CopyBenchmark {
+
+  @Param({"50", "500", "5000"})
+  private int fragmentSize;
+
+  @Param({"TYPE_3BYTE_BGR", "TYPE_INT_RGB"})
+  private String fragmentType;
+
+  private String dir;
+  private ImageService service;
+  private BufferedImage fragment;
+  private BufferedImage charta;
+
+  @Setup
+  public void setUp() throws Exception {
+    dir = Benchmarks.storageDirectory();
+    service = Benchmarks.service("bmp", dir);
+    int type = BufferedImage.class.getField(fragmentType).getInt(null);
+    fragment = Benchmarks.randomImage(fragmentSize, fragmentSize, type);
+    charta = new BufferedImage(fragmentSize * 2, fragmentSize * 2, BufferedImage.TYPE_3BYTE_BGR);
+  }
+
+  @TearDown
+  public void tearDown() throws IOException {
+    Benchmarks.deleteDirectory(dir);
+  }
+
+  @Benchmark
+  public BufferedImage rowCopy() {
+    service.copy(0, 0, fragmentSize / 2, fragmentSize / 2, fragmentSize, fragmentSize, fragment,
+                 charta);
+    return charta;
+  }
+
+  @Benchmark
+  public BufferedImage pixelCopy() {
+    int x1 = fragmentSize / 2;
+    int y1 = fragmentSize / 2;
+    for (int i = 0; i < fragmentSize; ++i) {
+      for (int j = 0; j < fragmentSize; ++j) {
+        charta.setRGB(x1 + i, y1 + j, fragment.getRGB(i, j));
+      }
+    }
+    return charta;
+  }
+
+}
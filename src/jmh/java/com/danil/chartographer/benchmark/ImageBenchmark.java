@@ -0,0 +1,81 @@
+package com.danil.chartographer.benchmark;
+
+import com.danil.chartographer.service.ImageService;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures operations on whole images: reading and saving a charta, decoding and encoding a BMP.
+ * Chartas of {@code 20000x50000} take about 3 GB of heap, run them with {@code -p
+ * chartaSize=20000x50000 -jvmArgsAppend -Xmx8g} on a machine that has enough memory.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 3, time = 5)
+@Fork(1)
+public class ImageBenchmark {
+
+  @Param({"bmp", "tiled"})
+  private String storage;
+
+  @Param({"1000x1000", "5000x5000"})
+  private String chartaSize;
+
+  private String dir;
+  private ImageService service;
+  private String id;
+  private BufferedImage image;
+  private byte[] encoded;
+
+  @Setup
+  public void setUp() throws IOException {
+    dir = Benchmarks.storageDirectory();
+    service = Benchmarks.service(storage, dir);
+    int[] size = Benchmarks.size(chartaSize);
+    image = Benchmarks.randomImage(size[0], size[1], BufferedImage.TYPE_3BYTE_BGR);
+    id = "charta";
+    service.save(image, id);
+    encoded = service.encryptImage(image);
+  }
+
+  @TearDown
+  public void tearDown() throws IOException {
+    Benchmarks.deleteDirectory(dir);
+  }
+
+  @Benchmark
+  public BufferedImage getImage() throws IOException {
+    return service.getImage(id);
+  }
+
+  @Benchmark
+  public void save() throws IOException {
+    service.save(image, id);
+  }
+
+  @Benchmark
+  public BufferedImage decryptImage() throws IOException {
+    return service.decryptImage(encoded);
+  }
+
+  @Benchmark
+  public byte[] encryptImage() throws IOException {
+    return service.encryptImage(image);
+  }
+}
@@ -0,0 +1,119 @@
+package com.danil.chartographer.benchmark;
+
+import com.danil.chartographer.service.ImageService;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures fragment operations of every storage on chartas of different sizes. A charta of given
+ * size is created once per trial, fragments are read and written at its center. Run with {@code
+ * -prof gc} to see the allocation rate.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class StorageBenchmark {
+
+  @Param({"bmp", "mapped", "tiled", "deflate"})
+  private String storage;
+
+  @Param({"1000x1000", "5000x5000", "20000x50000"})
+  private String chartaSize;
+
+  @Param({"50", "500", "5000"})
+  private int fragmentSize;
+
+  private String dir;
+  private ImageService service;
+  private String id;
+  private int x;
+  private int y;
+  private BufferedImage fragment;
+  private byte[] encoded;
+  private final List<String> created = new ArrayList<>();
+
+  @Setup
+  public void setUp() throws IOException {
+    dir = Benchmarks.storageDirectory();
+    service = Benchmarks.service(storage, dir);
+    int[] size = Benchmarks.size(chartaSize);
+    id = service.create(size[0], size[1]);
+    x = Math.max(0, (size[0] - fragmentSize) / 2);
+    y = Math.max(0, (size[1] - fragmentSize) / 2);
+    fragment = Benchmarks.randomImage(fragmentSize, fragmentSize, BufferedImage.TYPE_3BYTE_BGR);
+    encoded = service.encryptImage(fragment);
+  }
+
+  @TearDown(Level.Iteration)
+  public void removeCreated() throws IOException {
+    for (String name : created) {
+      service.removeImage(name);
+    }
+    created.clear();
+  }
+
+  @TearDown
+  public void tearDown() throws IOException {
+    Benchmarks.deleteDirectory(dir);
+  }
+
+  @Benchmark
+  public String create() throws IOException {
+    int[] size = Benchmarks.size(chartaSize);
+    String name = service.create(size[0], size[1]);
+    created.add(name);
+    return name;
+  }
+
+  @Benchmark
+  public BufferedImage getFragment() throws IOException {
+    return service.getFragment(id, x, y, fragmentSize, fragmentSize);
+  }
+
+  @Benchmark
+  public void writeFragment() throws IOException {
+    service.writeFragment(id, x, y, fragmentSize, fragmentSize, OutputStream.nullOutputStream());
+  }
+
+  @Benchmark
+  public void saveFragment() throws IOException {
+    service.saveFragment(id, x, y, fragment);
+  }
+
+  @Benchmark
+  public void saveEncodedFragment() throws IOException {
+    service.saveFragment(id, x, y, fragmentSize, fragmentSize,
+                         new ByteArrayInputStream(encoded));
+  }
+
+  /**
+   * Encodes a fragment the way the former GET endpoint did, for comparison with {@link
+   * #writeFragment()}
+   */
+  @Benchmark
+  public byte[] getAndEncryptFragment() throws IOException {
+    return service.encryptImage(service.getFragment(id, x, y, fragmentSize, fragmentSize));
+  }
+}
@@ -1,7 +1,14 @@
 package com.danil.chartographer;
 
+import com.danil.chartographer.service.FragmentJournal;
+import com.danil.chartographer.service.ImageService;
+import org.springframework.beans.factory.SmartInitializingSingleton;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
+import org.springframework.context.annotation.Bean;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
 
 @SpringBootApplication
 public class ChartographerApplication {
@@ -14,4 +21,23 @@ public class ChartographerApplication {
     SpringApplication.run(ChartographerApplication.class, args);
   }
 
+  /**
+   * Loads the index of chartas and replays writes left by a crash before the server starts
+   * accepting requests. Only the saved index is read, files of chartas are verified in the
+   * background, so the server gets ready in time independent of the number of chartas. Logged
+   * writes go first, fragments written behind are newer than all of them.
+   */
+  @Bean
+  public SmartInitializingSingleton recovery(ImageService imageService, FragmentJournal journal) {
+    return () -> {
+      try {
+        imageService.loadIndex();
+        imageService.recover();
+        journal.recover();
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    };
+  }
+
 }
@@ -0,0 +1,71 @@
+package com.danil.chartographer.config;
+
+import com.danil.chartographer.service.AdmissionLimiter;
+import com.danil.chartographer.service.FragmentJournal;
+import com.danil.chartographer.service.RowCache;
+import com.danil.chartographer.service.WriteAheadLog;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+/**
+ * Publishes statistics the components of the service already keep as meters. Timers of requests
+ * come from Spring Boot ({@code http.server.requests}), phases of charta operations from
+ * {@link com.danil.chartographer.service.ChartaMetrics}. Everything is exposed by the actuator,
+ * in Prometheus format at {@code /actuator/prometheus}.
+ */
+@Configuration
+public class MetricsConfig {
+
+  @Bean
+  public MeterBinder rowCacheMetrics(RowCache cache) {
+    return registry -> {
+      FunctionCounter.builder("chartographer.cache.requests", cache, RowCache::getHits)
+              .tag("result", "hit")
+              .description("Rows served by the cache of rows")
+              .register(registry);
+      FunctionCounter.builder("chartographer.cache.requests", cache, RowCache::getMisses)
+              .tag("result", "miss")
+              .description("Rows read from storage into the cache of rows")
+              .register(registry);
+      FunctionCounter.builder("chartographer.cache.evictions", cache, RowCache::getEvictions)
+              .register(registry);
+      FunctionCounter.builder("chartographer.cache.write-backs", cache, RowCache::getWriteBacks)
+              .register(registry);
+      Gauge.builder("chartographer.cache.size", cache, RowCache::getSize)
+              .baseUnit("bytes")
+              .register(registry);
+    };
+  }
+
+  @Bean
+  public MeterBinder admissionMetrics(AdmissionLimiter limiter) {
+    return registry -> {
+      Gauge.builder("chartographer.admission.in-flight", limiter,
+                    AdmissionLimiter::getBytesInFlight)
+              .baseUnit("bytes")
+              .description("Bytes of fragments being read or written")
+              .register(registry);
+      FunctionCounter.builder("chartographer.admission.rejected", limiter,
+                              AdmissionLimiter::getRejected)
+              .description("Requests rejected because too many bytes were in flight")
+              .register(registry);
+    };
+  }
+
+  @Bean
+  public MeterBinder journalMetrics(FragmentJournal journal, WriteAheadLog wal) {
+    return registry -> {
+      Gauge.builder("chartographer.journal.pending", journal, FragmentJournal::getPendingBytes)
+              .baseUnit("bytes")
+              .description("Bytes of journaled fragments not merged into chartas yet")
+              .register(registry);
+      FunctionCounter.builder("chartographer.wal.commits", wal, WriteAheadLog::getCommits)
+              .register(registry);
+      FunctionCounter.builder("chartographer.wal.syncs", wal, WriteAheadLog::getSyncs)
+              .register(registry);
+    };
+  }
+}
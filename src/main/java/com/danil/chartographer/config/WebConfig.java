@@ -0,0 +1,100 @@
+package com.danil.chartographer.config;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.core.task.AsyncTaskExecutor;
+import org.springframework.core.task.support.TaskExecutorAdapter;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+import org.springframework.web.servlet.config.annotation.AsyncSupportConfigurer;
+import org.springframework.web.servlet.config.annotation.WebMvcConfigurer;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Runs I/O of charta requests on a dedicated executor instead of request threads of the server. A
+ * few slow reads of large fragments then occupy threads of this executor only, while cheap
+ * requests are still served by the server.
+ *
+ * <p>The executor is a fixed pool of {@code chartographer.io.threads} platform threads with a
+ * queue of {@code chartographer.io.queue} requests. The pool has as many threads as the server by
+ * default, so it never runs fewer requests at a time than the server would. When {@code
+ * chartographer.io.virtual-threads} is set and the runtime supports virtual threads, every request
+ * gets its own virtual thread instead, so the number of blocked requests is limited only by the
+ * memory they take.
+ */
+@Slf4j
+@Configuration
+public class WebConfig implements WebMvcConfigurer {
+
+  private final int threads;
+  private final int queue;
+  private final boolean virtualThreads;
+  private final long timeout;
+
+  /**
+   * @param threads        number of threads of the pool
+   * @param queue          number of requests waiting for a thread of the pool
+   * @param virtualThreads whether to run requests on virtual threads if they are supported
+   * @param timeout        time given to a request to complete in milliseconds
+   */
+  public WebConfig(@Value("${chartographer.io.threads:${server.tomcat.threads.max:200}}")
+                   int threads,
+                   @Value("${chartographer.io.queue:1024}") int queue,
+                   @Value("${chartographer.io.virtual-threads:false}") boolean virtualThreads,
+                   @Value("${chartographer.io.timeout:600000}") long timeout) {
+    this.threads = threads;
+    this.queue = queue;
+    this.virtualThreads = virtualThreads;
+    this.timeout = timeout;
+  }
+
+  @Bean
+  public AsyncTaskExecutor ioExecutor() {
+    if (virtualThreads) {
+      try {
+        ExecutorService executor = (ExecutorService) Executors.class
+                .getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        return new VirtualThreadExecutor(executor);
+      } catch (ReflectiveOperationException e) {
+        log.warn("Virtual threads are not supported by Java {}, using a pool of {} threads",
+                 Runtime.version().feature(), threads);
+      }
+    }
+    ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
+    executor.setCorePoolSize(threads);
+    executor.setMaxPoolSize(threads);
+    executor.setQueueCapacity(queue);
+    executor.setThreadNamePrefix("charta-io-");
+    executor.initialize();
+    return executor;
+  }
+
+  @Override
+  public void configureAsyncSupport(AsyncSupportConfigurer configurer) {
+    configurer.setTaskExecutor(ioExecutor());
+    configurer.setDefaultTimeout(timeout);
+  }
+
+  /**
+   * Executor starting a virtual thread for every task, shut down together with the context
+   */
+  private static class VirtualThreadExecutor extends TaskExecutorAdapter
+          implements DisposableBean {
+
+    private final ExecutorService executor;
+
+    VirtualThreadExecutor(ExecutorService executor) {
+      super(executor);
+      this.executor = executor;
+    }
+
+    @Override
+    public void destroy() {
+      executor.shutdown();
+    }
+  }
+}
@@ -1,34 +1,89 @@
 package com.danil.chartographer.controller;
 
+import com.danil.chartographer.domain.ChartaVersion;
+import com.danil.chartographer.domain.Fragment;
+import com.danil.chartographer.domain.FragmentStatus;
 import com.danil.chartographer.domain.Response;
+import com.danil.chartographer.exception.ImageFormatException;
 import com.danil.chartographer.exception.NoSuchIdException;
+import com.danil.chartographer.exception.OverloadException;
 import com.danil.chartographer.exception.SizeException;
+import com.danil.chartographer.service.AdmissionLimiter;
+import com.danil.chartographer.service.BmpHeader;
+import com.danil.chartographer.service.FragmentJournal;
 import com.danil.chartographer.service.ImageService;
+import com.danil.chartographer.service.PixelBuffer;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.core.task.TaskRejectedException;
+import org.springframework.http.CacheControl;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpRange;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.util.MimeTypeUtils;
 import org.springframework.web.bind.annotation.DeleteMapping;
 import org.springframework.web.bind.annotation.ExceptionHandler;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.PostMapping;
-import org.springframework.web.bind.annotation.RequestBody;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.ResponseStatus;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
-import java.awt.image.BufferedImage;
+import javax.servlet.http.HttpServletRequest;
+import java.awt.Dimension;
+import java.awt.Rectangle;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
 
+/**
+ * HTTP API of chartas. Endpoints reading or writing pixels return {@link Callable} or {@link
+ * StreamingResponseBody}, so their I/O runs on the executor configured in {@link
+ * com.danil.chartographer.config.WebConfig} and request threads of the server stay free for cheap
+ * requests. Before touching a charta, every such request takes a permit for the bytes it transfers
+ * from {@link AdmissionLimiter}, requests that don't fit are answered with {@code 503}.
+ */
 @Slf4j
 @RestController
 @RequestMapping("/chartas")
 public class ImageController {
 
+  private static final MediaType BMP = MediaType.valueOf("image/bmp");
+  private static final int BATCH_ENTRY_HEADER = 5 * Integer.BYTES;
+  private static final int MAX_FRAGMENTS = 256;
+  /**
+   * Fragments of one multi-fragment request may take no more than a single largest fragment
+   */
+  private static final long MAX_FRAGMENTS_PIXELS = 5000L * 5000L;
+  /**
+   * Fragments of one batch kept in memory may take no more than a file of a single largest
+   * fragment
+   */
+  private static final long MAX_BATCH_BYTES = BmpHeader.maxFileSize(5000, 5000);
+
   private final ImageService imageService;
+  private final FragmentJournal journal;
+  private final AdmissionLimiter limiter;
 
-  public ImageController(ImageService imageService) {
+  public ImageController(ImageService imageService, FragmentJournal journal,
+                         AdmissionLimiter limiter) {
     this.imageService = imageService;
+    this.journal = journal;
+    this.limiter = limiter;
   }
 
   /**
@@ -43,78 +98,444 @@ public class ImageController {
     if (width > 20000 || height > 50000) {
       throw new SizeException("Sizes of charta are too big");
     }
+    if (width <= 0 || height <= 0) {
+      throw new SizeException("Sizes of charta must be positive");
+    }
     return imageService.create(width, height);
   }
 
   /**
    * Receives an image fragment and adds it to an image with given id on the place according to
-   * coordinates
+   * coordinates. The fragment is read from the request body row by row, so it is never kept in
+   * memory as a whole. If fragments are written behind, the fragment is only checked and streamed
+   * into the journal and {@code 202 Accepted} is returned, it becomes visible to reads right away.
    *
    * @param id     id of an image to which fragment should be added
    * @param x      horizontal coordinate to where to put fragment
    * @param y      vertical coordinate to where to put fragment
    * @param width  fragment's width
    * @param height fragment's height
-   * @param data   fragment represented in bytes
+   * @param data   stream of the request body containing the fragment
+   * @return empty response with status showing whether the fragment is already saved, produced
+   *         on the I/O executor
    * @throws IOException if an error occurs during reading or writing
    */
   @PostMapping("/{id}")
-  public void saveFragment(@PathVariable String id,
-                           @RequestParam int x,
-                           @RequestParam int y,
-                           @RequestParam int width,
-                           @RequestParam int height,
-                           @RequestBody byte[] data) throws IOException {
+  public Callable<ResponseEntity<Void>> saveFragment(@PathVariable String id,
+                                                     @RequestParam int x,
+                                                     @RequestParam int y,
+                                                     @RequestParam int width,
+                                                     @RequestParam int height,
+                                                     InputStream data) throws IOException {
+
+    Dimension chartaSize = imageService.getSize(id);
+    checkFragment(chartaSize, x, y, width, height);
+
+    return () -> {
+      try (AdmissionLimiter.Permit permit = limiter.acquire(
+              BmpHeader.of(width, height).getFileSize())) {
+        if (journal.isEnabled()) {
+          journal.append(id, x, y, width, height, data);
+          return ResponseEntity.accepted().<Void>build();
+        }
+        imageService.saveFragment(id, x, y, width, height, data);
+        return ResponseEntity.ok().<Void>build();
+      }
+    };
+  }
+
+  /**
+   * Receives a batch of image fragments and adds them to an image with given id in a single pass.
+   * The request body is a sequence of entries, each made of five big-endian 32-bit integers {@code
+   * x}, {@code y}, {@code width}, {@code height}, {@code length} followed by {@code length} bytes
+   * of the fragment in BMP format. Invalid fragments are skipped and reported in the response.
+   * Fragments are kept in memory until the batch is written, so a batch may have no more than
+   * {@value #MAX_FRAGMENTS} entries, whose fragments take no more than a file of a single largest
+   * fragment, otherwise it is rejected with {@code 400}.
+   *
+   * @param id   id of an image to which fragments should be added
+   * @param data stream of the request body containing fragments
+   * @return statuses of fragments in the order they were sent, produced on the I/O executor
+   * @throws IOException if an error occurs during reading or writing
+   */
+  @PostMapping("/{id}/fragments")
+  public Callable<List<FragmentStatus>> saveFragments(@PathVariable String id, InputStream data,
+                                                      HttpServletRequest request)
+          throws IOException {
+    Dimension chartaSize = imageService.getSize(id);
+    // a batch of unknown length is charged as the largest batch of fragments being kept
+    long length = request.getContentLengthLong();
+    long bytes = length >= 0 ? Math.min(length, MAX_BATCH_BYTES) : MAX_BATCH_BYTES;
+    return () -> {
+      try (AdmissionLimiter.Permit permit = limiter.acquire(bytes)) {
+        return saveFragments(id, chartaSize, data);
+      }
+    };
+  }
 
-    BufferedImage chartas = imageService.getImage(id);
+  private List<FragmentStatus> saveFragments(String id, Dimension chartaSize, InputStream data)
+          throws IOException {
+    List<FragmentStatus> statuses = new ArrayList<>();
+    List<Fragment> valid = readFragments(data, chartaSize, statuses);
+    // fragments written behind must not overwrite ones of this batch later
+    journal.await(id);
 
-    if (x >= chartas.getWidth() || x < 0 || y < 0 || y >= chartas.getHeight()) {
+    List<FragmentStatus> saved = imageService.saveFragments(id, valid);
+    int k = 0;
+    for (int i = 0; i < statuses.size(); ++i) {
+      if (statuses.get(i) == null) {
+        statuses.set(i, new FragmentStatus(i, saved.get(k).isSaved(), saved.get(k).getMessage()));
+        ++k;
+      }
+    }
+    return statuses;
+  }
+
+  private static void checkFragment(Dimension chartaSize, int x, int y, int width, int height) {
+    if (x >= chartaSize.width || x < 0 || y < 0 || y >= chartaSize.height) {
       throw new SizeException("Coordinates of fragment are beyond the charta borders");
     }
     if (width < 0 || height < 0) {
       throw new SizeException("Sizes of fragment are invalid");
     }
+  }
 
-    BufferedImage fragment = imageService.decryptImage(data);
-    if (width != fragment.getWidth() || height != fragment.getHeight()) {
-      throw new SizeException("Provided sizes do not match sizes of fragment");
+  /**
+   * Reads entries of a batch of fragments until the end of the stream. Every entry is checked
+   * against the charta before its fragment is read, fragments that don't fit are skipped without
+   * being kept in memory.
+   *
+   * @param statuses statuses of entries in the order they were read, {@code null} for fragments
+   *                 that are returned
+   * @return fragments to save
+   * @throws SizeException if the batch has too many entries or its fragments are too big
+   */
+  private static List<Fragment> readFragments(InputStream data, Dimension chartaSize,
+                                              List<FragmentStatus> statuses) throws IOException {
+    DataInputStream in = new DataInputStream(data);
+    List<Fragment> fragments = new ArrayList<>();
+    long bytes = 0;
+    byte[] entry = new byte[BATCH_ENTRY_HEADER];
+    int read;
+    while ((read = in.readNBytes(entry, 0, entry.length)) > 0) {
+      if (read < entry.length) {
+        throw new ImageFormatException("Batch of fragments is truncated");
+      }
+      if (statuses.size() == MAX_FRAGMENTS) {
+        throw new SizeException("No more than " + MAX_FRAGMENTS + " fragments can be saved");
+      }
+      DataInputStream header = new DataInputStream(new ByteArrayInputStream(entry));
+      int x = header.readInt();
+      int y = header.readInt();
+      int width = header.readInt();
+      int height = header.readInt();
+      int length = header.readInt();
+      long maxLength = BmpHeader.maxFileSize(Math.max(width, 0), Math.max(height, 0));
+      if (length < 0 || length > maxLength) {
+        throw new ImageFormatException("Length of fragment " + statuses.size() + " is invalid");
+      }
+      try {
+        checkFragment(chartaSize, x, y, width, height);
+      } catch (SizeException e) {
+        statuses.add(new FragmentStatus(statuses.size(), false, e.getMessage()));
+        skip(in, length);
+        continue;
+      }
+      bytes += length;
+      if (bytes > MAX_BATCH_BYTES) {
+        throw new SizeException("Total size of fragments is too big");
+      }
+      byte[] bmp = new byte[length];
+      try {
+        in.readFully(bmp);
+      } catch (EOFException e) {
+        throw new ImageFormatException("Batch of fragments is truncated");
+      }
+      statuses.add(null);
+      fragments.add(new Fragment(x, y, width, height, bmp));
     }
+    return fragments;
+  }
 
-    imageService.copy(0, 0, x, y, width, height, fragment, chartas);
-    imageService.save(chartas, id);
-
+  private static void skip(InputStream in, long length) throws IOException {
+    try {
+      in.skipNBytes(length);
+    } catch (EOFException e) {
+      throw new ImageFormatException("Batch of fragments is truncated");
+    }
   }
 
   /**
    * Returns a fragment with given size from an image with given id starting at (x, y). If sizes are
-   * too big, then the largest possible fragment that fits sizes is returned.
+   * too big, then the largest possible fragment that fits sizes is returned. The fragment is
+   * streamed to the client row by row, so it is never kept in memory as a whole.
    *
-   * @param id     id of an image from where to take fragment
-   * @param x      horizontal coordinate where the fragment begins
-   * @param y      vertical coordinate where the fragment begins
-   * @param width  fragment's width
-   * @param height fragment's height
-   * @return image fragment
-   * @throws IOException if an error occurs during reading or writing
+   * <p>The response carries the version of the charta as its {@code ETag} and the time of the last
+   * write as {@code Last-Modified}. A conditional request for a charta that hasn't changed since
+   * gets {@code 304 Not Modified} without the charta being read.
+   *
+   * <p>A single byte range of the BMP file may be requested with {@code Range}, so that an
+   * interrupted download is resumed. Only rows holding the range are read and the range is sent
+   * with {@code 206 Partial Content}. If {@code If-Range} doesn't match the current version of the
+   * charta, or several ranges are requested, the whole fragment is sent instead.
+   *
+   * @param id      id of an image from where to take fragment
+   * @param x       horizontal coordinate where the fragment begins
+   * @param y       vertical coordinate where the fragment begins
+   * @param width   fragment's width
+   * @param height  fragment's height
+   * @param level   level of downsampling, the fragment is taken from the charta scaled down {@code
+   *                2^level} times and its coordinates and sizes are given in pixels of that level
+   * @param request request carrying validators of a cached fragment and the requested range
+   * @return image fragment or its range
+   * @throws IOException if an error occurs during reading
    */
   @GetMapping(value = "/{id}", produces = "image/bmp")
-  public byte[] getFragment(@PathVariable String id,
-                            @RequestParam int x,
-                            @RequestParam int y,
-                            @RequestParam int width,
-                            @RequestParam int height) throws IOException {
+  public ResponseEntity<StreamingResponseBody> getFragment(@PathVariable String id,
+                                                           @RequestParam int x,
+                                                           @RequestParam int y,
+                                                           @RequestParam int width,
+                                                           @RequestParam int height,
+                                                           @RequestParam(defaultValue = "0")
+                                                                   int level,
+                                                           HttpServletRequest request)
+          throws IOException {
 
     if (width > 5000 || height > 5000 || width < 0 || height < 0) {
       throw new SizeException("Sizes of charta are too big");
     }
 
-    BufferedImage chartas = imageService.getImage(id);
+    // fragments written behind change the charta once merged, so the version isn't final yet
+    ChartaVersion version = journal.hasPending(id) ? null : imageService.getVersion(id);
+    if (version != null && isNotModified(version, request)) {
+      return ResponseEntity.status(HttpStatus.NOT_MODIFIED)
+              .eTag(version.getTag())
+              .lastModified(version.getLastModified())
+              .cacheControl(CacheControl.noCache())
+              .build();
+    }
 
-    BufferedImage result = new BufferedImage(width, height, chartas.getType());
+    // fails before the response is committed if there is no such charta or level
+    imageService.getSize(id, level);
+    // taken before the fragment is read, so it is never newer than the fragment
+    version = imageService.getVersion(id);
 
-    imageService.copy(x, y, 0, 0, width, height, chartas, result);
+    long size = BmpHeader.of(width, height).getFileSize();
+    // a range is resumed only if the fragment is known not to change before it is read
+    HttpRange range = getRange(journal.hasPending(id) ? null : version, request);
+    long from = 0;
+    long to = size;
+    if (range != null) {
+      try {
+        from = range.getRangeStart(size);
+        to = range.getRangeEnd(size) + 1;
+      } catch (IllegalArgumentException e) {
+        from = size;
+      }
+      if (from >= size || from >= to) {
+        return ResponseEntity.status(HttpStatus.REQUESTED_RANGE_NOT_SATISFIABLE)
+                .header(HttpHeaders.CONTENT_RANGE, "bytes */" + size)
+                .build();
+      }
+    }
 
-    return imageService.encryptImage(result);
+    ResponseEntity.BodyBuilder response = range == null
+            ? ResponseEntity.ok()
+            : ResponseEntity.status(HttpStatus.PARTIAL_CONTENT)
+                    .header(HttpHeaders.CONTENT_RANGE,
+                            "bytes " + from + "-" + (to - 1) + "/" + size);
+    response.cacheControl(CacheControl.noCache()).header(HttpHeaders.ACCEPT_RANGES, "bytes");
+    if (version != null) {
+      response.eTag(version.getTag()).lastModified(version.getLastModified());
+    }
+    long first = from;
+    long end = to;
+    return response
+            .contentType(BMP)
+            .contentLength(end - first)
+            .body(out -> {
+              try (AdmissionLimiter.Permit permit = limiter.acquire(end - first)) {
+                journal.await(id);
+                if (range == null) {
+                  imageService.writeFragment(id, level, x, y, width, height, out);
+                } else {
+                  imageService.writeFragment(id, level, x, y, width, height, first, end, out);
+                }
+              }
+            });
+  }
+
+  /**
+   * Returns the single range of the fragment requested or {@code null} if the whole fragment
+   * should be sent. A range is ignored if it is malformed, if several ranges are requested or if
+   * {@code If-Range} doesn't match the version of the charta.
+   */
+  private static HttpRange getRange(ChartaVersion version, HttpServletRequest request) {
+    String header = request.getHeader(HttpHeaders.RANGE);
+    if (header == null || !isRangeValid(version, request)) {
+      return null;
+    }
+    List<HttpRange> ranges;
+    try {
+      ranges = HttpRange.parseRanges(header);
+    } catch (IllegalArgumentException e) {
+      return null;
+    }
+    return ranges.size() == 1 ? ranges.get(0) : null;
+  }
+
+  /**
+   * Returns whether a range of the fragment may be sent. {@code If-Range} holds either an entity
+   * tag, which must match the version strongly, or a date, which must match the time of the last
+   * write to the second.
+   */
+  private static boolean isRangeValid(ChartaVersion version, HttpServletRequest request) {
+    String ifRange = request.getHeader(HttpHeaders.IF_RANGE);
+    if (ifRange == null) {
+      return true;
+    }
+    if (version == null) {
+      return false;
+    }
+    ifRange = ifRange.trim();
+    if (ifRange.startsWith("\"") || ifRange.startsWith("W/")) {
+      return ifRange.equals("\"" + version.getTag() + "\"");
+    }
+    long date;
+    try {
+      date = request.getDateHeader(HttpHeaders.IF_RANGE);
+    } catch (IllegalArgumentException e) {
+      return false;
+    }
+    return date >= 0 && version.getLastModified() / 1000 == date / 1000;
+  }
+
+  /**
+   * Returns whether a cached fragment of the charta is still valid. {@code If-None-Match} takes
+   * precedence over {@code If-Modified-Since}, which has a precision of a second: a date of the
+   * second of the last write is trusted only if the charta wasn't written earlier in that second,
+   * since the fragment may have been cached between the writes.
+   */
+  private static boolean isNotModified(ChartaVersion version, HttpServletRequest request) {
+    String ifNoneMatch = request.getHeader(HttpHeaders.IF_NONE_MATCH);
+    if (ifNoneMatch != null) {
+      String tag = "\"" + version.getTag() + "\"";
+      for (String candidate : ifNoneMatch.split(",")) {
+        candidate = candidate.trim();
+        if (candidate.startsWith("W/")) {
+          candidate = candidate.substring(2);
+        }
+        if (candidate.equals("*") || candidate.equals(tag)) {
+          return true;
+        }
+      }
+      return false;
+    }
+    long ifModifiedSince;
+    try {
+      ifModifiedSince = request.getDateHeader(HttpHeaders.IF_MODIFIED_SINCE);
+    } catch (IllegalArgumentException e) {
+      return false;
+    }
+    if (ifModifiedSince < 0) {
+      return false;
+    }
+    long modified = version.getLastModified() / 1000;
+    long since = ifModifiedSince / 1000;
+    return modified < since
+           || modified == since && version.getPreviousModified() / 1000 < modified;
+  }
+
+  /**
+   * Returns several fragments of an image with given id in a single {@code multipart/mixed}
+   * response, one BMP part per fragment in the requested order. Rows shared by fragments are read
+   * only once. Every part has {@code Content-Location} pointing to the single fragment it holds.
+   *
+   * @param id    id of an image from where to take fragments
+   * @param rects fragments, each given as {@code x,y,width,height}
+   * @return fragments in BMP format
+   * @throws IOException if an error occurs during reading
+   */
+  @GetMapping("/{id}/fragments")
+  public ResponseEntity<StreamingResponseBody> getFragments(
+          @PathVariable String id, @RequestParam("rect") List<String> rects) throws IOException {
+    List<Rectangle> areas = parseAreas(rects);
+    // fails before the response is committed if there is no such charta
+    imageService.getSize(id);
+
+    String boundary = MimeTypeUtils.generateMultipartBoundaryString();
+    MediaType type = new MediaType("multipart", "mixed", Map.of("boundary", boundary));
+    long bytes = areas.stream()
+            .mapToLong(area -> BmpHeader.of(area.width, area.height).getFileSize())
+            .sum();
+    return ResponseEntity.ok().contentType(type).body(out -> {
+      try (AdmissionLimiter.Permit permit = limiter.acquire(bytes)) {
+        writeFragments(id, areas, boundary, out);
+      }
+    });
+  }
+
+  /**
+   * Writes fragments as parts of a {@code multipart/mixed} body separated by given boundary
+   */
+  private void writeFragments(String id, List<Rectangle> areas, String boundary, OutputStream out)
+          throws IOException {
+    journal.await(id);
+    List<PixelBuffer> fragments = imageService.getFragments(id, areas);
+    try {
+      Writer writer = new OutputStreamWriter(out, StandardCharsets.US_ASCII);
+      for (int i = 0; i < fragments.size(); ++i) {
+        Rectangle area = areas.get(i);
+        writer.write("--" + boundary + "\r\n");
+        writer.write("Content-Type: " + BMP + "\r\n");
+        writer.write("Content-Length: " + BmpHeader.of(area.width, area.height).getFileSize()
+                     + "\r\n");
+        writer.write("Content-Location: /chartas/" + id + "?x=" + area.x + "&y=" + area.y
+                     + "&width=" + area.width + "&height=" + area.height + "\r\n\r\n");
+        writer.flush();
+        imageService.encryptImage(fragments.get(i), out);
+        // the fragment is not needed anymore, its memory is reused while others are written
+        fragments.get(i).close();
+        writer.write("\r\n");
+      }
+      writer.write("--" + boundary + "--\r\n");
+      writer.flush();
+    } finally {
+      fragments.forEach(PixelBuffer::close);
+    }
+  }
+
+  private static List<Rectangle> parseAreas(List<String> rects) {
+    if (rects.size() > MAX_FRAGMENTS) {
+      throw new SizeException("No more than " + MAX_FRAGMENTS + " fragments can be requested");
+    }
+    List<Rectangle> areas = new ArrayList<>();
+    long pixels = 0;
+    for (String rect : rects) {
+      String[] parts = rect.split(",");
+      if (parts.length != 4) {
+        throw new SizeException("Fragment must be given as x,y,width,height");
+      }
+      Rectangle area;
+      try {
+        area = new Rectangle(Integer.parseInt(parts[0].trim()), Integer.parseInt(parts[1].trim()),
+                             Integer.parseInt(parts[2].trim()), Integer.parseInt(parts[3].trim()));
+      } catch (NumberFormatException e) {
+        throw new SizeException("Fragment must be given as x,y,width,height");
+      }
+      if (area.width > 5000 || area.height > 5000) {
+        throw new SizeException("Sizes of charta are too big");
+      }
+      if (area.width <= 0 || area.height <= 0) {
+        throw new SizeException("Sizes of fragment must be positive");
+      }
+      pixels += (long) area.width * area.height;
+      areas.add(area);
+    }
+    if (pixels > MAX_FRAGMENTS_PIXELS) {
+      throw new SizeException("Total size of fragments is too big");
+    }
+    return areas;
   }
 
   /**
@@ -125,9 +546,36 @@ public class ImageController {
    */
   @DeleteMapping("/{id}")
   public void removeChart(@PathVariable String id) throws IOException {
+    journal.discard(id);
     imageService.removeImage(id);
   }
 
+  /**
+   * Sheds requests arriving while the I/O executor is saturated, asking clients to retry later
+   */
+  @ExceptionHandler(TaskRejectedException.class)
+  public ResponseEntity<Response> handleTaskRejectedException(TaskRejectedException e) {
+    log.warn("Request is rejected: {}", e.getMessage());
+    return busy("Server is busy, try again later");
+  }
+
+  @ExceptionHandler(OverloadException.class)
+  public ResponseEntity<Response> handleOverloadException(OverloadException e) {
+    log.warn(e.getMessage());
+    return busy(e.getMessage());
+  }
+
+  /**
+   * Builds {@code 503} response. Its content type is set explicitly, since streamed fragments have
+   * already set theirs when they are rejected.
+   */
+  private static ResponseEntity<Response> busy(String message) {
+    return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE)
+            .header(HttpHeaders.RETRY_AFTER, "1")
+            .contentType(MediaType.APPLICATION_JSON)
+            .body(new Response(message));
+  }
+
   @ExceptionHandler(SizeException.class)
   @ResponseStatus(HttpStatus.BAD_REQUEST)
   public Response handleSizeException(SizeException e) {
@@ -135,6 +583,13 @@ public class ImageController {
     return new Response(e.getMessage());
   }
 
+  @ExceptionHandler(ImageFormatException.class)
+  @ResponseStatus(HttpStatus.BAD_REQUEST)
+  public Response handleFormatException(ImageFormatException e) {
+    log.info(e.getMessage());
+    return new Response(e.getMessage());
+  }
+
 
   @ExceptionHandler(NoSuchIdException.class)
   @ResponseStatus(HttpStatus.NOT_FOUND)
@@ -0,0 +1,28 @@
+package com.danil.chartographer.domain;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+
+/**
+ * ChartaVersion identifies the current content of a charta. It changes after every write to the
+ * charta, so it is used as a validator of cached fragments.
+ */
+@Data
+@AllArgsConstructor
+public class ChartaVersion {
+
+  /**
+   * Opaque tag unique to the content among all runs of the service
+   */
+  private String tag;
+  /**
+   * Time of the last write in milliseconds since the epoch
+   */
+  private long lastModified;
+  /**
+   * Time of the write before the last one in milliseconds since the epoch, {@code 0} if it isn't
+   * known
+   */
+  private long previousModified;
+
+}
@@ -0,0 +1,19 @@
+package com.danil.chartographer.domain;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+
+/**
+ * Fragment is an image in BMP format together with the place in a charta where it should be put
+ */
+@Data
+@AllArgsConstructor
+public class Fragment {
+
+  private int x;
+  private int y;
+  private int width;
+  private int height;
+  private byte[] data;
+
+}
@@ -0,0 +1,20 @@
+package com.danil.chartographer.domain;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+
+/**
+ * FragmentStatus is an outcome of saving a single fragment of a batch
+ */
+@Data
+@AllArgsConstructor
+public class FragmentStatus {
+
+  /**
+   * Position of the fragment in the batch
+   */
+  private int index;
+  private boolean saved;
+  private String message;
+
+}
@@ -0,0 +1,13 @@
+package com.danil.chartographer.exception;
+
+/**
+ * {@code ImageFormatException} is thrown when a provided image is malformed or has unsupported
+ * format
+ */
+public class ImageFormatException extends RuntimeException {
+
+  public ImageFormatException(String message) {
+    super(message);
+  }
+
+}
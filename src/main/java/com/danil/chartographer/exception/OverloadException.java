@@ -0,0 +1,12 @@
+package com.danil.chartographer.exception;
+
+/**
+ * {@code OverloadException} is thrown when a request can't be admitted because the server is busy
+ */
+public class OverloadException extends RuntimeException {
+
+  public OverloadException(String message) {
+    super(message);
+  }
+
+}
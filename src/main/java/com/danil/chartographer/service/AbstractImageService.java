@@ -1,24 +1,63 @@
 package com.danil.chartographer.service;
 
+import com.danil.chartographer.domain.ChartaVersion;
+import com.danil.chartographer.domain.Fragment;
+import com.danil.chartographer.domain.FragmentStatus;
+import com.danil.chartographer.exception.ImageFormatException;
 import com.danil.chartographer.exception.NoSuchIdException;
+import com.danil.chartographer.exception.SizeException;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
 import org.apache.tomcat.util.http.fileupload.ByteArrayOutputStream;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.ApplicationArguments;
 
+import javax.annotation.PreDestroy;
 import javax.imageio.ImageIO;
+import java.awt.Dimension;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
 import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
 import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.List;
 import java.util.UUID;
 
+@Slf4j
 public abstract class AbstractImageService implements ImageService {
 
   private final String pathForSaving;
   private final String formatName;
   private final int imageType;
+  private final ChartaLocks locks = new ChartaLocks();
+  private final ChartaVersions versions = new ChartaVersions();
+  private final ChartaIndex index;
+  private volatile Thread verifier;
+  private RowCache cache;
+  private Pyramid pyramid;
+  private WriteAheadLog wal;
+  private ReadCoalescer coalescer;
+  private PixelBufferPool buffers = new PixelBufferPool(0);
+  private ChartaMetrics metrics = new ChartaMetrics();
 
   /**
    * Takes command line arguments and finds there a directory for saving images
@@ -30,16 +69,93 @@ public abstract class AbstractImageService implements ImageService {
     pathForSaving = files.get(0);
     this.imageType = imageType;
     this.formatName = formatName;
+    index = new ChartaIndex(pathForSaving);
+  }
+
+  /**
+   * Sets the cache of rows used for fragment reads and writes. Without it every fragment goes
+   * straight to storage.
+   */
+  @Autowired(required = false)
+  public void setCache(RowCache cache) {
+    this.cache = cache;
+  }
+
+  /**
+   * Sets the maximum number of downsampled levels kept for every image. Levels aren't kept when it
+   * is zero.
+   */
+  @Autowired
+  public void setPyramidLevels(@Value("${chartographer.pyramid.levels:0}") int levels) {
+    pyramid = levels > 0 ? new Pyramid(pathForSaving, levels) : null;
+  }
+
+  /**
+   * Sets the log of fragment writes. Without it writes are durable only once the operating system
+   * writes them back.
+   */
+  @Autowired(required = false)
+  public void setWriteAheadLog(WriteAheadLog wal) {
+    this.wal = wal;
+  }
+
+  /**
+   * Sets the size of the largest fragment whose identical reads running at the same time are
+   * served by a single read. Reads aren't shared when it is zero.
+   */
+  @Autowired
+  public void setCoalescedBytes(@Value("${chartographer.reads.coalesce-max-bytes:0}") long bytes) {
+    coalescer = bytes > 0 ? new ReadCoalescer(bytes) : null;
+  }
+
+  /**
+   * Sets the size of memory of closed pixel buffers kept for reuse
+   */
+  @Autowired
+  public void setBufferPoolBytes(@Value("${chartographer.buffers.pool-bytes:0}") long bytes) {
+    buffers = new PixelBufferPool(bytes);
+  }
+
+  /**
+   * Sets metrics of operations of the service. Without them nothing is published.
+   */
+  @Autowired(required = false)
+  public void setMetrics(ChartaMetrics metrics) {
+    this.metrics = metrics;
+    MeterRegistry registry = metrics.getRegistry();
+    FunctionCounter.builder("chartographer.buffers.allocations", this,
+                            service -> service.buffers.getAllocations())
+            .description("Pixel buffers allocated because none could be reused")
+            .register(registry);
+    FunctionCounter.builder("chartographer.buffers.reuses", this,
+                            service -> service.buffers.getReuses())
+            .description("Pixel buffers served from memory of closed ones")
+            .register(registry);
+    FunctionCounter.builder("chartographer.reads.coalesced", this,
+                            service -> service.coalescer == null ? 0
+                                                                 : service.coalescer.getCoalesced())
+            .description("Fragment reads served by identical reads in flight")
+            .register(registry);
+    Gauge.builder("chartographer.index.unverified", index, i -> i.getUnverified().size())
+            .description("Entries of the index of chartas not verified against their files yet")
+            .register(registry);
   }
 
   public String create(int width, int height) throws IOException {
-    File uploadDir = new File(pathForSaving);
-    if (!uploadDir.exists()) {
-      boolean created = uploadDir.mkdirs();
-      if (!created) {
-        throw new IOException("Unable to create directories for saving images");
-      }
+    String id = createImage(width, height);
+    index.put(id, describe(id, System.currentTimeMillis(), imageFile(id).lastModified()));
+    if (pyramid != null) {
+      pyramid.create(id, width, height);
     }
+    versions.register(id, System::currentTimeMillis);
+    return id;
+  }
+
+  /**
+   * Creates a black image and returns its id
+   */
+  protected String createImage(int width, int height) throws IOException {
+    createUploadDirectory();
 
     BufferedImage image = new BufferedImage(width, height, this.imageType);
     String uuid = UUID.randomUUID().toString();
@@ -50,39 +166,868 @@ public abstract class AbstractImageService implements ImageService {
     return uuid;
   }
 
+  /**
+   * Creates the directory for saving images if it doesn't exist yet
+   *
+   * @throws IOException if the directory can't be created
+   */
+  protected void createUploadDirectory() throws IOException {
+    File uploadDir = new File(pathForSaving);
+    if (!uploadDir.exists()) {
+      boolean created = uploadDir.mkdirs();
+      if (!created) {
+        throw new IOException("Unable to create directories for saving images");
+      }
+      // the index file open so far has been removed together with the directory
+      index.close();
+    }
+  }
+
   public void copy(int x0, int y0, int x1, int y1, int width, int height, BufferedImage source,
                    BufferedImage destination) {
-    int realWidth = Math.min(Math.min(source.getWidth() - x0, width), destination.getWidth() - x1);
-    int realHeight = Math.min(Math.min(source.getHeight() - y0, height),
-                              destination.getHeight() - y1);
+    long start = System.nanoTime();
+    long copied = ImageCopier.copy(x0, y0, x1, y1, width, height, source, destination);
+    metrics.record(ChartaMetrics.COPY, start);
+    metrics.pixelsCopied(copied);
+  }
 
-    for (int i = 0; i < realWidth; ++i) {
-      for (int j = 0; j < realHeight; ++j) {
-        destination.setRGB(x1 + i, y1 + j, source.getRGB(x0 + i, y0 + j));
+  public void save(BufferedImage image, String name) throws IOException {
+    try (ChartaLocks.Lease lease = locks.lockImage(name)) {
+      if (cache != null) {
+        cache.invalidate(name);
       }
+      if (isLogged() && wal.exists(name)) {
+        // logged writes must not be replayed over the new image
+        checkpoint(name);
+      }
+      if (pyramid != null) {
+        pyramid.delete(name);
+      }
+      ChartaIndex.Entry replaced = index.get(name);
+      // sizes of the image change, they are looked up in the new image until it is indexed
+      index.remove(name);
+      writeImage(image, name);
+      index.put(name, describe(name, replaced == null ? System.currentTimeMillis()
+                                                      : replaced.getCreated(),
+                               imageFile(name).lastModified()));
+      buildPyramid(name);
+    } finally {
+      // changes the version and keeps later reads from sharing reads that may have missed the write
+      versions.bump(name);
     }
   }
 
-  public void save(BufferedImage image, String name) throws IOException {
-    ImageIO.write(image, formatName, new File(pathForSaving + "/" + name + "." +
-                                              formatName));
+  /**
+   * Writes the whole image, replacing the stored one. Called while the image is locked
+   * exclusively. The image is written to a temporary file first and then moved in place, so a
+   * crash never leaves it partially written.
+   */
+  protected void writeImage(BufferedImage image, String name) throws IOException {
+    Path file = Path.of(pathForSaving, name + "." + formatName);
+    Path temporary = Path.of(pathForSaving, name + "." + formatName + ".tmp");
+    try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE,
+                                                StandardOpenOption.WRITE,
+                                                StandardOpenOption.TRUNCATE_EXISTING)) {
+      ImageIO.write(image, formatName, Channels.newOutputStream(channel));
+      channel.force(false);
+    }
+    Files.move(temporary, file, StandardCopyOption.ATOMIC_MOVE,
+               StandardCopyOption.REPLACE_EXISTING);
   }
 
   public BufferedImage getImage(String id) throws IOException {
-    File file = getImageFile(id);
-    return ImageIO.read(file);
+    try (ChartaLocks.Lease lease = lock(id, 0, Integer.MAX_VALUE, false)) {
+      if (cache != null) {
+        cache.flush(id);
+      }
+      File file = getImageFile(id);
+      if (!file.exists()) {
+        throw missing(id);
+      }
+      return ImageIO.read(file);
+    }
+  }
+
+  public Dimension getSize(String id) throws IOException {
+    ChartaIndex.Entry entry = getIndexEntry(id);
+    versions.register(id, entry::getModified);
+    return new Dimension(entry.getWidth(), entry.getHeight());
+  }
+
+  /**
+   * Loads entries saved in the index file and verifies them in the background. Entries are served
+   * right away, ones not verified yet are verified when their images are first accessed.
+   */
+  public void loadIndex() {
+    long start = System.currentTimeMillis();
+    index.load();
+    log.info("Loaded index of {} chartas in {} ms", index.size(),
+             System.currentTimeMillis() - start);
+    Thread thread = new Thread(this::verifyIndex, "charta-index-verifier");
+    thread.setDaemon(true);
+    verifier = thread;
+    thread.start();
+  }
+
+  /**
+   * Returns whether all entries of the index have been verified against files of images
+   */
+  public boolean isIndexVerified() {
+    return index.getUnverified().isEmpty() && (verifier == null || !verifier.isAlive());
+  }
+
+  /**
+   * Verifies entries of all stored images, indexes images missing in the index and drops entries
+   * of images that no longer exist, then compacts the index file
+   */
+  private void verifyIndex() {
+    long start = System.currentTimeMillis();
+    String[] names = new File(pathForSaving).list();
+    int described = 0;
+    for (String name : names == null ? new String[0] : names) {
+      String id = chartaId(name);
+      if (Thread.currentThread().isInterrupted()) {
+        return;
+      }
+      if (id == null || index.isVerified(id) && index.contains(id)) {
+        continue;
+      }
+      try {
+        if (verify(id, index.get(id))) {
+          ++described;
+        }
+      } catch (IOException | RuntimeException e) {
+        log.warn("Charta " + id + " can't be indexed", e);
+      }
+    }
+    for (String id : index.getUnverified()) {
+      // entries of images that weren't listed
+      try {
+        verify(id, index.get(id));
+      } catch (IOException | RuntimeException e) {
+        log.debug("Charta {} is no longer stored", id);
+      }
+    }
+    try {
+      index.compact();
+    } catch (IOException e) {
+      log.warn("Unable to compact the index of chartas", e);
+    }
+    log.info("Verified index of {} chartas in {} ms, {} of them read from their files",
+             index.size(), System.currentTimeMillis() - start, described);
   }
 
-  private File getImageFile(String id) {
-    File file = new File(pathForSaving + "/" + id + "." + formatName);
-    if (!file.exists()) {
+  /**
+   * Returns the entry of the image in the index. Entries loaded from the index file are verified
+   * on first access, images not indexed at all are described from their files and indexed.
+   *
+   * @throws NoSuchIdException if there is no image with given id
+   */
+  protected ChartaIndex.Entry getIndexEntry(String id) throws IOException {
+    ChartaIndex.Entry entry = index.get(id);
+    if (entry != null && index.isVerified(id)) {
+      return entry;
+    }
+    if (entry == null) {
+      // not a stored image, unless it was stored before the index has been loaded
+      getImageFile(id);
+    }
+    verify(id, entry);
+    entry = index.get(id);
+    if (entry == null) {
+      throw new NoSuchIdException("No charta with id " + id + " can be found");
+    }
+    return entry;
+  }
+
+  /**
+   * Checks the entry of the image against its file and describes the image again if it has been
+   * modified since the entry was made. An entry changed meanwhile by a write of the image is
+   * newer than anything read here, so it is kept.
+   *
+   * @param entry entry of the image or {@code null} if it isn't indexed
+   * @return whether the image has been described from its file
+   * @throws NoSuchIdException if the image isn't stored anymore
+   */
+  private boolean verify(String id, ChartaIndex.Entry entry) throws IOException {
+    BasicFileAttributes attributes;
+    try {
+      attributes = Files.readAttributes(imageFile(id).toPath(), BasicFileAttributes.class);
+    } catch (NoSuchFileException e) {
+      if (entry == null || index.get(id) == entry) {
+        throw missing(id);
+      }
+      return false;
+    }
+    long modified = attributes.lastModifiedTime().toMillis();
+    boolean described = false;
+    if (entry == null) {
+      index.putIfAbsent(id, describe(id, attributes.creationTime().toMillis(), modified));
+      described = true;
+    } else if (entry.getModified() != modified) {
+      index.replace(id, entry, describe(id, entry.getCreated(), modified));
+      described = true;
+    }
+    index.verified(id);
+    return described;
+  }
+
+  /**
+   * Reads sizes and layout of the stored image for the index
+   *
+   * @param created  time the image was created
+   * @param modified time the image was last modified
+   */
+  protected ChartaIndex.Entry describe(String id, long created, long modified)
+          throws IOException {
+    try (PixelStore store = open(id)) {
+      return new ChartaIndex.Entry(store.getWidth(), store.getHeight(), 0, false, created,
+                                   modified);
+    }
+  }
+
+  /**
+   * Returns the id of the image stored in the file or directory with given name, or {@code null}
+   * if it doesn't store an image. Names of images have no dots, so that files of their levels and
+   * temporary files are told apart.
+   */
+  protected String chartaId(String fileName) {
+    String extension = "." + formatName;
+    if (!fileName.endsWith(extension)) {
+      return null;
+    }
+    String id = fileName.substring(0, fileName.length() - extension.length());
+    return id.isEmpty() || id.contains(".") ? null : id;
+  }
+
+  public ChartaVersion getVersion(String id) {
+    return versions.get(id);
+  }
+
+  public Dimension getSize(String id, int level) throws IOException {
+    Dimension size = getSize(id);
+    if (level == 0) {
+      return size;
+    }
+    int levels = pyramid == null ? 0 : pyramid.getLevels(size.width, size.height);
+    if (level < 0 || level > levels) {
+      throw new SizeException("Charta has no level " + level);
+    }
+    buildPyramid(id);
+    return Pyramid.getSize(size.width, size.height, level);
+  }
+
+  public BufferedImage getFragment(String id, int x, int y, int width, int height)
+          throws IOException {
+    BufferedImage fragment = new BufferedImage(width, height, BufferedImage.TYPE_3BYTE_BGR);
+    byte[] pixels = pixels(fragment);
+    try (ChartaLocks.Lease lease = lock(id, y, y + height, false);
+         PixelStore store = access(id)) {
+      Rectangle area = new Rectangle(x, y, width, height)
+              .intersection(new Rectangle(store.getWidth(), store.getHeight()));
+      // a fragment lying to the side of the charta has no rows to read
+      for (int row = area.y; !area.isEmpty() && row < area.y + area.height; ++row) {
+        int offset = ((row - y) * width + area.x - x) * BmpHeader.BYTES_PER_PIXEL;
+        store.readRow(area.x, row, pixels, offset, area.width);
+      }
+    }
+    return fragment;
+  }
+
+  public List<PixelBuffer> getFragments(String id, List<Rectangle> areas) throws IOException {
+    List<PixelBuffer> fragments = new ArrayList<>();
+    if (areas.isEmpty()) {
+      return fragments;
+    }
+    try {
+      for (Rectangle area : areas) {
+        fragments.add(buffers.allocate(area.width, area.height));
+      }
+      readFragments(id, areas, fragments);
+    } catch (IOException | RuntimeException e) {
+      fragments.forEach(PixelBuffer::close);
+      throw e;
+    }
+    return fragments;
+  }
+
+  /**
+   * Reads fragments of the image into buffers, every row of the image at most once
+   */
+  private void readFragments(String id, List<Rectangle> areas, List<PixelBuffer> fragments)
+          throws IOException {
+    int top = Integer.MAX_VALUE;
+    int bottom = Integer.MIN_VALUE;
+    for (Rectangle area : areas) {
+      top = Math.min(top, area.y);
+      bottom = Math.max(bottom, area.y + area.height);
+    }
+
+    try (ChartaLocks.Lease lease = lock(id, top, bottom, false);
+         PixelStore store = access(id)) {
+      Rectangle bounds = new Rectangle(store.getWidth(), store.getHeight());
+      List<Rectangle> clipped = new ArrayList<>();
+      for (Rectangle area : areas) {
+        clipped.add(area.intersection(bounds));
+      }
+      byte[] row = new byte[store.getWidth() * BmpHeader.BYTES_PER_PIXEL];
+      for (int y = Math.max(top, 0); y < Math.min(bottom, store.getHeight()); ++y) {
+        int left = Integer.MAX_VALUE;
+        int right = Integer.MIN_VALUE;
+        for (Rectangle area : clipped) {
+          if (!area.isEmpty() && y >= area.y && y < area.y + area.height) {
+            left = Math.min(left, area.x);
+            right = Math.max(right, area.x + area.width);
+          }
+        }
+        if (left >= right) {
+          continue;
+        }
+        store.readRow(left, y, row, left * BmpHeader.BYTES_PER_PIXEL, right - left);
+        for (int i = 0; i < areas.size(); ++i) {
+          Rectangle area = areas.get(i);
+          Rectangle part = clipped.get(i);
+          if (!part.isEmpty() && y >= part.y && y < part.y + part.height) {
+            fragments.get(i).writeRow(part.x - area.x, y - area.y, row,
+                                      part.x * BmpHeader.BYTES_PER_PIXEL, part.width);
+          }
+        }
+      }
+    }
+  }
+
+  public void writeFragment(String id, int x, int y, int width, int height, OutputStream out)
+          throws IOException {
+    writeFragment(id, 0, x, y, width, height, out);
+  }
+
+  public void writeFragment(String id, int level, int x, int y, int width, int height,
+                            OutputStream out) throws IOException {
+    writeFragment(id, level, x, y, width, height, 0, BmpHeader.of(width, height).getFileSize(),
+                  out);
+  }
+
+  public void writeFragment(String id, int level, int x, int y, int width, int height, long from,
+                            long to, OutputStream out) throws IOException {
+    long size = BmpHeader.of(width, height).getFileSize();
+    if (from < 0 || to > size || from > to) {
+      throw new IllegalArgumentException(
+              "Bytes [" + from + ", " + to + ") are out of a fragment of " + size + " bytes");
+    }
+    if (coalescer == null || !coalescer.accepts(size)) {
+      streamFragment(id, level, x, y, width, height, from, to, out);
+      return;
+    }
+    // small fragments are read as a whole, so ranges of the same fragment share a single read
+    long writes = versions.getCount(id);
+    out.write(coalescer.read(id, writes, level, new Rectangle(x, y, width, height), () -> {
+      ByteArrayOutputStream buffer = new ByteArrayOutputStream((int) size);
+      streamFragment(id, level, x, y, width, height, 0, size, buffer);
+      return buffer.toByteArray();
+    }), (int) from, (int) (to - from));
+  }
+
+  private void streamFragment(String id, int level, int x, int y, int width, int height,
+                              long from, long to, OutputStream out) throws IOException {
+    // only rows holding the bytes are locked
+    BmpHeader header = BmpHeader.of(width, height);
+    int top = y;
+    int bottom = y;
+    if (to > BmpHeader.SIZE && header.getRowSize() > 0) {
+      top += header.getRowAt(to - 1);
+      bottom += header.getRowAt(Math.max(from, BmpHeader.SIZE)) + 1;
+    }
+    if (level == 0) {
+      try (ChartaLocks.Lease lease = lock(id, top, bottom, false);
+           PixelStore store = access(id)) {
+        streamBmp(store, x, y, width, height, from, to, out);
+      }
+      return;
+    }
+    getSize(id, level);
+    try (ChartaLocks.Lease lease = pyramid.lockRows(id, level, top, bottom);
+         PixelStore store = new MeteredPixelStore(pyramid.open(id, level), metrics)) {
+      streamBmp(store, x, y, width, height, from, to, out);
+    }
+  }
+
+  /**
+   * Writes bytes {@code [from, to)} of a fragment of the store starting at point (x, y), encoded
+   * as a BMP image, to the stream row by row. Rows not holding any of the bytes aren't read.
+   */
+  private void streamBmp(PixelStore store, int x, int y, int width, int height, long from,
+                         long to, OutputStream out) throws IOException {
+    BmpHeader header = BmpHeader.of(width, height);
+    int rowSize = header.getRowSize();
+    byte[] row = new byte[rowSize];
+    Rectangle area = new Rectangle(x, y, width, height)
+            .intersection(new Rectangle(store.getWidth(), store.getHeight()));
+    // rows are read and sent in turns, only the time of sending them is encoding
+    long encoding = 0;
+    long start = System.nanoTime();
+    if (from < BmpHeader.SIZE) {
+      out.write(header.toBytes(), (int) from, (int) (Math.min(to, BmpHeader.SIZE) - from));
+    }
+    encoding += System.nanoTime() - start;
+    if (to <= BmpHeader.SIZE || rowSize == 0) {
+      metrics.recordNanos(ChartaMetrics.ENCODE, encoding);
+      return;
+    }
+    // rows are laid out bottom-up, so the first byte is in the lowest row
+    int bottom = header.getRowAt(Math.max(from, BmpHeader.SIZE));
+    int top = header.getRowAt(to - 1);
+    for (int j = bottom; j >= top; --j) {
+      Arrays.fill(row, (byte) 0);
+      int chartaRow = y + j;
+      if (!area.isEmpty() && chartaRow >= area.y && chartaRow < area.y + area.height) {
+        store.readRow(area.x, chartaRow, row, (area.x - x) * BmpHeader.BYTES_PER_PIXEL,
+                      area.width);
+      }
+      long offset = header.getRowOffset(j);
+      int begin = (int) Math.max(from - offset, 0);
+      int end = (int) Math.min(to - offset, rowSize);
+      start = System.nanoTime();
+      out.write(row, begin, end - begin);
+      encoding += System.nanoTime() - start;
+    }
+    metrics.recordNanos(ChartaMetrics.ENCODE, encoding);
+  }
+
+  public void saveFragment(String id, int x, int y, BufferedImage fragment) throws IOException {
+    long start = System.nanoTime();
+    byte[] pixels = pixels(toBgr(fragment));
+    metrics.record(ChartaMetrics.DECODE, start);
+    int width = fragment.getWidth();
+    try {
+      try (ChartaLocks.Lease lease = lock(id, y, y + fragment.getHeight(), true);
+           PixelStore store = accessForWriting(id)) {
+        Rectangle area = new Rectangle(x, y, width, fragment.getHeight())
+                .intersection(new Rectangle(store.getWidth(), store.getHeight()));
+        for (int row = area.y; row < area.y + area.height; ++row) {
+          int offset = ((row - y) * width + area.x - x) * BmpHeader.BYTES_PER_PIXEL;
+          store.writeRow(area.x, row, pixels, offset, area.width);
+        }
+        commit(store);
+      }
+      updatePyramid(id, new Rectangle(x, y, width, fragment.getHeight()));
+    } finally {
+      versions.bump(id);
+      index.written(id);
+    }
+    checkpointIfNeeded(id);
+  }
+
+  public void saveFragment(String id, int x, int y, int width, int height, InputStream in)
+          throws IOException {
+    try {
+      // rows stay locked while the fragment is being received, so that readers never see it
+      // partially written
+      try (ChartaLocks.Lease lease = lock(id, y, y + height, true);
+           PixelStore store = accessForWriting(id)) {
+        writeBmp(store, x, y, width, height, in);
+        commit(store);
+      }
+      updatePyramid(id, new Rectangle(x, y, width, height));
+    } finally {
+      versions.bump(id);
+      index.written(id);
+    }
+    checkpointIfNeeded(id);
+  }
+
+  public List<FragmentStatus> saveFragments(String id, List<Fragment> fragments)
+          throws IOException {
+    FragmentStatus[] statuses = new FragmentStatus[fragments.size()];
+    if (fragments.isEmpty()) {
+      return List.of();
+    }
+    Rectangle bounds = null;
+    for (Fragment fragment : fragments) {
+      Rectangle area = new Rectangle(fragment.getX(), fragment.getY(), fragment.getWidth(),
+                                     fragment.getHeight());
+      bounds = bounds == null ? area : bounds.union(area);
+    }
+    int top = bounds.y;
+    int bottom = bounds.y + bounds.height;
+
+    try {
+      try (ChartaLocks.Lease lease = lock(id, top, bottom, true);
+           PixelStore store = accessForWriting(id)) {
+        for (int index : storageOrder(fragments)) {
+          Fragment fragment = fragments.get(index);
+          try {
+            writeBmp(store, fragment.getX(), fragment.getY(), fragment.getWidth(),
+                     fragment.getHeight(), new ByteArrayInputStream(fragment.getData()));
+            statuses[index] = new FragmentStatus(index, true, null);
+          } catch (SizeException | ImageFormatException e) {
+            statuses[index] = new FragmentStatus(index, false, e.getMessage());
+          }
+        }
+        commit(store);
+        if (cache != null) {
+          cache.flush(id);
+        }
+      }
+      updatePyramid(id, bounds);
+    } finally {
+      versions.bump(id);
+      index.written(id);
+    }
+    checkpointIfNeeded(id);
+    return Arrays.asList(statuses);
+  }
+
+  /**
+   * Returns indices of fragments sorted by their first row. If sorting would put a fragment before
+   * an earlier one it overlaps with, the given order is kept, so that later fragments still win.
+   */
+  private static List<Integer> storageOrder(List<Fragment> fragments) {
+    List<Integer> order = new ArrayList<>();
+    for (int i = 0; i < fragments.size(); ++i) {
+      order.add(i);
+    }
+    order.sort(Comparator.comparingInt(i -> fragments.get(i).getY()));
+    for (int i = 0; i < order.size(); ++i) {
+      for (int j = i + 1; j < order.size(); ++j) {
+        if (order.get(i) > order.get(j)
+            && overlap(fragments.get(order.get(i)), fragments.get(order.get(j)))) {
+          order.sort(Comparator.naturalOrder());
+          return order;
+        }
+      }
+    }
+    return order;
+  }
+
+  private static boolean overlap(Fragment a, Fragment b) {
+    return new Rectangle(a.getX(), a.getY(), a.getWidth(), a.getHeight())
+            .intersects(new Rectangle(b.getX(), b.getY(), b.getWidth(), b.getHeight()));
+  }
+
+  /**
+   * Moves a BMP image of size {@code width * height} from the stream into the store starting at
+   * point (x, y) row by row
+   */
+  private void writeBmp(PixelStore store, int x, int y, int width, int height,
+                               InputStream in) throws IOException {
+    BmpHeader header = readHeader(in);
+    if (header.getWidth() != width || header.getHeight() != height) {
+      throw new SizeException("Provided sizes do not match sizes of fragment");
+    }
+    writeRows(store, x, y, header, in);
+  }
+
+  /**
+   * Moves rows of a BMP image whose header has already been read from the stream into the store
+   * starting at point (x, y)
+   */
+  private void writeRows(PixelStore store, int x, int y, BmpHeader header, InputStream in)
+          throws IOException {
+    int width = header.getWidth();
+    int height = header.getHeight();
+    Rectangle area = new Rectangle(x, y, width, height)
+            .intersection(new Rectangle(store.getWidth(), store.getHeight()));
+    byte[] row = new byte[header.getRowSize()];
+    // rows are received and written in turns, only the time of receiving them is decoding
+    long decoding = 0;
+    for (int i = 0; i < height; ++i) {
+      long start = System.nanoTime();
+      readFully(in, row);
+      decoding += System.nanoTime() - start;
+      int chartaRow = y + (header.isTopDown() ? i : height - 1 - i);
+      if (chartaRow >= area.y && chartaRow < area.y + area.height) {
+        store.writeRow(area.x, chartaRow, row, (area.x - x) * BmpHeader.BYTES_PER_PIXEL,
+                       area.width);
+      }
+    }
+    metrics.recordNanos(ChartaMetrics.DECODE, decoding);
+  }
+
+  /**
+   * Reads a BMP header from the stream and skips everything up to the first row of pixels
+   */
+  private static BmpHeader readHeader(InputStream in) throws IOException {
+    byte[] bytes = new byte[BmpHeader.SIZE];
+    readFully(in, bytes);
+    BmpHeader header;
+    try {
+      header = BmpHeader.read(ByteBuffer.wrap(bytes));
+    } catch (IOException e) {
+      throw new ImageFormatException(e.getMessage());
+    }
+    long toSkip = header.getPixelOffset() - BmpHeader.SIZE;
+    while (toSkip > 0) {
+      long skipped = in.skip(toSkip);
+      if (skipped <= 0) {
+        if (in.read() < 0) {
+          throw new ImageFormatException("Fragment is truncated");
+        }
+        skipped = 1;
+      }
+      toSkip -= skipped;
+    }
+    return header;
+  }
+
+  private static void readFully(InputStream in, byte[] bytes) throws IOException {
+    if (in.readNBytes(bytes, 0, bytes.length) < bytes.length) {
+      throw new ImageFormatException("Fragment is truncated");
+    }
+  }
+
+  /**
+   * Locks rows of the image, recording the time spent waiting for them
+   */
+  private ChartaLocks.Lease lock(String id, int from, int to, boolean write) {
+    long start = System.nanoTime();
+    ChartaLocks.Lease lease = locks.lockRows(id, from, to, write);
+    metrics.record(ChartaMetrics.LOCK, start);
+    return lease;
+  }
+
+  /**
+   * Opens row level access to pixels of the image with given id
+   *
+   * @param id id of the image
+   * @return store that must be closed after use
+   * @throws IOException if an error occurs during opening
+   */
+  protected abstract PixelStore open(String id) throws IOException;
+
+  /**
+   * Returns whether fragments of the image should go through the cache of rows. Storages that are
+   * already served from memory or can't take rows written back concurrently may opt out.
+   */
+  protected boolean isCacheable(String id) throws IOException {
+    return true;
+  }
+
+  /**
+   * Opens the image for a fragment read, serving its rows from the cache if it's enabled
+   */
+  private PixelStore access(String id) throws IOException {
+    return new MeteredPixelStore(cached(id), metrics);
+  }
+
+  /**
+   * Opens the image serving its rows from the cache if it's enabled. Rows aren't measured, which
+   * is left to callers reading and writing fragments.
+   */
+  private PixelStore cached(String id) throws IOException {
+    PixelStore store = open(id);
+    if (cache != null && cache.isEnabled() && isCacheable(id)) {
+      return cache.wrap(id, store, this::open);
+    }
+    return store;
+  }
+
+  /**
+   * Recomputes downsampled levels of a changed region of the image. Levels are built from scratch
+   * if they don't exist yet.
+   */
+  private void updatePyramid(String id, Rectangle dirty) throws IOException {
+    if (pyramid == null || buildPyramid(id)) {
+      return;
+    }
+    // rows next to changed ones are averaged together with them
+    try (ChartaLocks.Lease lease = lock(id, dirty.y - 1, dirty.y + dirty.height + 1, false);
+         PixelStore store = cached(id)) {
+      long start = System.nanoTime();
+      pyramid.update(id, store, dirty);
+      metrics.record(ChartaMetrics.PYRAMID, start);
+    }
+  }
+
+  /**
+   * Builds downsampled levels of the image if they don't exist, which is the case for images
+   * stored before levels were enabled and for replaced images
+   *
+   * @return whether levels have been built
+   */
+  private boolean buildPyramid(String id) throws IOException {
+    if (pyramid == null) {
+      return false;
+    }
+    Dimension size = getSize(id);
+    if (pyramid.exists(id, size.width, size.height)) {
+      return false;
+    }
+    try (ChartaLocks.Lease lease = lock(id, 0, Integer.MAX_VALUE, false);
+         PixelStore store = cached(id)) {
+      long start = System.nanoTime();
+      pyramid.build(id, store);
+      metrics.record(ChartaMetrics.PYRAMID, start);
+    }
+    return true;
+  }
+
+  /**
+   * Opens the image for a fragment write. Rows of the write are logged if the write-ahead log is
+   * enabled, the write must then be committed with {@link #commit}.
+   */
+  private PixelStore accessForWriting(String id) throws IOException {
+    PixelStore store = cached(id);
+    return new MeteredPixelStore(isLogged() ? wal.wrap(id, store) : store, metrics);
+  }
+
+  /**
+   * Makes a write durable before its rows are unlocked. Images themselves are forced only at
+   * checkpoints.
+   */
+  private void commit(PixelStore store) throws IOException {
+    if (isLogged()) {
+      store.force();
+    }
+  }
+
+  private boolean isLogged() {
+    return wal != null && wal.isEnabled();
+  }
+
+  private void checkpointIfNeeded(String id) throws IOException {
+    if (isLogged() && wal.needsCheckpoint(id)) {
+      checkpoint(id);
+    }
+  }
+
+  /**
+   * Forces the image together with its levels and empties its log. Rows of the image are locked
+   * for reading, so that no write is logged meanwhile.
+   */
+  private void checkpoint(String id) throws IOException {
+    try (ChartaLocks.Lease lease = lock(id, 0, Integer.MAX_VALUE, false);
+         PixelStore store = cached(id)) {
+      long start = System.nanoTime();
+      store.force();
+      if (pyramid != null) {
+        pyramid.force(id);
+      }
+      wal.truncate(id);
+      metrics.record(ChartaMetrics.CHECKPOINT, start);
+    }
+  }
+
+  public void recover() throws IOException {
+    if (!isLogged()) {
+      return;
+    }
+    for (String id : wal.list()) {
+      Rectangle dirty;
+      try (PixelStore store = access(id)) {
+        dirty = wal.replay(id, store);
+      } catch (NoSuchIdException e) {
+        wal.delete(id);
+        continue;
+      }
+      if (dirty != null) {
+        updatePyramid(id, dirty);
+        versions.bump(id);
+        index.written(id);
+      }
+      checkpoint(id);
+    }
+  }
+
+  /**
+   * Checkpoints all logged images, so that a clean shutdown leaves nothing to replay, and writes
+   * cached rows back. Entries of written images are then refreshed, so that they are trusted after
+   * a restart.
+   */
+  @PreDestroy
+  public void close() throws IOException {
+    if (verifier != null) {
+      verifier.interrupt();
+    }
+    if (isLogged()) {
+      for (String id : wal.list()) {
+        try {
+          checkpoint(id);
+        } catch (NoSuchIdException e) {
+          wal.delete(id);
+        }
+      }
+    }
+    if (cache != null) {
+      cache.flushAll();
+    }
+    index.refresh(id -> imageFile(id).lastModified());
+    index.close();
+  }
+
+  private static BufferedImage toBgr(BufferedImage image) {
+    if (image.getType() == BufferedImage.TYPE_3BYTE_BGR && image.getRaster().getParent() == null) {
+      return image;
+    }
+    BufferedImage converted = new BufferedImage(image.getWidth(), image.getHeight(),
+                                                BufferedImage.TYPE_3BYTE_BGR);
+    Graphics2D graphics = converted.createGraphics();
+    graphics.drawImage(image, 0, 0, null);
+    graphics.dispose();
+    return converted;
+  }
+
+  private static byte[] pixels(BufferedImage image) {
+    return ((DataBufferByte) image.getRaster().getDataBuffer()).getData();
+  }
+
+  /**
+   * Returns the file of the image. The file system is asked whether the file exists only for
+   * images that aren't indexed.
+   *
+   * @throws NoSuchIdException if there is no image with given id
+   */
+  protected File getImageFile(String id) {
+    File file = imageFile(id);
+    if (!index.contains(id) && !file.exists()) {
       throw new NoSuchIdException("No charta with id " + id + " can be found");
     }
 
     return file;
   }
 
+  /**
+   * Drops an indexed image whose file has been found missing, which happens only if it was deleted
+   * outside of the service
+   *
+   * @return exception to throw
+   */
+  protected NoSuchIdException missing(String id) throws IOException {
+    index.remove(id);
+    return new NoSuchIdException("No charta with id " + id + " can be found");
+  }
+
+  /**
+   * Returns the file in which the image with given id is stored, whether it exists or not
+   */
+  protected File imageFile(String id) {
+    return new File(pathForSaving + "/" + id + "." + formatName);
+  }
+
   public void removeImage(String id) throws IOException {
+    try (ChartaLocks.Lease lease = locks.lockImage(id)) {
+      if (cache != null) {
+        cache.invalidate(id);
+      }
+      deleteImage(id);
+      index.remove(id);
+      if (pyramid != null) {
+        pyramid.delete(id);
+      }
+      if (wal != null) {
+        wal.delete(id);
+      }
+      if (coalescer != null) {
+        coalescer.forget(id);
+      }
+      versions.forget(id);
+    }
+    locks.forget(id);
+  }
+
+  /**
+   * Deletes the stored image. Called while the image is locked exclusively.
+   */
+  protected void deleteImage(String id) throws IOException {
     File file = getImageFile(id);
     Files.delete(file.toPath());
   }
@@ -102,6 +1047,25 @@ public abstract class AbstractImageService implements ImageService {
     return encrypted;
   }
 
+  public void encryptImage(PixelBuffer buffer, OutputStream out) throws IOException {
+    streamBmp(buffer, 0, 0, buffer.getWidth(), buffer.getHeight(), 0,
+              BmpHeader.of(buffer.getWidth(), buffer.getHeight()).getFileSize(), out);
+  }
+
+  public void encryptImage(BufferedImage image, OutputStream out) throws IOException {
+    long start = System.nanoTime();
+    BmpHeader header = BmpHeader.of(image.getWidth(), image.getHeight());
+    byte[] pixels = pixels(toBgr(image));
+    byte[] row = new byte[header.getRowSize()];
+    int length = image.getWidth() * BmpHeader.BYTES_PER_PIXEL;
+    out.write(header.toBytes());
+    for (int j = image.getHeight() - 1; j >= 0; --j) {
+      System.arraycopy(pixels, j * length, row, 0, length);
+      out.write(row);
+    }
+    metrics.record(ChartaMetrics.ENCODE, start);
+  }
+
   public String getPathForSaving() {
     return pathForSaving;
   }
@@ -0,0 +1,81 @@
+package com.danil.chartographer.service;
+
+import com.danil.chartographer.exception.OverloadException;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * AdmissionLimiter bounds the number of bytes of fragments being read or written at the same time.
+ * A request takes a permit for its bytes before touching a charta and gives it back once it
+ * completes. A request that doesn't fit under {@code chartographer.admission.max-bytes} is rejected
+ * right away instead of waiting, so a burst of requests is shed rather than exhausting memory.
+ *
+ * <p>A request larger than the limit itself is admitted only when nothing else is in flight.
+ */
+@Component
+public class AdmissionLimiter {
+
+  private final long maxBytes;
+  private long bytesInFlight;
+  private final AtomicLong rejected = new AtomicLong();
+
+  /**
+   * @param maxBytes number of bytes allowed in flight, zero disables the limit
+   */
+  public AdmissionLimiter(@Value("${chartographer.admission.max-bytes:0}") long maxBytes) {
+    this.maxBytes = maxBytes;
+  }
+
+  /**
+   * Takes a permit for given number of bytes
+   *
+   * @return permit giving the bytes back when closed
+   * @throws OverloadException if the bytes don't fit under the limit
+   */
+  public Permit acquire(long bytes) {
+    if (maxBytes <= 0) {
+      return new Permit(0);
+    }
+    long charged = Math.min(Math.max(bytes, 0), maxBytes);
+    synchronized (this) {
+      if (bytesInFlight + charged > maxBytes) {
+        rejected.incrementAndGet();
+        throw new OverloadException("Too many fragments are being transferred, try again later");
+      }
+      bytesInFlight += charged;
+    }
+    return new Permit(charged);
+  }
+
+  public synchronized long getBytesInFlight() {
+    return bytesInFlight;
+  }
+
+  public long getRejected() {
+    return rejected.get();
+  }
+
+  private synchronized void release(long bytes) {
+    bytesInFlight -= bytes;
+  }
+
+  /**
+   * Bytes admitted for a single request
+   */
+  public class Permit implements AutoCloseable {
+
+    private long bytes;
+
+    private Permit(long bytes) {
+      this.bytes = bytes;
+    }
+
+    @Override
+    public void close() {
+      release(bytes);
+      bytes = 0;
+    }
+  }
+}
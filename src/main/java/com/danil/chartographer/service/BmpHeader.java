@@ -0,0 +1,154 @@
+package com.danil.chartographer.service;
+
+import lombok.Getter;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * {@code BmpHeader} describes the layout of an uncompressed 24-bit BMP file: sizes of the image,
+ * position of the pixel array and the length of a single row padded to 4 bytes.
+ */
+@Getter
+public class BmpHeader {
+
+  /**
+   * Size of the file header together with BITMAPINFOHEADER
+   */
+  public static final int SIZE = 54;
+  public static final int BYTES_PER_PIXEL = 3;
+  /**
+   * Space allowed in files of fragments for headers larger than the basic one
+   */
+  public static final int MAX_EXTRA_HEADER = 1024;
+
+  private static final int INFO_HEADER_SIZE = 40;
+  private static final int BITS_PER_PIXEL = 24;
+  private static final int BI_RGB = 0;
+  private static final int PIXELS_PER_METER = 2835;
+
+  private final int width;
+  private final int height;
+  private final boolean topDown;
+  private final long pixelOffset;
+  private final int rowSize;
+
+  private BmpHeader(int width, int height, boolean topDown, long pixelOffset) {
+    this.width = width;
+    this.height = height;
+    this.topDown = topDown;
+    this.pixelOffset = pixelOffset;
+    this.rowSize = rowSize(width);
+  }
+
+  /**
+   * Creates a header of a bottom-up image with pixels placed right after the header
+   */
+  public static BmpHeader of(int width, int height) {
+    return new BmpHeader(width, height, false, SIZE);
+  }
+
+  /**
+   * Creates a header of an image whose rows start at given position of the file
+   *
+   * @param topDown whether the first row of the file is the top row of the image
+   */
+  public static BmpHeader of(int width, int height, boolean topDown, long pixelOffset) {
+    return new BmpHeader(width, height, topDown, pixelOffset);
+  }
+
+  /**
+   * Parses a header from the buffer. Buffer must contain at least {@link #SIZE} bytes.
+   *
+   * @param buffer buffer positioned at the beginning of the file
+   * @return parsed header
+   * @throws IOException if the header doesn't describe an uncompressed 24-bit BMP image
+   */
+  public static BmpHeader read(ByteBuffer buffer) throws IOException {
+    ByteBuffer b = buffer.slice().order(ByteOrder.LITTLE_ENDIAN);
+    if (b.remaining() < SIZE || b.get(0) != 'B' || b.get(1) != 'M') {
+      throw new IOException("Not a bmp image");
+    }
+    long pixelOffset = Integer.toUnsignedLong(b.getInt(10));
+    int width = b.getInt(18);
+    int height = b.getInt(22);
+    int bitsPerPixel = b.getShort(28);
+    int compression = b.getInt(30);
+    if (bitsPerPixel != BITS_PER_PIXEL || compression != BI_RGB) {
+      throw new IOException("Only uncompressed 24-bit bmp images are supported");
+    }
+    if (width < 0 || height == Integer.MIN_VALUE || pixelOffset < SIZE) {
+      throw new IOException("Bmp header is corrupted");
+    }
+    return new BmpHeader(width, Math.abs(height), height < 0, pixelOffset);
+  }
+
+  /**
+   * Returns the size of the largest file accepted as a fragment of given sizes, which may have a
+   * header up to {@link #MAX_EXTRA_HEADER} bytes larger than the basic one. Sizes must not be
+   * negative, a size too large to be represented is {@link Long#MAX_VALUE}.
+   */
+  public static long maxFileSize(int width, int height) {
+    long rowSize = ((long) width * BYTES_PER_PIXEL + 3) & ~3L;
+    long headers = SIZE + MAX_EXTRA_HEADER;
+    if (height > 0 && rowSize > (Long.MAX_VALUE - headers) / height) {
+      return Long.MAX_VALUE;
+    }
+    return headers + rowSize * height;
+  }
+
+  /**
+   * Returns the length of a row of given width padded to 4 bytes
+   */
+  public static int rowSize(int width) {
+    return (width * BYTES_PER_PIXEL + 3) & ~3;
+  }
+
+  /**
+   * Returns position in the file of the row with given vertical coordinate, counting rows from
+   * the top of the image
+   */
+  public long getRowOffset(int y) {
+    int row = topDown ? y : height - 1 - y;
+    return pixelOffset + (long) row * rowSize;
+  }
+
+  /**
+   * Returns vertical coordinate of the row holding the byte at given position of the file,
+   * counting rows from the top of the image. The position must lie within pixels of the image.
+   */
+  public int getRowAt(long position) {
+    int row = (int) ((position - pixelOffset) / rowSize);
+    return topDown ? row : height - 1 - row;
+  }
+
+  public long getFileSize() {
+    return pixelOffset + (long) rowSize * height;
+  }
+
+  /**
+   * Serializes the header into {@link #SIZE} bytes
+   */
+  public byte[] toBytes() {
+    long imageSize = (long) rowSize * height;
+    ByteBuffer b = ByteBuffer.allocate(SIZE).order(ByteOrder.LITTLE_ENDIAN);
+    b.put((byte) 'B').put((byte) 'M');
+    b.putInt((int) Math.min(getFileSize(), 0xFFFFFFFFL));
+    b.putInt(0);
+    b.putInt((int) pixelOffset);
+    b.putInt(INFO_HEADER_SIZE);
+    b.putInt(width);
+    b.putInt(topDown ? -height : height);
+    b.putShort((short) 1);
+    b.putShort((short) BITS_PER_PIXEL);
+    b.putInt(BI_RGB);
+    b.putInt((int) Math.min(imageSize, 0xFFFFFFFFL));
+    b.putInt(PIXELS_PER_METER);
+    b.putInt(PIXELS_PER_METER);
+    b.putInt(0);
+    b.putInt(0);
+    return b.array();
+  }
+
+}
@@ -1,15 +1,30 @@
 package com.danil.chartographer.service;
 
 import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.stereotype.Service;
 
 import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardOpenOption;
+import java.util.UUID;
 
 /**
- * Implementation of {@link ImageService} for working with BMP images
+ * Implementation of {@link ImageService} for working with BMP images. Fragments are read and
+ * written directly in the stored file, so that only rows covered by a fragment are touched. Headers
+ * of images are parsed once and kept in the index of images. New images are created without
+ * building them in memory: the header is written and the file is extended with zeros, which most
+ * file systems keep sparse until rows are actually written. Used unless another storage is chosen
+ * with {@code chartographer.storage} property.
  */
 @Service
+@ConditionalOnProperty(name = "chartographer.storage", havingValue = "bmp", matchIfMissing = true)
 public class BmpImageService extends AbstractImageService {
+
   /**
    * Takes command line arguments and finds there a directory for saving images
    *
@@ -18,4 +33,65 @@ public class BmpImageService extends AbstractImageService {
   public BmpImageService(ApplicationArguments args) {
     super(args, "bmp", BufferedImage.TYPE_3BYTE_BGR);
   }
+
+  @Override
+  protected String createImage(int width, int height) throws IOException {
+    createUploadDirectory();
+
+    String uuid = UUID.randomUUID().toString();
+    BmpHeader header = BmpHeader.of(width, height);
+    try (RandomAccessFile file = new RandomAccessFile(getPathForSaving() + "/" + uuid + ".bmp",
+                                                      "rw")) {
+      file.write(header.toBytes());
+      file.setLength(header.getFileSize());
+    }
+
+    return uuid;
+  }
+
+  @Override
+  protected PixelStore open(String id) throws IOException {
+    FileChannel channel;
+    try {
+      channel = FileChannel.open(getImageFile(id).toPath(), StandardOpenOption.READ,
+                                 StandardOpenOption.WRITE);
+    } catch (NoSuchFileException e) {
+      throw missing(id);
+    }
+    try {
+      return new BmpPixelStore(channel, getHeader(id));
+    } catch (IOException | RuntimeException e) {
+      channel.close();
+      throw e;
+    }
+  }
+
+  /**
+   * Returns the header of the image kept in the index
+   */
+  protected BmpHeader getHeader(String id) throws IOException {
+    ChartaIndex.Entry entry = getIndexEntry(id);
+    return BmpHeader.of(entry.getWidth(), entry.getHeight(), entry.isTopDown(),
+                        entry.getPixelOffset());
+  }
+
+  /**
+   * Reads the header of the image, pixels aren't touched
+   */
+  @Override
+  protected ChartaIndex.Entry describe(String id, long created, long modified)
+          throws IOException {
+    BmpHeader header;
+    try (FileChannel channel = FileChannel.open(getImageFile(id).toPath(),
+                                                StandardOpenOption.READ)) {
+      ByteBuffer buffer = ByteBuffer.allocate(BmpHeader.SIZE);
+      int read = 0;
+      while (buffer.hasRemaining() && read >= 0) {
+        read = channel.read(buffer, buffer.position());
+      }
+      header = BmpHeader.read(buffer.flip());
+    }
+    return new ChartaIndex.Entry(header.getWidth(), header.getHeight(), header.getPixelOffset(),
+                                 header.isTopDown(), created, modified);
+  }
 }
@@ -0,0 +1,69 @@
+package com.danil.chartographer.service;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * {@link PixelStore} over a BMP file that reads and writes rows in place with positional
+ * {@link FileChannel} operations, so only bytes of requested rows are ever touched.
+ */
+class BmpPixelStore implements PixelStore {
+
+  private final FileChannel channel;
+  private final BmpHeader header;
+
+  BmpPixelStore(FileChannel channel, BmpHeader header) {
+    this.channel = channel;
+    this.header = header;
+  }
+
+  @Override
+  public int getWidth() {
+    return header.getWidth();
+  }
+
+  @Override
+  public int getHeight() {
+    return header.getHeight();
+  }
+
+  @Override
+  public void readRow(int x, int y, byte[] destination, int offset, int width)
+          throws IOException {
+    ByteBuffer buffer = ByteBuffer.wrap(destination, offset, width * BmpHeader.BYTES_PER_PIXEL);
+    long position = position(x, y);
+    while (buffer.hasRemaining()) {
+      int read = channel.read(buffer, position);
+      if (read < 0) {
+        throw new EOFException("Charta file is shorter than its header states");
+      }
+      position += read;
+    }
+  }
+
+  @Override
+  public void writeRow(int x, int y, byte[] source, int offset, int width) throws IOException {
+    ByteBuffer buffer = ByteBuffer.wrap(source, offset, width * BmpHeader.BYTES_PER_PIXEL);
+    long position = position(x, y);
+    while (buffer.hasRemaining()) {
+      position += channel.write(buffer, position);
+    }
+  }
+
+  @Override
+  public void force() throws IOException {
+    channel.force(false);
+  }
+
+  private long position(int x, int y) {
+    return header.getRowOffset(y) + (long) x * BmpHeader.BYTES_PER_PIXEL;
+  }
+
+  @Override
+  public void close() throws IOException {
+    channel.close();
+  }
+
+}
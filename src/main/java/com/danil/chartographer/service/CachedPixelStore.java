@@ -0,0 +1,83 @@
+package com.danil.chartographer.service;
+
+import java.io.IOException;
+
+/**
+ * {@link PixelStore} serving rows from {@link RowCache}. Bands missing in the cache are read from
+ * the underlying store, written rows stay in the cache until they are written back. If a band is
+ * evicted while being used, the row is passed to the underlying store directly.
+ */
+class CachedPixelStore implements PixelStore {
+
+  private final RowCache cache;
+  private final String id;
+  private final PixelStore store;
+  private final RowCache.Opener opener;
+
+  CachedPixelStore(RowCache cache, String id, PixelStore store, RowCache.Opener opener) {
+    this.cache = cache;
+    this.id = id;
+    this.store = store;
+    this.opener = opener;
+  }
+
+  @Override
+  public int getWidth() {
+    return store.getWidth();
+  }
+
+  @Override
+  public int getHeight() {
+    return store.getHeight();
+  }
+
+  @Override
+  public void readRow(int x, int y, byte[] destination, int offset, int width)
+          throws IOException {
+    RowCache.Band band = cache.band(id, y, getWidth(), getHeight(), opener);
+    boolean cached;
+    synchronized (band) {
+      cached = !band.isEvicted();
+      if (cached) {
+        band.load(store);
+        band.read(x, y, destination, offset, width);
+      }
+    }
+    if (!cached) {
+      store.readRow(x, y, destination, offset, width);
+    }
+    cache.evict();
+  }
+
+  @Override
+  public void writeRow(int x, int y, byte[] source, int offset, int width) throws IOException {
+    RowCache.Band band = cache.band(id, y, getWidth(), getHeight(), opener);
+    boolean cached;
+    synchronized (band) {
+      cached = !band.isEvicted();
+      if (cached) {
+        band.load(store);
+        band.write(x, y, source, offset, width);
+      }
+    }
+    if (!cached) {
+      store.writeRow(x, y, source, offset, width);
+    }
+    cache.evict();
+  }
+
+  /**
+   * Writes cached rows of the image back before forcing them
+   */
+  @Override
+  public void force() throws IOException {
+    cache.flush(id);
+    store.force();
+  }
+
+  @Override
+  public void close() throws IOException {
+    store.close();
+  }
+
+}
@@ -0,0 +1,297 @@
+package com.danil.chartographer.service;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.With;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.ToLongFunction;
+
+/**
+ * ChartaIndex keeps sizes and layout of every stored image in memory, so that requests are
+ * validated and unknown ids are rejected without touching files of images.
+ *
+ * <p>The index is kept in a single file next to images. Changes are appended to it as they happen
+ * through a channel kept open until the index is closed, and the file is compacted once entries
+ * loaded from it are verified. Loaded entries are served
+ * right away, but trusted only until they are verified: an entry is verified when its image hasn't
+ * been modified since the entry was made, other images are described again, and a change lost in
+ * a crash is repaired the same way. Entries made by the running service are verified already.
+ * Writes of fragments change the time images were modified, so entries of written images are
+ * refreshed once their writes have reached the files.
+ */
+@Slf4j
+class ChartaIndex {
+
+  static final String FILE_NAME = "chartas.index";
+
+  private static final int VERSION = 1;
+  private static final byte PUT = 1;
+  private static final byte REMOVE = 2;
+
+  private final Path file;
+  private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+  private final Set<String> unverified = ConcurrentHashMap.newKeySet();
+  private final Set<String> written = ConcurrentHashMap.newKeySet();
+  private FileChannel channel;
+
+  ChartaIndex(String directory) {
+    file = Path.of(directory, FILE_NAME);
+  }
+
+  /**
+   * Returns the entry of the image or {@code null} if the image isn't indexed
+   */
+  Entry get(String id) {
+    return entries.get(id);
+  }
+
+  boolean contains(String id) {
+    return entries.containsKey(id);
+  }
+
+  /**
+   * Returns whether the entry of the image, if any, can be trusted
+   */
+  boolean isVerified(String id) {
+    return !unverified.contains(id);
+  }
+
+  /**
+   * Trusts the entry of the image from now on
+   */
+  void verified(String id) {
+    unverified.remove(id);
+  }
+
+  /**
+   * Returns ids of images whose entries haven't been verified yet
+   */
+  Set<String> getUnverified() {
+    return Set.copyOf(unverified);
+  }
+
+  /**
+   * Indexes the image unless it is already indexed
+   *
+   * @return the entry kept in the index
+   */
+  Entry putIfAbsent(String id, Entry entry) throws IOException {
+    Entry existing = entries.putIfAbsent(id, entry);
+    if (existing != null) {
+      return existing;
+    }
+    append(id, entry);
+    return entry;
+  }
+
+  /**
+   * Replaces the entry of the image unless it has been changed since {@code expected} was taken,
+   * which means that the image has been changed meanwhile and the new entry may be stale
+   *
+   * @return whether the entry has been replaced
+   */
+  boolean replace(String id, Entry expected, Entry entry) throws IOException {
+    if (!entries.replace(id, expected, entry)) {
+      return false;
+    }
+    append(id, entry);
+    return true;
+  }
+
+  /**
+   * Marks the image as written since its entry was made
+   */
+  void written(String id) {
+    written.add(id);
+  }
+
+  /**
+   * Records the time every image written since its entry was made was last modified, so that the
+   * entry is trusted after a restart. Must be called once writes have reached files of images.
+   *
+   * @param modified returns the time the image was last modified, 0 if it is unknown
+   */
+  void refresh(ToLongFunction<String> modified) throws IOException {
+    for (String id : Set.copyOf(written)) {
+      written.remove(id);
+      Entry entry = entries.get(id);
+      if (entry == null || unverified.contains(id)) {
+        continue;
+      }
+      long time = modified.applyAsLong(id);
+      if (time != 0 && time != entry.modified) {
+        replace(id, entry, entry.withModified(time));
+      }
+    }
+  }
+
+  void put(String id, Entry entry) throws IOException {
+    entries.put(id, entry);
+    unverified.remove(id);
+    append(id, entry);
+  }
+
+  void remove(String id) throws IOException {
+    unverified.remove(id);
+    written.remove(id);
+    if (entries.remove(id) != null) {
+      append(id, null);
+    }
+  }
+
+  /**
+   * Replaces all entries of the index with entries kept in the index file, none of which is
+   * verified
+   */
+  void load() {
+    Map<String, Entry> loaded = read();
+    entries.clear();
+    unverified.clear();
+    entries.putAll(loaded);
+    unverified.addAll(loaded.keySet());
+  }
+
+  /**
+   * Reads entries kept in the index file. A file that can't be read is ignored, since all images
+   * can be described again.
+   */
+  private Map<String, Entry> read() {
+    Map<String, Entry> read = new HashMap<>();
+    try (DataInputStream in = new DataInputStream(
+            new BufferedInputStream(Files.newInputStream(file)))) {
+      if (in.readInt() != VERSION) {
+        log.warn("Index of chartas {} has unknown version, rebuilding it", file);
+        return read;
+      }
+      while (true) {
+        byte type = in.readByte();
+        String id = in.readUTF();
+        if (type == PUT) {
+          read.put(id, readEntry(in));
+        } else if (type == REMOVE) {
+          read.remove(id);
+        } else {
+          throw new IOException("Unknown record " + type);
+        }
+      }
+    } catch (EOFException | NoSuchFileException e) {
+      // the end of the file, possibly with the last record cut by a crash
+    } catch (IOException e) {
+      log.warn("Index of chartas " + file + " is corrupted, rebuilding it", e);
+      read.clear();
+    }
+    return read;
+  }
+
+  /**
+   * Rewrites the index file with current entries only. Changes are appended after the file is
+   * rewritten, so none of them is lost.
+   */
+  synchronized void compact() throws IOException {
+    if (!Files.isDirectory(file.getParent())) {
+      return;
+    }
+    Path temporary = file.resolveSibling(FILE_NAME + ".tmp");
+    try (DataOutputStream out = new DataOutputStream(
+            new BufferedOutputStream(Files.newOutputStream(temporary)))) {
+      out.writeInt(VERSION);
+      for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+        writeRecord(out, entry.getKey(), entry.getValue());
+      }
+    }
+    Files.move(temporary, file, StandardCopyOption.ATOMIC_MOVE,
+               StandardCopyOption.REPLACE_EXISTING);
+    // the channel still points to the replaced file
+    close();
+  }
+
+  int size() {
+    return entries.size();
+  }
+
+  /**
+   * Closes the index file, a later change opens it again
+   */
+  synchronized void close() throws IOException {
+    if (channel != null) {
+      channel.close();
+      channel = null;
+    }
+  }
+
+  /**
+   * Appends a change to the index file, a removal if the entry is {@code null}. Records are
+   * written in a single call, so a crash cuts at most the last one.
+   */
+  private synchronized void append(String id, Entry entry) throws IOException {
+    if (channel == null) {
+      channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                                 StandardOpenOption.APPEND);
+    }
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream record = new DataOutputStream(bytes);
+    if (channel.size() == 0) {
+      record.writeInt(VERSION);
+    }
+    writeRecord(record, id, entry);
+    ByteBuffer buffer = ByteBuffer.wrap(bytes.toByteArray());
+    while (buffer.hasRemaining()) {
+      channel.write(buffer);
+    }
+  }
+
+  private static void writeRecord(DataOutputStream out, String id, Entry entry)
+          throws IOException {
+    out.writeByte(entry == null ? REMOVE : PUT);
+    out.writeUTF(id);
+    if (entry != null) {
+      out.writeInt(entry.width);
+      out.writeInt(entry.height);
+      out.writeLong(entry.pixelOffset);
+      out.writeBoolean(entry.topDown);
+      out.writeLong(entry.created);
+      out.writeLong(entry.modified);
+    }
+  }
+
+  private static Entry readEntry(DataInputStream in) throws IOException {
+    return new Entry(in.readInt(), in.readInt(), in.readLong(), in.readBoolean(), in.readLong(),
+                     in.readLong());
+  }
+
+  /**
+   * Sizes of an image, position and order of its rows in the file if it is a BMP file, and times
+   * it was created and last modified when the entry was made, in milliseconds since the epoch
+   */
+  @Getter
+  @AllArgsConstructor
+  static class Entry {
+
+    private final int width;
+    private final int height;
+    private final long pixelOffset;
+    private final boolean topDown;
+    private final long created;
+    @With
+    private final long modified;
+  }
+}
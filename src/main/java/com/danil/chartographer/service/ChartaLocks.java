@@ -0,0 +1,104 @@
+package com.danil.chartographer.service;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * ChartaLocks is a registry of read-write locks of stored images. Every image has a lock of the
+ * whole image and a fixed number of lock stripes covering its rows: rows are grouped into bands of
+ * {@link #BAND_HEIGHT} and every band is guarded by stripe {@code band % STRIPES}. Fragments in
+ * distinct bands can be written in parallel, readers never block each other.
+ */
+class ChartaLocks {
+
+  static final int BAND_HEIGHT = 64;
+  static final int STRIPES = 16;
+
+  private final Map<String, ChartaLock> locks = new ConcurrentHashMap<>();
+
+  /**
+   * Locks rows {@code [from, to)} of the image in shared or exclusive mode
+   *
+   * @param id    id of the image
+   * @param from  first locked row, may lie outside of the image
+   * @param to    row after the last locked one, may lie outside of the image
+   * @param write whether rows are going to be written
+   * @return lease releasing the locks when closed
+   */
+  Lease lockRows(String id, int from, int to, boolean write) {
+    ChartaLock lock = locks.computeIfAbsent(id, key -> new ChartaLock());
+    int firstBand = Math.max(0, from) / BAND_HEIGHT;
+    int lastBand = Math.max(0, to - 1) / BAND_HEIGHT;
+    boolean[] stripes = new boolean[STRIPES];
+    for (int band = firstBand; band <= lastBand && band - firstBand < STRIPES; ++band) {
+      stripes[band % STRIPES] = true;
+    }
+
+    Lease lease = new Lease();
+    lease.acquire(lock.image.readLock());
+    // stripes are always taken in ascending order, so writers can't deadlock on them
+    for (int i = 0; i < STRIPES; ++i) {
+      if (stripes[i]) {
+        ReadWriteLock stripe = lock.stripes[i];
+        lease.acquire(write ? stripe.writeLock() : stripe.readLock());
+      }
+    }
+    return lease;
+  }
+
+  /**
+   * Locks the whole image exclusively, waiting for all readers and writers of its rows
+   *
+   * @param id id of the image
+   * @return lease releasing the lock when closed
+   */
+  Lease lockImage(String id) {
+    Lease lease = new Lease();
+    lease.acquire(locks.computeIfAbsent(id, key -> new ChartaLock()).image.writeLock());
+    return lease;
+  }
+
+  /**
+   * Drops locks of a removed image
+   */
+  void forget(String id) {
+    locks.remove(id);
+  }
+
+  private static class ChartaLock {
+
+    private final ReadWriteLock image = new ReentrantReadWriteLock();
+    private final ReadWriteLock[] stripes = new ReadWriteLock[STRIPES];
+
+    private ChartaLock() {
+      for (int i = 0; i < STRIPES; ++i) {
+        stripes[i] = new ReentrantReadWriteLock();
+      }
+    }
+  }
+
+  /**
+   * Set of acquired locks released in reverse order on close
+   */
+  static class Lease implements AutoCloseable {
+
+    private final Lock[] held = new Lock[STRIPES + 1];
+    private int count;
+
+    private void acquire(Lock lock) {
+      lock.lock();
+      held[count++] = lock;
+    }
+
+    @Override
+    public void close() {
+      while (count > 0) {
+        held[--count].unlock();
+      }
+    }
+  }
+
+}
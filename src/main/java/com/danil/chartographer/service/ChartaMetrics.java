@@ -0,0 +1,131 @@
+package com.danil.chartographer.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import io.micrometer.core.instrument.composite.CompositeMeterRegistry;
+import org.springframework.stereotype.Component;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * ChartaMetrics times phases of charta operations and counts the bytes and pixels they move.
+ * Every phase is a {@code chartographer.phase} timer tagged with its name, so the time of a slow
+ * write splits into waiting for locks, decoding the request, writing rows, committing them and
+ * updating downsampled levels.
+ *
+ * <p>Meters live in a registry of their own that is bound to registries of the application once
+ * they are created, so the services measured never depend on the registries. Until then, and in
+ * services created outside of the application, nothing is published.
+ */
+@Component
+public class ChartaMetrics implements MeterBinder {
+
+  /**
+   * Waiting for locks of rows of a charta
+   */
+  public static final String LOCK = "lock";
+  /**
+   * Receiving and converting pixels of a fragment from a request
+   */
+  public static final String DECODE = "decode";
+  /**
+   * Copying pixels between images in memory
+   */
+  public static final String COPY = "copy";
+  /**
+   * Reading rows of a charta or of its levels
+   */
+  public static final String READ = "read";
+  /**
+   * Writing rows of a charta, including logging them
+   */
+  public static final String WRITE = "write";
+  /**
+   * Making written rows durable
+   */
+  public static final String COMMIT = "commit";
+  /**
+   * Sending pixels of a fragment as BMP
+   */
+  public static final String ENCODE = "encode";
+  /**
+   * Building and updating downsampled levels
+   */
+  public static final String PYRAMID = "pyramid";
+  /**
+   * Forcing a charta and emptying its log
+   */
+  public static final String CHECKPOINT = "checkpoint";
+
+  private final CompositeMeterRegistry registry = new CompositeMeterRegistry();
+  private final Map<String, Timer> phases = new ConcurrentHashMap<>();
+  private final Counter bytesRead;
+  private final Counter bytesWritten;
+  private final Counter pixelsCopied;
+
+  public ChartaMetrics() {
+    bytesRead = Counter.builder("chartographer.storage.read")
+            .baseUnit("bytes")
+            .description("Bytes of pixels read from chartas and their levels")
+            .register(registry);
+    bytesWritten = Counter.builder("chartographer.storage.written")
+            .baseUnit("bytes")
+            .description("Bytes of pixels written to chartas and their levels")
+            .register(registry);
+    pixelsCopied = Counter.builder("chartographer.pixels.copied")
+            .description("Pixels copied between images in memory")
+            .register(registry);
+  }
+
+  @Override
+  public void bindTo(MeterRegistry registry) {
+    this.registry.add(registry);
+  }
+
+  /**
+   * Returns the registry of meters of charta operations
+   */
+  public MeterRegistry getRegistry() {
+    return registry;
+  }
+
+  /**
+   * Returns the timer of a phase
+   */
+  public Timer phase(String name) {
+    return phases.computeIfAbsent(name, key -> Timer.builder("chartographer.phase")
+            .tag("phase", key)
+            .description("Time spent in a phase of charta operations")
+            .register(registry));
+  }
+
+  /**
+   * Records the time of a phase that started at given {@link System#nanoTime()}
+   */
+  public void record(String phase, long start) {
+    recordNanos(phase, System.nanoTime() - start);
+  }
+
+  /**
+   * Records time of a phase accumulated over several steps
+   */
+  public void recordNanos(String phase, long nanos) {
+    phase(phase).record(nanos, TimeUnit.NANOSECONDS);
+  }
+
+  public void bytesRead(long bytes) {
+    bytesRead.increment(bytes);
+  }
+
+  public void bytesWritten(long bytes) {
+    bytesWritten.increment(bytes);
+  }
+
+  public void pixelsCopied(long pixels) {
+    pixelsCopied.increment(pixels);
+  }
+}
@@ -0,0 +1,82 @@
+package com.danil.chartographer.service;
+
+import com.danil.chartographer.domain.ChartaVersion;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.LongSupplier;
+
+/**
+ * ChartaVersions keeps a counter of writes of every image accessed since the service started.
+ * Counters live in memory only, so tags are prefixed with the time the service started, and tags
+ * given out before a restart never match ones given out after it.
+ */
+class ChartaVersions {
+
+  private final String epoch = Long.toString(System.currentTimeMillis(), Character.MAX_RADIX);
+  private final Map<String, Counter> counters = new ConcurrentHashMap<>();
+
+  /**
+   * Starts counting writes of the image unless they are already counted
+   *
+   * @param lastModified supplies time of the last write of the image before it got counted
+   */
+  void register(String id, LongSupplier lastModified) {
+    counters.computeIfAbsent(id, key -> new Counter(lastModified.getAsLong()));
+  }
+
+  /**
+   * Returns the current version of the image or {@code null} if its writes aren't counted
+   */
+  ChartaVersion get(String id) {
+    Counter counter = counters.get(id);
+    return counter == null ? null : counter.toVersion();
+  }
+
+  /**
+   * Returns the current write counter of the image, which is {@code 0} if writes aren't counted
+   */
+  long getCount(String id) {
+    Counter counter = counters.get(id);
+    return counter == null ? 0 : counter.getCount();
+  }
+
+  /**
+   * Counts a write of the image that has completed
+   */
+  void bump(String id) {
+    counters.computeIfAbsent(id, key -> new Counter(0)).bump();
+  }
+
+  /**
+   * Stops counting writes of a removed image
+   */
+  void forget(String id) {
+    counters.remove(id);
+  }
+
+  private class Counter {
+
+    private long count;
+    private long lastModified;
+    private long previousModified;
+
+    private Counter(long lastModified) {
+      this.lastModified = lastModified;
+    }
+
+    private synchronized long getCount() {
+      return count;
+    }
+
+    private synchronized void bump() {
+      ++count;
+      previousModified = lastModified;
+      lastModified = System.currentTimeMillis();
+    }
+
+    private synchronized ChartaVersion toVersion() {
+      return new ChartaVersion(epoch + "-" + count, lastModified, previousModified);
+    }
+  }
+}
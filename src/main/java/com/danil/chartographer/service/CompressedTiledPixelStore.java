@@ -0,0 +1,185 @@
+package com.danil.chartographer.service;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * {@link PixelStore} over an image split into tiles compressed with a {@link TileCodec}. Tiles are
+ * {@link #TILE_HEIGHT} rows high, as high as bands of {@link ChartaLocks}, so a tile is never
+ * written by two stores at the same time. A tile is decompressed on first access, changed in
+ * memory and compressed back once the store moves to another row of tiles or is closed. Tiles that
+ * are entirely black are not kept at all.
+ *
+ * <p>Only tiles of a single row of tiles are held in memory, since fragments are read and written
+ * row by row.
+ */
+class CompressedTiledPixelStore implements PixelStore {
+
+  static final int TILE_HEIGHT = ChartaLocks.BAND_HEIGHT;
+
+  private final Path directory;
+  private final int width;
+  private final int height;
+  private final int tileWidth;
+  private final TileCodec codec;
+  private final Map<Integer, Tile> tiles = new HashMap<>();
+  private int tileRow = -1;
+
+  CompressedTiledPixelStore(Path directory, int width, int height, int tileWidth,
+                            TileCodec codec) {
+    this.directory = directory;
+    this.width = width;
+    this.height = height;
+    this.tileWidth = tileWidth;
+    this.codec = codec;
+  }
+
+  @Override
+  public int getWidth() {
+    return width;
+  }
+
+  @Override
+  public int getHeight() {
+    return height;
+  }
+
+  @Override
+  public void readRow(int x, int y, byte[] destination, int offset, int width)
+          throws IOException {
+    for (int column = x / tileWidth; column * tileWidth < x + width; ++column) {
+      int from = Math.max(x, column * tileWidth);
+      int to = Math.min(x + width, (column + 1) * tileWidth);
+      int start = offset + (from - x) * BmpHeader.BYTES_PER_PIXEL;
+      int length = (to - from) * BmpHeader.BYTES_PER_PIXEL;
+      Tile tile = tile(y / TILE_HEIGHT, column);
+      if (tile.pixels == null) {
+        Arrays.fill(destination, start, start + length, (byte) 0);
+      } else {
+        System.arraycopy(tile.pixels, position(from, y), destination, start, length);
+      }
+    }
+  }
+
+  @Override
+  public void writeRow(int x, int y, byte[] source, int offset, int width) throws IOException {
+    for (int column = x / tileWidth; column * tileWidth < x + width; ++column) {
+      int from = Math.max(x, column * tileWidth);
+      int to = Math.min(x + width, (column + 1) * tileWidth);
+      Tile tile = tile(y / TILE_HEIGHT, column);
+      if (tile.pixels == null) {
+        tile.pixels = new byte[tileWidth * TILE_HEIGHT * BmpHeader.BYTES_PER_PIXEL];
+      }
+      System.arraycopy(source, offset + (from - x) * BmpHeader.BYTES_PER_PIXEL, tile.pixels,
+                       position(from, y), (to - from) * BmpHeader.BYTES_PER_PIXEL);
+      tile.dirty = true;
+    }
+  }
+
+  /**
+   * Compresses changed tiles and forces all tiles of the image, since rows might have been written
+   * through other stores
+   */
+  @Override
+  public void force() throws IOException {
+    writeBack();
+    try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*.tile")) {
+      for (Path file : files) {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+          channel.force(false);
+        }
+      }
+    }
+  }
+
+  /**
+   * Returns position of pixel (x, y) of the image inside pixels of its tile
+   */
+  private int position(int x, int y) {
+    return ((y % TILE_HEIGHT) * tileWidth + x % tileWidth) * BmpHeader.BYTES_PER_PIXEL;
+  }
+
+  /**
+   * Returns the tile in given row and column of tiles, writing back tiles of the previous row of
+   * tiles if it is another one
+   */
+  private Tile tile(int row, int column) throws IOException {
+    if (row != tileRow) {
+      writeBack();
+      tiles.clear();
+      tileRow = row;
+    }
+    Tile tile = tiles.get(column);
+    if (tile == null) {
+      tile = new Tile(directory.resolve(TiledPixelStore.tileName(row, column)));
+      if (Files.exists(tile.file)) {
+        tile.pixels = new byte[tileWidth * TILE_HEIGHT * BmpHeader.BYTES_PER_PIXEL];
+        codec.decode(Files.readAllBytes(tile.file), tile.pixels);
+      }
+      tiles.put(column, tile);
+    }
+    return tile;
+  }
+
+  /**
+   * Compresses changed tiles into their files. A tile is written to a temporary file first and
+   * then moved in place, so readers and crashes never see it partially written.
+   */
+  private void writeBack() throws IOException {
+    for (Tile tile : tiles.values()) {
+      if (!tile.dirty) {
+        continue;
+      }
+      if (isBlack(tile.pixels)) {
+        Files.deleteIfExists(tile.file);
+      } else {
+        Path temporary = tile.file.resolveSibling(tile.file.getFileName() + ".tmp");
+        Files.write(temporary, codec.encode(tile.pixels));
+        Files.move(temporary, tile.file, StandardCopyOption.ATOMIC_MOVE,
+                   StandardCopyOption.REPLACE_EXISTING);
+      }
+      tile.dirty = false;
+    }
+  }
+
+  private static boolean isBlack(byte[] pixels) {
+    for (byte pixel : pixels) {
+      if (pixel != 0) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  @Override
+  public void close() throws IOException {
+    try {
+      writeBack();
+    } finally {
+      tiles.clear();
+    }
+  }
+
+  /**
+   * Decompressed tile. Pixels are {@code null} while the tile doesn't exist.
+   */
+  private static class Tile {
+
+    private final Path file;
+    private byte[] pixels;
+    private boolean dirty;
+
+    private Tile(Path file) {
+      this.file = file;
+    }
+  }
+
+}
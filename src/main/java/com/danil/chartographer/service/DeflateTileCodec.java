@@ -0,0 +1,62 @@
+package com.danil.chartographer.service;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * {@link TileCodec} compressing tiles with Deflate. The fastest compression level is used, since
+ * tiles are recompressed on every write and large black or uniform areas compress well anyway.
+ */
+class DeflateTileCodec implements TileCodec {
+
+  static final byte ID = 1;
+
+  @Override
+  public byte getId() {
+    return ID;
+  }
+
+  @Override
+  public byte[] encode(byte[] pixels) {
+    Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+    try {
+      deflater.setInput(pixels);
+      deflater.finish();
+      ByteArrayOutputStream out = new ByteArrayOutputStream(pixels.length / 4);
+      byte[] buffer = new byte[8192];
+      while (!deflater.finished()) {
+        out.write(buffer, 0, deflater.deflate(buffer));
+      }
+      return out.toByteArray();
+    } finally {
+      deflater.end();
+    }
+  }
+
+  @Override
+  public void decode(byte[] data, byte[] pixels) throws IOException {
+    Inflater inflater = new Inflater();
+    try {
+      inflater.setInput(data);
+      int length = 0;
+      while (length < pixels.length && !inflater.finished()) {
+        int inflated = inflater.inflate(pixels, length, pixels.length - length);
+        if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+          break;
+        }
+        length += inflated;
+      }
+      if (length != pixels.length || !inflater.finished()) {
+        throw new IOException("Tile is corrupted");
+      }
+    } catch (DataFormatException e) {
+      throw new IOException("Tile is corrupted", e);
+    } finally {
+      inflater.end();
+    }
+  }
+
+}
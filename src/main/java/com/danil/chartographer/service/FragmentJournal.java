@@ -0,0 +1,511 @@
+package com.danil.chartographer.service;
+
+import com.danil.chartographer.domain.Fragment;
+import com.danil.chartographer.domain.FragmentStatus;
+import com.danil.chartographer.exception.ImageFormatException;
+import com.danil.chartographer.exception.NoSuchIdException;
+import com.danil.chartographer.exception.SizeException;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * FragmentJournal accepts fragments for writing them behind. An accepted fragment is streamed into
+ * the journal of its image, {@code <id>.journal} next to the image, and forced to disk, then
+ * background threads merge fragments pending for the image into it with {@link
+ * ImageService#saveFragments} calls. Pending fragments stay in the journal, only the batch being
+ * merged is read into memory. Once nothing is pending, the journal is deleted. Journals left after
+ * a crash are merged on startup by {@link #recover()}.
+ *
+ * <p>Readers call {@link #await} before reading an image, which merges its pending fragments right
+ * away, so a fragment is visible to every read that starts after it was accepted. When pending
+ * fragments take more than {@code chartographer.journal.max-bytes}, the fragment is merged by the
+ * thread that appended it. Enabled with {@code chartographer.journal.enabled}.
+ */
+@Slf4j
+@Component
+public class FragmentJournal {
+
+  private static final String EXTENSION = ".journal";
+  private static final int ENTRY_HEADER = 5 * Integer.BYTES;
+  private static final int COPY_BUFFER = 64 * 1024;
+  /**
+   * Bytes of fragments read from a journal for a single merge, a larger fragment is merged alone
+   */
+  private static final long MAX_BATCH_BYTES = 64L * 1024 * 1024;
+
+  private final ImageService imageService;
+  private final String directory;
+  private final boolean enabled;
+  private final long maxBytes;
+  private final ExecutorService executor;
+  private final Map<String, Journal> journals = new ConcurrentHashMap<>();
+  private final AtomicLong pendingBytes = new AtomicLong();
+
+  /**
+   * @param imageService service into which fragments are merged
+   * @param args         command line arguments containing the directory of images
+   * @param enabled      whether fragments are written behind
+   * @param threads      number of threads merging fragments
+   * @param maxBytes     size of pending fragments above which they are merged synchronously
+   */
+  public FragmentJournal(ImageService imageService, ApplicationArguments args,
+                         @Value("${chartographer.journal.enabled:false}") boolean enabled,
+                         @Value("${chartographer.journal.threads:2}") int threads,
+                         @Value("${chartographer.journal.max-bytes:268435456}") long maxBytes) {
+    this.imageService = imageService;
+    this.directory = args.getNonOptionArgs().get(0);
+    this.enabled = enabled;
+    this.maxBytes = maxBytes;
+    if (enabled) {
+      executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                                        new LinkedBlockingQueue<>(), runnable -> {
+        Thread thread = new Thread(runnable, "fragment-journal");
+        thread.setDaemon(true);
+        return thread;
+      });
+    } else {
+      executor = null;
+    }
+  }
+
+  public boolean isEnabled() {
+    return enabled;
+  }
+
+  /**
+   * Loads journals left by a previous run and schedules merging them. Must be called after
+   * {@link ImageService#recover()}, since fragments written behind are newer than logged writes.
+   */
+  public void recover() throws IOException {
+    if (!enabled) {
+      return;
+    }
+    File[] files = new File(directory).listFiles((dir, name) -> name.endsWith(EXTENSION));
+    if (files == null) {
+      return;
+    }
+    for (File file : files) {
+      String name = file.getName();
+      Journal journal = journal(name.substring(0, name.length() - EXTENSION.length()));
+      synchronized (journal) {
+        for (Entry entry : read(file.toPath())) {
+          journal.pending.add(entry);
+          pendingBytes.addAndGet(entry.length);
+        }
+      }
+      log.info("Recovered {} fragments of charta {}", journal.pending.size(), journal.id);
+      schedule(journal);
+    }
+  }
+
+  /**
+   * Streams a fragment from the stream into the journal of the image, checking it on the way, and
+   * schedules merging it. The fragment may take no more than {@link BmpHeader#maxFileSize} bytes,
+   * nothing is kept in the journal if it is rejected.
+   *
+   * @param id   id of the image
+   * @param data stream of the fragment in BMP format
+   * @throws SizeException        if sizes of the fragment don't match its header
+   * @throws ImageFormatException if the fragment isn't a valid BMP image of its sizes
+   * @throws IOException          if the fragment can't be read or the journal can't be written
+   */
+  public void append(String id, int x, int y, int width, int height, InputStream data)
+          throws IOException {
+    Journal journal = journal(id);
+    Entry entry;
+    // fragments of the image are appended one by one, so they are merged in the order accepted
+    journal.appending.lock();
+    try {
+      entry = journal.write(x, y, width, height, data);
+      synchronized (journal) {
+        journal.pending.add(entry);
+      }
+    } finally {
+      journal.appending.unlock();
+    }
+    if (pendingBytes.addAndGet(entry.length) > maxBytes) {
+      merge(journal);
+    } else {
+      schedule(journal);
+    }
+  }
+
+  /**
+   * Merges fragments pending for the image, so that reads see all accepted fragments
+   */
+  public void await(String id) throws IOException {
+    Journal journal = journals.get(id);
+    if (journal != null) {
+      merge(journal);
+    }
+  }
+
+  /**
+   * Returns whether fragments accepted for the image haven't all been merged yet
+   */
+  public boolean hasPending(String id) {
+    Journal journal = journals.get(id);
+    if (journal == null) {
+      return false;
+    }
+    synchronized (journal) {
+      return !journal.pending.isEmpty();
+    }
+  }
+
+  /**
+   * Drops fragments pending for the image together with its journal. Used when the image is
+   * removed.
+   */
+  public void discard(String id) throws IOException {
+    Journal journal = journals.remove(id);
+    if (journal == null) {
+      return;
+    }
+    journal.merging.lock();
+    try {
+      synchronized (journal) {
+        clear(journal, journal.pending.size());
+      }
+    } finally {
+      journal.merging.unlock();
+    }
+  }
+
+  public long getPendingBytes() {
+    return pendingBytes.get();
+  }
+
+  private Journal journal(String id) {
+    return journals.computeIfAbsent(id, key -> new Journal(key,
+                                                           Path.of(directory, key + EXTENSION)));
+  }
+
+  private void schedule(Journal journal) {
+    if (journal.scheduled.compareAndSet(false, true)) {
+      executor.execute(() -> {
+        journal.scheduled.set(false);
+        try {
+          merge(journal);
+        } catch (IOException | RuntimeException e) {
+          log.error("Unable to merge fragments of charta " + journal.id, e);
+        }
+      });
+    }
+  }
+
+  /**
+   * Saves fragments pending for the image when the merge starts, in batches of at most {@link
+   * #MAX_BATCH_BYTES} bytes. Only one merge of an image runs at a time, fragments appended
+   * meanwhile wait for the next one.
+   */
+  private void merge(Journal journal) throws IOException {
+    journal.merging.lock();
+    try {
+      int remaining;
+      synchronized (journal) {
+        remaining = journal.pending.size();
+      }
+      while (remaining > 0) {
+        List<Entry> batch = new ArrayList<>();
+        long bytes = 0;
+        synchronized (journal) {
+          for (Entry entry : journal.pending) {
+            if (batch.size() == remaining
+                || !batch.isEmpty() && bytes + entry.length > MAX_BATCH_BYTES) {
+              break;
+            }
+            batch.add(entry);
+            bytes += entry.length;
+          }
+        }
+        List<Fragment> fragments = new ArrayList<>(batch.size());
+        for (Entry entry : batch) {
+          fragments.add(journal.read(entry));
+        }
+        try {
+          List<FragmentStatus> statuses = imageService.saveFragments(journal.id, fragments);
+          for (FragmentStatus status : statuses) {
+            if (!status.isSaved()) {
+              log.warn("Fragment of charta {} is dropped: {}", journal.id, status.getMessage());
+            }
+          }
+        } catch (NoSuchIdException e) {
+          log.warn("Fragments of removed charta {} are dropped", journal.id);
+        }
+        synchronized (journal) {
+          clear(journal, batch.size());
+        }
+        remaining -= batch.size();
+      }
+    } finally {
+      journal.merging.unlock();
+    }
+  }
+
+  /**
+   * Removes first fragments from pending ones, deleting the journal once nothing is pending and
+   * no fragment is being appended. Must be called while the monitor of the journal is held.
+   */
+  private void clear(Journal journal, int count) throws IOException {
+    List<Entry> merged = journal.pending.subList(0, count);
+    for (Entry entry : merged) {
+      pendingBytes.addAndGet(-entry.length);
+    }
+    merged.clear();
+    // a journal being appended to is deleted by a later merge
+    if (journal.pending.isEmpty() && journal.appending.tryLock()) {
+      try {
+        journal.delete();
+      } finally {
+        journal.appending.unlock();
+      }
+    }
+  }
+
+  /**
+   * Reads entries of a journal. The journal ends at the first entry that can't hold a fragment of
+   * its sizes, such as one cut short by a crash while it was being appended, which has never been
+   * accepted. Such an entry is cut off together with everything after it.
+   */
+  private static List<Entry> read(Path file) throws IOException {
+    List<Entry> entries = new ArrayList<>();
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ,
+                                                StandardOpenOption.WRITE)) {
+      long size = channel.size();
+      long position = 0;
+      ByteBuffer header = ByteBuffer.allocate(ENTRY_HEADER);
+      while (position + ENTRY_HEADER <= size) {
+        header.clear();
+        readFully(channel, header, position);
+        header.flip();
+        int x = header.getInt();
+        int y = header.getInt();
+        int width = header.getInt();
+        int height = header.getInt();
+        int length = header.getInt();
+        long offset = position + ENTRY_HEADER;
+        if (!isValid(width, height, length, size - offset)) {
+          break;
+        }
+        entries.add(new Entry(x, y, width, height, offset, length));
+        position = offset + length;
+      }
+      if (position < size) {
+        log.warn("Journal {} is damaged after {} fragments, the rest of it is dropped", file,
+                 entries.size());
+        channel.truncate(position);
+      }
+    }
+    return entries;
+  }
+
+  /**
+   * Returns whether an entry of a journal may hold a fragment of given sizes in {@code length}
+   * bytes, {@code remaining} bytes being left in the journal
+   */
+  private static boolean isValid(int width, int height, int length, long remaining) {
+    if (width < 0 || height < 0 || length < BmpHeader.SIZE || length > remaining) {
+      return false;
+    }
+    return (long) width * height <= length / BmpHeader.BYTES_PER_PIXEL
+           && length <= BmpHeader.maxFileSize(width, height);
+  }
+
+  private static void readFully(FileChannel channel, ByteBuffer buffer, long position)
+          throws IOException {
+    while (buffer.hasRemaining()) {
+      if (channel.read(buffer, position + buffer.position()) < 0) {
+        throw new EOFException();
+      }
+    }
+  }
+
+  private static void writeFully(FileChannel channel, ByteBuffer buffer, long position)
+          throws IOException {
+    while (buffer.hasRemaining()) {
+      channel.write(buffer, position + buffer.position());
+    }
+  }
+
+  /**
+   * Merges all pending fragments before shutting down, so that a clean shutdown leaves no
+   * journals
+   */
+  @PreDestroy
+  public void close() {
+    if (executor == null) {
+      return;
+    }
+    executor.shutdown();
+    for (Journal journal : journals.values()) {
+      try {
+        merge(journal);
+        synchronized (journal) {
+          journal.close();
+        }
+      } catch (IOException | RuntimeException e) {
+        log.error("Unable to merge fragments of charta " + journal.id, e);
+      }
+    }
+  }
+
+  /**
+   * Fragment kept in a journal, {@code length} bytes of it start at {@code offset}
+   */
+  private static class Entry {
+
+    private final int x;
+    private final int y;
+    private final int width;
+    private final int height;
+    private final long offset;
+    private final int length;
+
+    private Entry(int x, int y, int width, int height, long offset, int length) {
+      this.x = x;
+      this.y = y;
+      this.width = width;
+      this.height = height;
+      this.offset = offset;
+      this.length = length;
+    }
+  }
+
+  private static class Journal {
+
+    private final String id;
+    private final Path file;
+    private final List<Entry> pending = new ArrayList<>();
+    private final ReentrantLock merging = new ReentrantLock();
+    /**
+     * Held while a fragment is being appended, the journal isn't deleted meanwhile
+     */
+    private final ReentrantLock appending = new ReentrantLock();
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+    private FileChannel channel;
+
+    private Journal(String id, Path file) {
+      this.id = id;
+      this.file = file;
+    }
+
+    /**
+     * Streams a fragment to the end of the journal and forces it to disk. The header of the entry
+     * is written last, once the length of the fragment is known, and only after the fragment has
+     * been forced: a header reaching the disk before its fragment would make recovery replay
+     * whatever the disk held there. A rejected fragment is cut off.
+     * Must be called while {@link #appending} is held, so fragments are streamed one at a time.
+     */
+    private Entry write(int x, int y, int width, int height, InputStream in) throws IOException {
+      FileChannel channel = channel();
+      long start;
+      synchronized (this) {
+        // entries left in the journal when nothing is pending are merged already
+        if (pending.isEmpty()) {
+          channel.truncate(0);
+        }
+        start = channel.size();
+      }
+      long offset = start + ENTRY_HEADER;
+      try {
+        byte[] buffer = new byte[COPY_BUFFER];
+        int read = in.readNBytes(buffer, 0, BmpHeader.SIZE);
+        BmpHeader header;
+        try {
+          header = BmpHeader.read(ByteBuffer.wrap(buffer, 0, read));
+        } catch (IOException e) {
+          throw new ImageFormatException(e.getMessage());
+        }
+        if (header.getWidth() != width || header.getHeight() != height) {
+          throw new SizeException("Provided sizes do not match sizes of fragment");
+        }
+        long maxLength = Math.min(BmpHeader.maxFileSize(width, height), Integer.MAX_VALUE);
+        long length = 0;
+        do {
+          length += read;
+          if (length > maxLength) {
+            throw new ImageFormatException("Fragment is larger than an image of its sizes");
+          }
+          writeFully(channel, ByteBuffer.wrap(buffer, 0, read), offset + length - read);
+        } while ((read = in.read(buffer)) >= 0);
+        if (length < header.getFileSize()) {
+          throw new ImageFormatException("Fragment is truncated");
+        }
+        channel.force(false);
+        writeFully(channel, ByteBuffer.allocate(ENTRY_HEADER)
+                .putInt(x)
+                .putInt(y)
+                .putInt(width)
+                .putInt(height)
+                .putInt((int) length)
+                .flip(), start);
+        channel.force(false);
+        return new Entry(x, y, width, height, offset, (int) length);
+      } catch (IOException | RuntimeException e) {
+        synchronized (this) {
+          if (pending.isEmpty()) {
+            delete();
+          } else {
+            channel.truncate(start);
+          }
+        }
+        throw e;
+      }
+    }
+
+    /**
+     * Reads a pending fragment from the journal
+     */
+    private Fragment read(Entry entry) throws IOException {
+      ByteBuffer data = ByteBuffer.allocate(entry.length);
+      readFully(channel(), data, entry.offset);
+      return new Fragment(entry.x, entry.y, entry.width, entry.height, data.array());
+    }
+
+    private synchronized FileChannel channel() throws IOException {
+      if (channel == null) {
+        channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                                   StandardOpenOption.WRITE);
+      }
+      return channel;
+    }
+
+    private void delete() throws IOException {
+      close();
+      Files.deleteIfExists(file);
+    }
+
+    private void close() throws IOException {
+      if (channel != null) {
+        channel.close();
+        channel = null;
+      }
+    }
+  }
+
+}
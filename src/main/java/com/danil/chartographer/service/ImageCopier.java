@@ -0,0 +1,128 @@
+package com.danil.chartographer.service;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
+
+/**
+ * Copies rectangular areas between {@link BufferedImage} images. When both images have the same
+ * standard type and color model, rows are moved between their backing arrays with {@link
+ * System#arraycopy}. Otherwise every row is converted through its RGB representation in a single
+ * bulk call.
+ */
+final class ImageCopier {
+
+  private ImageCopier() {
+  }
+
+  /**
+   * Copies pixels from the area of {@code source} starting at (x0, y0) to the area of {@code
+   * destination} starting at (x1, y1). Parts of the area lying outside of either image are
+   * skipped.
+   *
+   * @return number of pixels copied, which is the area clipped to both images
+   */
+  static long copy(int x0, int y0, int x1, int y1, int width, int height, BufferedImage source,
+                   BufferedImage destination) {
+    int left = Math.max(0, Math.max(-x0, -x1));
+    int top = Math.max(0, Math.max(-y0, -y1));
+    int right = Math.min(width, Math.min(source.getWidth() - x0, destination.getWidth() - x1));
+    int bottom = Math.min(height,
+                          Math.min(source.getHeight() - y0, destination.getHeight() - y1));
+    if (left >= right || top >= bottom) {
+      return 0;
+    }
+
+    copyRows(x0 + left, y0, x1 + left, y1, right - left, top, bottom, source, destination);
+    return (long) (right - left) * (bottom - top);
+  }
+
+  /**
+   * Copies rows {@code [from, to)} of the area, counted from (x0, y0) and (x1, y1). The rows must
+   * already be clipped to both images.
+   */
+  static void copyRows(int x0, int y0, int x1, int y1, int width, int from, int to,
+                       BufferedImage source, BufferedImage destination) {
+    // rows are copied from the bottom when they may overlap with rows that are not copied yet
+    boolean backwards = source == destination && y1 > y0;
+    if (hasSameLayout(source, destination)) {
+      WritableRaster src = source.getRaster();
+      WritableRaster dst = destination.getRaster();
+      Object srcData = data(src.getDataBuffer());
+      Object dstData = data(dst.getDataBuffer());
+      int pixelStride = pixelStride(src);
+      int length = width * pixelStride;
+      for (int k = 0; k < to - from; ++k) {
+        int j = backwards ? to - 1 - k : from + k;
+        System.arraycopy(srcData, offset(src, x0, y0 + j), dstData, offset(dst, x1, y1 + j),
+                         length);
+      }
+    } else {
+      int[] row = new int[width];
+      for (int k = 0; k < to - from; ++k) {
+        int j = backwards ? to - 1 - k : from + k;
+        source.getRGB(x0, y0 + j, width, 1, row, 0, width);
+        destination.setRGB(x1, y1 + j, width, 1, row, 0, width);
+      }
+    }
+  }
+
+  private static boolean hasSameLayout(BufferedImage source, BufferedImage destination) {
+    int type = source.getType();
+    if (type == BufferedImage.TYPE_CUSTOM || type != destination.getType()) {
+      return false;
+    }
+    // indexed images of the same type may have different palettes
+    if (!source.getColorModel().equals(destination.getColorModel())) {
+      return false;
+    }
+    return isArrayBacked(source.getRaster()) && isArrayBacked(destination.getRaster());
+  }
+
+  private static boolean isArrayBacked(WritableRaster raster) {
+    DataBuffer buffer = raster.getDataBuffer();
+    if (buffer.getNumBanks() != 1) {
+      return false;
+    }
+    if (buffer instanceof DataBufferByte) {
+      return raster.getSampleModel() instanceof ComponentSampleModel;
+    }
+    return buffer instanceof DataBufferInt
+           && raster.getSampleModel() instanceof SinglePixelPackedSampleModel;
+  }
+
+  private static Object data(DataBuffer buffer) {
+    if (buffer instanceof DataBufferByte) {
+      return ((DataBufferByte) buffer).getData();
+    }
+    return ((DataBufferInt) buffer).getData();
+  }
+
+  private static int pixelStride(WritableRaster raster) {
+    if (raster.getSampleModel() instanceof ComponentSampleModel) {
+      return ((ComponentSampleModel) raster.getSampleModel()).getPixelStride();
+    }
+    return 1;
+  }
+
+  private static int scanlineStride(WritableRaster raster) {
+    if (raster.getSampleModel() instanceof ComponentSampleModel) {
+      return ((ComponentSampleModel) raster.getSampleModel()).getScanlineStride();
+    }
+    return ((SinglePixelPackedSampleModel) raster.getSampleModel()).getScanlineStride();
+  }
+
+  /**
+   * Returns position in the backing array of the first element of pixel (x, y)
+   */
+  private static int offset(WritableRaster raster, int x, int y) {
+    return raster.getDataBuffer().getOffset()
+           + (y - raster.getSampleModelTranslateY()) * scanlineStride(raster)
+           + (x - raster.getSampleModelTranslateX()) * pixelStride(raster);
+  }
+
+}
@@ -1,7 +1,15 @@
 package com.danil.chartographer.service;
 
+import com.danil.chartographer.domain.ChartaVersion;
+import com.danil.chartographer.domain.Fragment;
+import com.danil.chartographer.domain.FragmentStatus;
+import java.awt.Dimension;
+import java.awt.Rectangle;
 import java.awt.image.BufferedImage;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.List;
 
 /**
  * ImageService is an interface for working with {@link BufferedImage} images. It is used for their
@@ -26,9 +34,112 @@ public interface ImageService {
    */
   BufferedImage getImage(String id) throws IOException;
 
+  /**
+   * Returns sizes of the image without reading its pixels
+   *
+   * @param id id of the image
+   * @return width and height of the image
+   * @throws IOException if an error occurs during reading
+   */
+  Dimension getSize(String id) throws IOException;
+
+  /**
+   * Returns the current version of the image, which changes after every write to it. Versions are
+   * kept in memory, so looking them up never touches the storage.
+   *
+   * @param id id of the image
+   * @return version of the image or {@code null} if the image hasn't been accessed since the
+   *         service started
+   */
+  ChartaVersion getVersion(String id);
+
+  /**
+   * Returns sizes of a downsampled level of the image. Level 0 is the image itself, every next
+   * level is half as large as the previous one.
+   *
+   * @param id    id of the image
+   * @param level level of the image
+   * @return width and height of the level
+   * @throws IOException if an error occurs during reading
+   */
+  Dimension getSize(String id, int level) throws IOException;
+
+  /**
+   * Reads a fragment of the image with given id starting at point (x, y). Only rows covered by the
+   * fragment are read, parts of the fragment lying outside of the image are black.
+   *
+   * @param id id of the image
+   * @return fragment of {@link BufferedImage#TYPE_3BYTE_BGR} type
+   * @throws IOException if an error occurs during reading
+   */
+  BufferedImage getFragment(String id, int x, int y, int width, int height) throws IOException;
+
+  /**
+   * Reads several fragments of the image with given id at once. Every row of the image is read
+   * only once, even if it's covered by several fragments: the span of the row covering all of them
+   * is read and then copied to each fragment. Parts of fragments lying outside of the image are
+   * black.
+   *
+   * @param id    id of the image
+   * @param areas positions and sizes of fragments
+   * @return fragments in off-heap buffers in the given order, which the caller must close
+   * @throws IOException if an error occurs during reading
+   */
+  List<PixelBuffer> getFragments(String id, List<Rectangle> areas) throws IOException;
+
+  /**
+   * Writes a fragment of the image with given id starting at point (x, y) to the stream as a BMP
+   * image. The fragment is never built in memory: rows are read from the stored image one by one
+   * and written to the stream bottom-up, the way they are laid out in a BMP file.
+   *
+   * @param id  id of the image
+   * @param out stream to write the fragment to
+   * @throws IOException if an error occurs during reading or writing
+   */
+  void writeFragment(String id, int x, int y, int width, int height, OutputStream out)
+          throws IOException;
+
+  /**
+   * Writes a fragment of a downsampled level of the image to the stream as a BMP image. Point (x,
+   * y) and sizes of the fragment are given in pixels of the level.
+   *
+   * @param id    id of the image
+   * @param level level of the image, 0 is the image itself
+   * @param out   stream to write the fragment to
+   * @throws IOException if an error occurs during reading or writing
+   */
+  void writeFragment(String id, int level, int x, int y, int width, int height, OutputStream out)
+          throws IOException;
+
+  /**
+   * Writes bytes {@code [from, to)} of a fragment of a downsampled level of the image, encoded as
+   * a BMP image, to the stream. Rows of a BMP image have fixed size, so only rows holding these
+   * bytes are read.
+   *
+   * @param id    id of the image
+   * @param level level of the image, 0 is the image itself
+   * @param from  position of the first byte to write
+   * @param to    position after the last byte to write, no greater than the size of the BMP file
+   * @param out   stream to write bytes of the fragment to
+   * @throws IOException if an error occurs during reading or writing
+   */
+  void writeFragment(String id, int level, int x, int y, int width, int height, long from,
+                     long to, OutputStream out) throws IOException;
+
+  /**
+   * Writes a fragment into the image with given id starting at point (x, y). Only rows covered by
+   * the fragment are written, parts of the fragment lying outside of the image are ignored.
+   *
+   * @param id       id of the image
+   * @param fragment image to put into the stored one
+   * @throws IOException if an error occurs during reading or writing
+   */
+  void saveFragment(String id, int x, int y, BufferedImage fragment) throws IOException;
+
   /**
    * Copies {@code width * height} pixels from source {@link BufferedImage} starting at point (x0,
-   * y0) to destination {@link BufferedImage} starting at point (x1, y1)
+   * y0) to destination {@link BufferedImage} starting at point (x1, y1). Pixels lying outside of
+   * either image are skipped. Images of the same type are copied by whole rows.
    *
    * @param x0          horizontal coordinate from where to start copying
    * @param y0          vertical coordinate from where to start copying
@@ -49,6 +160,36 @@ public interface ImageService {
    */
   void save(BufferedImage image, String name) throws IOException;
 
+  /**
+   * Reads a BMP image of size {@code width * height} from the stream and writes it into the image
+   * with given id starting at point (x, y). The fragment is never built in memory: the header is
+   * validated first and then rows are moved from the stream to the stored image one by one. Parts
+   * of the fragment lying outside of the image are ignored.
+   *
+   * @param id id of the image
+   * @param in stream containing the fragment in BMP format
+   * @throws IOException if an error occurs during reading or writing
+   * @throws com.danil.chartographer.exception.SizeException        if sizes of the fragment don't
+   *                                                                 match the given ones
+   * @throws com.danil.chartographer.exception.ImageFormatException if the fragment isn't an
+   *                                                                 uncompressed 24-bit BMP image
+   */
+  void saveFragment(String id, int x, int y, int width, int height, InputStream in)
+          throws IOException;
+
+  /**
+   * Saves a batch of fragments into the image with given id in a single pass. Fragments are applied
+   * in the order of rows they cover, unless some of them overlap, and then in the given order. The
+   * rows of the batch are locked once, and changed rows are flushed to storage once at the end. A
+   * fragment that is malformed or whose sizes don't match is skipped and doesn't affect the others.
+   *
+   * @param id        id of the image
+   * @param fragments fragments in BMP format
+   * @return statuses of fragments in the given order
+   * @throws IOException if an error occurs during reading or writing
+   */
+  List<FragmentStatus> saveFragments(String id, List<Fragment> fragments) throws IOException;
+
   /**
    * Removes an image from file by given id
    *
@@ -66,6 +207,24 @@ public interface ImageService {
    */
   BufferedImage decryptImage(byte[] data) throws IOException;
 
+  /**
+   * Writes {@link BufferedImage} image to the stream in BMP format row by row
+   *
+   * @param image image to serialize
+   * @param out   stream to write the image to
+   * @throws IOException if an error occurs during writing
+   */
+  void encryptImage(BufferedImage image, OutputStream out) throws IOException;
+
+  /**
+   * Writes pixels of the buffer to the stream in BMP format row by row
+   *
+   * @param buffer buffer to serialize
+   * @param out    stream to write the image to
+   * @throws IOException if an error occurs during writing
+   */
+  void encryptImage(PixelBuffer buffer, OutputStream out) throws IOException;
+
   /**
    * Serializes {@link BufferedImage} image into bytes array
    *
@@ -77,4 +236,20 @@ public interface ImageService {
 
   String getPathForSaving();
 
+  /**
+   * Loads the index of stored images saved by the previous run. Sizes and existence of indexed
+   * images are answered from memory right away, while entries are verified against files of
+   * images in the background, so loading doesn't take longer with the number of images.
+   *
+   * @throws IOException if an error occurs during reading the index
+   */
+  void loadIndex() throws IOException;
+
+  /**
+   * Brings stored images up to date after a crash by replaying logged fragment writes that might
+   * not have reached them
+   *
+   * @throws IOException if an error occurs during reading or writing
+   */
+  void recover() throws IOException;
 }
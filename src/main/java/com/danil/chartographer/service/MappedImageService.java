@@ -0,0 +1,112 @@
+package com.danil.chartographer.service;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Service;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Implementation of {@link ImageService} that keeps the same BMP files as {@link BmpImageService},
+ * but serves fragments from memory mapped pixel arrays. Mappings are created once per image and
+ * reused, so hot images are served from the page cache. Mappings of at most {@code
+ * chartographer.mapped.max-images} images are kept, the least recently used ones are dropped and
+ * unmapped once requests still using them are done. Enabled with {@code
+ * chartographer.storage=mapped}.
+ */
+@Service
+@ConditionalOnProperty(name = "chartographer.storage", havingValue = "mapped")
+public class MappedImageService extends BmpImageService {
+
+  private final Map<String, MappedPixelStore> stores = new LinkedHashMap<>(16, 0.75f, true) {
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<String, MappedPixelStore> eldest) {
+      return size() > maxImages;
+    }
+  };
+  private int maxImages = 256;
+
+  /**
+   * Takes command line arguments and finds there a directory for saving images
+   *
+   * @param args command line arguments
+   */
+  public MappedImageService(ApplicationArguments args) {
+    super(args);
+  }
+
+  /**
+   * Sets the number of images whose mappings are kept for reuse
+   */
+  @Autowired
+  public void setMaxImages(@Value("${chartographer.mapped.max-images:256}") int maxImages) {
+    synchronized (stores) {
+      this.maxImages = Math.max(1, maxImages);
+    }
+  }
+
+  /**
+   * Returns the number of images whose mappings are kept
+   */
+  int getMappedImages() {
+    synchronized (stores) {
+      return stores.size();
+    }
+  }
+
+  @Override
+  protected void writeImage(BufferedImage image, String name) throws IOException {
+    synchronized (stores) {
+      stores.remove(name);
+    }
+    super.writeImage(image, name);
+  }
+
+  @Override
+  protected void deleteImage(String id) throws IOException {
+    synchronized (stores) {
+      stores.remove(id);
+    }
+    super.deleteImage(id);
+  }
+
+  /**
+   * Mapped images are already served from the page cache
+   */
+  @Override
+  protected boolean isCacheable(String id) {
+    return false;
+  }
+
+  @Override
+  protected PixelStore open(String id) throws IOException {
+    MappedPixelStore store;
+    synchronized (stores) {
+      store = stores.get(id);
+    }
+    if (store == null) {
+      try (FileChannel channel = FileChannel.open(getImageFile(id).toPath(),
+                                                  StandardOpenOption.READ,
+                                                  StandardOpenOption.WRITE)) {
+        store = new MappedPixelStore(channel, getHeader(id));
+      } catch (NoSuchFileException e) {
+        throw missing(id);
+      }
+      // images are mapped outside of the lock, so that a large image doesn't hold up others
+      synchronized (stores) {
+        MappedPixelStore existing = stores.putIfAbsent(id, store);
+        return existing == null ? store : existing;
+      }
+    }
+    getImageFile(id);
+    return store;
+  }
+}
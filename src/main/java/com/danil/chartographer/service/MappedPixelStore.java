@@ -0,0 +1,76 @@
+package com.danil.chartographer.service;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * {@link PixelStore} over a memory mapped BMP file. The pixel array is mapped in windows of whole
+ * rows no longer than {@link #WINDOW_SIZE} bytes each, which keeps every window under the int index
+ * limit of {@link MappedByteBuffer}. Rows are copied straight between mapped memory and caller's
+ * arrays. A store is shared between requests, so closing it does nothing.
+ */
+class MappedPixelStore implements PixelStore {
+
+  static final int WINDOW_SIZE = 1 << 30;
+
+  private final BmpHeader header;
+  private final int rowsPerWindow;
+  private final MappedByteBuffer[] windows;
+
+  MappedPixelStore(FileChannel channel, BmpHeader header) throws IOException {
+    this.header = header;
+    this.rowsPerWindow = Math.max(1, WINDOW_SIZE / Math.max(1, header.getRowSize()));
+    int count = (header.getHeight() + rowsPerWindow - 1) / rowsPerWindow;
+    this.windows = new MappedByteBuffer[count];
+    for (int i = 0; i < count; ++i) {
+      int rows = Math.min(rowsPerWindow, header.getHeight() - i * rowsPerWindow);
+      long position = header.getPixelOffset() + (long) i * rowsPerWindow * header.getRowSize();
+      windows[i] = channel.map(FileChannel.MapMode.READ_WRITE, position,
+                               (long) rows * header.getRowSize());
+    }
+  }
+
+  @Override
+  public int getWidth() {
+    return header.getWidth();
+  }
+
+  @Override
+  public int getHeight() {
+    return header.getHeight();
+  }
+
+  @Override
+  public void readRow(int x, int y, byte[] destination, int offset, int width) {
+    window(x, y).get(destination, offset, width * BmpHeader.BYTES_PER_PIXEL);
+  }
+
+  @Override
+  public void writeRow(int x, int y, byte[] source, int offset, int width) {
+    window(x, y).put(source, offset, width * BmpHeader.BYTES_PER_PIXEL);
+  }
+
+  @Override
+  public void force() {
+    for (MappedByteBuffer window : windows) {
+      window.force();
+    }
+  }
+
+  /**
+   * Returns a view of the window containing given row positioned at pixel (x, y)
+   */
+  private ByteBuffer window(int x, int y) {
+    int row = header.isTopDown() ? y : header.getHeight() - 1 - y;
+    ByteBuffer window = windows[row / rowsPerWindow].duplicate();
+    window.position((row % rowsPerWindow) * header.getRowSize() + x * BmpHeader.BYTES_PER_PIXEL);
+    return window;
+  }
+
+  @Override
+  public void close() {
+  }
+
+}
@@ -0,0 +1,80 @@
+package com.danil.chartographer.service;
+
+import java.io.IOException;
+
+/**
+ * {@link PixelStore} measuring rows read and written through it. Time and bytes are summed up
+ * while the store is used and recorded to {@link ChartaMetrics} once it is closed, so that a
+ * fragment of thousands of rows costs a single record per phase.
+ */
+class MeteredPixelStore implements PixelStore {
+
+  private final PixelStore store;
+  private final ChartaMetrics metrics;
+  private long readNanos;
+  private long readBytes;
+  private long writeNanos;
+  private long writtenBytes;
+
+  MeteredPixelStore(PixelStore store, ChartaMetrics metrics) {
+    this.store = store;
+    this.metrics = metrics;
+  }
+
+  @Override
+  public int getWidth() {
+    return store.getWidth();
+  }
+
+  @Override
+  public int getHeight() {
+    return store.getHeight();
+  }
+
+  @Override
+  public void readRow(int x, int y, byte[] destination, int offset, int width)
+          throws IOException {
+    long start = System.nanoTime();
+    store.readRow(x, y, destination, offset, width);
+    readNanos += System.nanoTime() - start;
+    readBytes += (long) width * BmpHeader.BYTES_PER_PIXEL;
+  }
+
+  @Override
+  public void writeRow(int x, int y, byte[] source, int offset, int width) throws IOException {
+    long start = System.nanoTime();
+    store.writeRow(x, y, source, offset, width);
+    writeNanos += System.nanoTime() - start;
+    writtenBytes += (long) width * BmpHeader.BYTES_PER_PIXEL;
+  }
+
+  @Override
+  public void force() throws IOException {
+    long start = System.nanoTime();
+    try {
+      store.force();
+    } finally {
+      metrics.record(ChartaMetrics.COMMIT, start);
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    long start = System.nanoTime();
+    try {
+      // stores may write changed rows back when they are closed
+      store.close();
+    } finally {
+      if (readBytes > 0) {
+        metrics.recordNanos(ChartaMetrics.READ, readNanos);
+        metrics.bytesRead(readBytes);
+      }
+      if (writtenBytes > 0) {
+        metrics.recordNanos(ChartaMetrics.WRITE, writeNanos + System.nanoTime() - start);
+        metrics.bytesWritten(writtenBytes);
+      }
+      readBytes = 0;
+      writtenBytes = 0;
+    }
+  }
+}
@@ -0,0 +1,115 @@
+package com.danil.chartographer.service;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.nio.ByteBuffer;
+
+/**
+ * PixelBuffer is a raster of BGR pixels kept off the Java heap in a direct {@link ByteBuffer}.
+ * Unlike {@link BufferedImage}, a large buffer is never a humongous object for the garbage
+ * collector. Buffers are taken from a pool and must be closed once they aren't needed, which gives
+ * their memory back to the pool.
+ *
+ * <p>Rows are accessed the same way as rows of stored chartas, so a buffer can be used anywhere a
+ * {@link PixelStore} is expected.
+ */
+public class PixelBuffer implements PixelStore {
+
+  private final int width;
+  private final int height;
+  private final PixelBufferPool pool;
+  private ByteBuffer pixels;
+
+  PixelBuffer(int width, int height, ByteBuffer pixels, PixelBufferPool pool) {
+    this.width = width;
+    this.height = height;
+    this.pixels = pixels;
+    this.pool = pool;
+  }
+
+  /**
+   * Copies pixels of the image into a new buffer that isn't pooled
+   */
+  public static PixelBuffer of(BufferedImage image) {
+    int width = image.getWidth();
+    PixelBuffer buffer = new PixelBuffer(width, image.getHeight(), ByteBuffer.allocateDirect(
+            width * image.getHeight() * BmpHeader.BYTES_PER_PIXEL), null);
+    int[] rgb = new int[width];
+    byte[] row = new byte[width * BmpHeader.BYTES_PER_PIXEL];
+    for (int y = 0; y < image.getHeight(); ++y) {
+      image.getRGB(0, y, width, 1, rgb, 0, width);
+      for (int x = 0; x < width; ++x) {
+        row[x * 3] = (byte) rgb[x];
+        row[x * 3 + 1] = (byte) (rgb[x] >> 8);
+        row[x * 3 + 2] = (byte) (rgb[x] >> 16);
+      }
+      buffer.writeRow(0, y, row, 0, width);
+    }
+    return buffer;
+  }
+
+  /**
+   * Copies pixels of the buffer into a new image on the heap
+   */
+  public BufferedImage toImage() {
+    BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_3BYTE_BGR);
+    byte[] data = ((DataBufferByte) image.getRaster().getDataBuffer()).getData();
+    ByteBuffer all = pixels().duplicate();
+    all.clear();
+    all.get(data);
+    return image;
+  }
+
+  @Override
+  public int getWidth() {
+    return width;
+  }
+
+  @Override
+  public int getHeight() {
+    return height;
+  }
+
+  @Override
+  public void readRow(int x, int y, byte[] destination, int offset, int width) {
+    ByteBuffer row = pixels().duplicate();
+    row.position(position(x, y));
+    row.get(destination, offset, width * BmpHeader.BYTES_PER_PIXEL);
+  }
+
+  @Override
+  public void writeRow(int x, int y, byte[] source, int offset, int width) {
+    ByteBuffer row = pixels().duplicate();
+    row.position(position(x, y));
+    row.put(source, offset, width * BmpHeader.BYTES_PER_PIXEL);
+  }
+
+  /**
+   * Pixels of the buffer live in memory only
+   */
+  @Override
+  public void force() {
+  }
+
+  /**
+   * Gives memory of the buffer back to the pool. The buffer can't be used afterwards.
+   */
+  @Override
+  public void close() {
+    if (pixels != null && pool != null) {
+      pool.release(pixels);
+    }
+    pixels = null;
+  }
+
+  private ByteBuffer pixels() {
+    if (pixels == null) {
+      throw new IllegalStateException("Buffer of pixels is closed");
+    }
+    return pixels;
+  }
+
+  private int position(int x, int y) {
+    return (y * width + x) * BmpHeader.BYTES_PER_PIXEL;
+  }
+}
@@ -0,0 +1,102 @@
+package com.danil.chartographer.service;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * PixelBufferPool hands out {@link PixelBuffer} buffers backed by direct memory and keeps memory
+ * of closed buffers for reuse. Memory is pooled in size classes, four for every power of two, so a
+ * buffer takes at most a quarter more memory than it needs. At most {@code maxBytes} of idle
+ * memory is kept, memory above it is left to the garbage collector.
+ */
+class PixelBufferPool {
+
+  /**
+   * Smallest pooled class, smaller buffers are rounded up to it
+   */
+  private static final int MIN_CLASS = 1 << 16;
+
+  private final long maxBytes;
+  private final Map<Integer, Deque<ByteBuffer>> idle = new HashMap<>();
+  private long idleBytes;
+  private final AtomicLong allocations = new AtomicLong();
+  private final AtomicLong reuses = new AtomicLong();
+
+  /**
+   * @param maxBytes maximum size of idle memory kept for reuse
+   */
+  PixelBufferPool(long maxBytes) {
+    this.maxBytes = maxBytes;
+  }
+
+  /**
+   * Returns a buffer of given size. Its pixels are black.
+   */
+  PixelBuffer allocate(int width, int height) {
+    long length = (long) width * height * BmpHeader.BYTES_PER_PIXEL;
+    if (length > Integer.MAX_VALUE) {
+      throw new IllegalArgumentException("Buffer of " + width + "x" + height + " is too large");
+    }
+    int capacity = capacity((int) length);
+    ByteBuffer pixels = null;
+    synchronized (this) {
+      Deque<ByteBuffer> buffers = idle.get(capacity);
+      if (buffers != null && !buffers.isEmpty()) {
+        pixels = buffers.pop();
+        idleBytes -= capacity;
+      }
+    }
+    if (pixels == null) {
+      allocations.incrementAndGet();
+      pixels = ByteBuffer.allocateDirect(capacity);
+    } else {
+      reuses.incrementAndGet();
+      clear(pixels, (int) length);
+    }
+    pixels.clear().limit((int) length);
+    return new PixelBuffer(width, height, pixels, this);
+  }
+
+  /**
+   * Takes memory of a closed buffer back
+   */
+  void release(ByteBuffer pixels) {
+    int capacity = pixels.capacity();
+    synchronized (this) {
+      if (idleBytes + capacity <= maxBytes) {
+        idle.computeIfAbsent(capacity, key -> new ArrayDeque<>()).push(pixels);
+        idleBytes += capacity;
+      }
+    }
+  }
+
+  long getAllocations() {
+    return allocations.get();
+  }
+
+  long getReuses() {
+    return reuses.get();
+  }
+
+  private static int capacity(int length) {
+    if (length <= MIN_CLASS) {
+      return MIN_CLASS;
+    }
+    long step = Integer.highestOneBit(length) / 4;
+    long capacity = (length + step - 1) / step * step;
+    return capacity > Integer.MAX_VALUE ? length : (int) capacity;
+  }
+
+  private static void clear(ByteBuffer pixels, int length) {
+    byte[] zeros = new byte[Math.min(length, 1 << 16)];
+    ByteBuffer view = pixels.duplicate();
+    view.clear();
+    for (int position = 0; position < length; position += zeros.length) {
+      view.put(zeros, 0, Math.min(zeros.length, length - position));
+    }
+  }
+}
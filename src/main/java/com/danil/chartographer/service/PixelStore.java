@@ -0,0 +1,43 @@
+package com.danil.chartographer.service;
+
+import java.awt.image.BufferedImage;
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * PixelStore gives row level access to pixels of a stored charta. Pixels are passed in BGR order,
+ * 3 bytes per pixel, the same way they are kept in {@link BufferedImage#TYPE_3BYTE_BGR} images.
+ * Callers are responsible for keeping requested rows inside the charta.
+ */
+public interface PixelStore extends Closeable {
+
+  int getWidth();
+
+  int getHeight();
+
+  /**
+   * Reads {@code width} pixels of row {@code y} starting at column {@code x}
+   *
+   * @param destination array to which pixels are read
+   * @param offset      position in the array where the first pixel is put
+   * @throws IOException if an error occurs during reading
+   */
+  void readRow(int x, int y, byte[] destination, int offset, int width) throws IOException;
+
+  /**
+   * Writes {@code width} pixels to row {@code y} starting at column {@code x}
+   *
+   * @param source array containing pixels
+   * @param offset position in the array of the first pixel to write
+   * @throws IOException if an error occurs during writing
+   */
+  void writeRow(int x, int y, byte[] source, int offset, int width) throws IOException;
+
+  /**
+   * Forces rows written so far to the storage device, so that they survive a crash
+   *
+   * @throws IOException if an error occurs during writing
+   */
+  void force() throws IOException;
+
+}
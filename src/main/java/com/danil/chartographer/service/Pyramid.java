@@ -0,0 +1,282 @@
+package com.danil.chartographer.service;
+
+import com.danil.chartographer.exception.NoSuchIdException;
+
+import java.awt.Dimension;
+import java.awt.Rectangle;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardOpenOption;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Pyramid keeps downsampled copies of stored images. Level {@code k} is the image scaled down
+ * {@code 2^k} times, every pixel of it is the average of a 2x2 block of the previous level. Levels
+ * are kept next to images as BMP files named {@code <id>.level<k>.bmp} and are updated
+ * incrementally: when a region of an image changes, only pixels of levels covering it are
+ * recomputed.
+ *
+ * <p>Levels are guarded by their own {@link ChartaLocks}. A level is always recomputed while rows
+ * of the previous one are locked for reading, so levels are locked in ascending order and the last
+ * update of a pixel always sees the latest pixels below it.
+ */
+class Pyramid {
+
+  private final String directory;
+  private final int maxLevels;
+  private final ChartaLocks locks = new ChartaLocks();
+  /**
+   * Images all of whose levels are known to exist
+   */
+  private final Set<String> complete = ConcurrentHashMap.newKeySet();
+
+  /**
+   * @param directory directory where images are stored
+   * @param maxLevels maximum number of downsampled levels of an image
+   */
+  Pyramid(String directory, int maxLevels) {
+    this.directory = directory;
+    this.maxLevels = maxLevels;
+  }
+
+  /**
+   * Returns the number of downsampled levels of an image with given sizes. Images are halved
+   * until both of their sides are a single pixel long or the maximum number of levels is reached.
+   */
+  int getLevels(int width, int height) {
+    int levels = 0;
+    while (levels < maxLevels && (width > 1 || height > 1)) {
+      width = half(width);
+      height = half(height);
+      ++levels;
+    }
+    return levels;
+  }
+
+  /**
+   * Returns sizes of given level of an image
+   */
+  static Dimension getSize(int width, int height, int level) {
+    for (int i = 0; i < level; ++i) {
+      width = half(width);
+      height = half(height);
+    }
+    return new Dimension(width, height);
+  }
+
+  /**
+   * Creates black levels of a new black image. Like images themselves, their files stay sparse.
+   */
+  void create(String id, int width, int height) throws IOException {
+    for (int level = 1; level <= getLevels(width, height); ++level) {
+      Dimension size = getSize(width, height, level);
+      try (ChartaLocks.Lease lease = locks.lockImage(levelId(id, level))) {
+        createLevel(id, level, size);
+      }
+    }
+    complete.add(id);
+  }
+
+  /**
+   * Returns whether all levels of the image exist. Files of levels are looked up until they are
+   * all found once, levels created by the pyramid are known to exist.
+   */
+  boolean exists(String id, int width, int height) {
+    if (complete.contains(id)) {
+      return true;
+    }
+    for (int level = 1; level <= getLevels(width, height); ++level) {
+      if (!getFile(id, level).exists()) {
+        return false;
+      }
+    }
+    complete.add(id);
+    return true;
+  }
+
+  /**
+   * Builds all levels of the image from scratch. Rows of the image must be locked for reading.
+   */
+  void build(String id, PixelStore image) throws IOException {
+    int width = image.getWidth();
+    int height = image.getHeight();
+    for (int level = 1; level <= getLevels(width, height); ++level) {
+      try (ChartaLocks.Lease lease = locks.lockImage(levelId(id, level))) {
+        createLevel(id, level, getSize(width, height, level));
+      }
+    }
+    update(id, image, new Rectangle(width, height));
+    complete.add(id);
+  }
+
+  /**
+   * Recomputes pixels of all levels covering a changed region of the image. Rows of the image
+   * around the region must be locked for reading.
+   *
+   * @param image store of the image
+   * @param dirty changed region of the image
+   */
+  void update(String id, PixelStore image, Rectangle dirty) throws IOException {
+    int levels = getLevels(image.getWidth(), image.getHeight());
+    PixelStore source = image;
+    Rectangle area = dirty.intersection(new Rectangle(image.getWidth(), image.getHeight()));
+    try {
+      for (int level = 1; level <= levels && !area.isEmpty(); ++level) {
+        Rectangle target = new Rectangle(area.x / 2, area.y / 2,
+                                         half(area.x + area.width) - area.x / 2,
+                                         half(area.y + area.height) - area.y / 2);
+        // the image itself is locked by the caller
+        try (ChartaLocks.Lease sourceLease = level == 1
+                                             ? null
+                                             : locks.lockRows(levelId(id, level - 1),
+                                                              target.y * 2,
+                                                              (target.y + target.height) * 2,
+                                                              false);
+             ChartaLocks.Lease targetLease = locks.lockRows(levelId(id, level), target.y,
+                                                            target.y + target.height, true);
+             PixelStore destination = open(id, level)) {
+          downsample(source, destination, target);
+        }
+        if (source != image) {
+          source.close();
+        }
+        source = open(id, level);
+        area = target;
+      }
+    } finally {
+      if (source != image) {
+        source.close();
+      }
+    }
+  }
+
+  /**
+   * Locks rows {@code [from, to)} of a level for reading
+   */
+  ChartaLocks.Lease lockRows(String id, int level, int from, int to) {
+    return locks.lockRows(levelId(id, level), from, to, false);
+  }
+
+  /**
+   * Opens a level of the image
+   *
+   * @throws NoSuchIdException if the level doesn't exist, because the image has been removed
+   */
+  PixelStore open(String id, int level) throws IOException {
+    FileChannel channel;
+    try {
+      channel = FileChannel.open(getFile(id, level).toPath(), StandardOpenOption.READ,
+                                 StandardOpenOption.WRITE);
+    } catch (NoSuchFileException e) {
+      throw new NoSuchIdException("No charta with id " + id + " can be found");
+    }
+    try {
+      ByteBuffer buffer = ByteBuffer.allocate(BmpHeader.SIZE);
+      int read = 0;
+      while (buffer.hasRemaining() && read >= 0) {
+        read = channel.read(buffer, buffer.position());
+      }
+      return new BmpPixelStore(channel, BmpHeader.read(buffer.flip()));
+    } catch (IOException | RuntimeException e) {
+      channel.close();
+      throw e;
+    }
+  }
+
+  /**
+   * Forces all levels of the image to the storage device
+   */
+  void force(String id) throws IOException {
+    for (int level = 1; level <= maxLevels; ++level) {
+      if (!getFile(id, level).exists()) {
+        continue;
+      }
+      try (FileChannel channel = FileChannel.open(getFile(id, level).toPath(),
+                                                  StandardOpenOption.WRITE)) {
+        channel.force(false);
+      }
+    }
+  }
+
+  /**
+   * Deletes all levels of the image
+   */
+  void delete(String id) throws IOException {
+    complete.remove(id);
+    // a level missing in the middle doesn't keep the ones above it from being deleted
+    for (int level = 1; level <= maxLevels; ++level) {
+      try (ChartaLocks.Lease lease = locks.lockImage(levelId(id, level))) {
+        Files.deleteIfExists(getFile(id, level).toPath());
+      }
+      locks.forget(levelId(id, level));
+    }
+  }
+
+  private void createLevel(String id, int level, Dimension size) throws IOException {
+    BmpHeader header = BmpHeader.of(size.width, size.height);
+    try (RandomAccessFile file = new RandomAccessFile(getFile(id, level), "rw")) {
+      file.setLength(0);
+      file.write(header.toBytes());
+      file.setLength(header.getFileSize());
+    }
+  }
+
+  /**
+   * Computes pixels of the target area of a level from 2x2 blocks of the previous level. Blocks on
+   * the right and bottom borders of odd sized levels are averaged over pixels they have.
+   */
+  private static void downsample(PixelStore source, PixelStore destination, Rectangle target)
+          throws IOException {
+    int from = target.x * 2;
+    int width = Math.min((target.x + target.width) * 2, source.getWidth()) - from;
+    byte[] upper = new byte[width * BmpHeader.BYTES_PER_PIXEL];
+    byte[] lower = new byte[upper.length];
+    byte[] row = new byte[target.width * BmpHeader.BYTES_PER_PIXEL];
+    for (int y = target.y; y < target.y + target.height; ++y) {
+      source.readRow(from, y * 2, upper, 0, width);
+      boolean twoRows = y * 2 + 1 < source.getHeight();
+      if (twoRows) {
+        source.readRow(from, y * 2 + 1, lower, 0, width);
+      }
+      for (int x = 0; x < target.width; ++x) {
+        boolean twoColumns = x * 2 + 1 < width;
+        int count = (twoRows ? 2 : 1) * (twoColumns ? 2 : 1);
+        for (int c = 0; c < BmpHeader.BYTES_PER_PIXEL; ++c) {
+          int left = x * 2 * BmpHeader.BYTES_PER_PIXEL + c;
+          int right = left + BmpHeader.BYTES_PER_PIXEL;
+          int sum = (upper[left] & 0xFF);
+          if (twoColumns) {
+            sum += upper[right] & 0xFF;
+          }
+          if (twoRows) {
+            sum += lower[left] & 0xFF;
+            if (twoColumns) {
+              sum += lower[right] & 0xFF;
+            }
+          }
+          row[x * BmpHeader.BYTES_PER_PIXEL + c] = (byte) ((sum + count / 2) / count);
+        }
+      }
+      destination.writeRow(target.x, y, row, 0, target.width);
+    }
+  }
+
+  private File getFile(String id, int level) {
+    return new File(directory + "/" + id + ".level" + level + ".bmp");
+  }
+
+  private static String levelId(String id, int level) {
+    return id + "#" + level;
+  }
+
+  private static int half(int length) {
+    return (length + 1) / 2;
+  }
+
+}
@@ -0,0 +1,144 @@
+package com.danil.chartographer.service;
+
+import java.awt.Rectangle;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * ReadCoalescer deduplicates identical reads of fragments running at the same time. The first read
+ * of a fragment loads it, reads of the same fragment arriving meanwhile wait for it and get the
+ * same bytes. A read is shared only while it is in flight, nothing is kept after it completes.
+ *
+ * <p>Reads are keyed by the number of writes of the image completed when they start, so a read
+ * starting after a write has completed never joins a read that started before it and may miss the
+ * write.
+ */
+class ReadCoalescer {
+
+  private final long maxBytes;
+  private final Map<Key, CompletableFuture<byte[]>> flights = new ConcurrentHashMap<>();
+  private final AtomicLong coalesced = new AtomicLong();
+
+  /**
+   * @param maxBytes size of the largest fragment whose reads are shared, larger fragments are
+   *                 streamed by every read on its own
+   */
+  ReadCoalescer(long maxBytes) {
+    this.maxBytes = maxBytes;
+  }
+
+  /**
+   * Returns whether reads of a fragment of given size are shared
+   */
+  boolean accepts(long bytes) {
+    return bytes <= maxBytes;
+  }
+
+  /**
+   * Loads a fragment of a level of the image or waits for an identical read already loading it
+   *
+   * @param writes number of writes of the image completed before the read
+   * @param area   area of the fragment in pixels of the level
+   * @param load   loads the fragment if no identical read is in flight
+   * @return bytes of the fragment, shared by all reads waiting for it and not to be modified
+   */
+  byte[] read(String id, long writes, int level, Rectangle area, Load load) throws IOException {
+    Key key = new Key(id, level, new Rectangle(area), writes);
+    CompletableFuture<byte[]> flight = new CompletableFuture<>();
+    CompletableFuture<byte[]> running = flights.putIfAbsent(key, flight);
+    if (running != null) {
+      coalesced.incrementAndGet();
+      return join(running);
+    }
+    try {
+      byte[] bytes = load.load();
+      flight.complete(bytes);
+      return bytes;
+    } catch (Throwable e) {
+      // reads waiting for this one must not wait forever
+      flight.completeExceptionally(e);
+      throw e;
+    } finally {
+      flights.remove(key, flight);
+    }
+  }
+
+  /**
+   * Forgets a removed image. Reads of it still in flight complete, but nothing joins them anymore.
+   */
+  void forget(String id) {
+    flights.keySet().removeIf(key -> key.id.equals(id));
+  }
+
+  /**
+   * Returns how many reads have been served by identical reads in flight
+   */
+  long getCoalesced() {
+    return coalesced.get();
+  }
+
+  private static byte[] join(CompletableFuture<byte[]> flight) throws IOException {
+    try {
+      return flight.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while waiting for a read of the charta");
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof IOException) {
+        throw (IOException) cause;
+      }
+      if (cause instanceof Error) {
+        throw (Error) cause;
+      }
+      throw (RuntimeException) cause;
+    }
+  }
+
+  /**
+   * Loads bytes of a fragment
+   */
+  interface Load {
+
+    byte[] load() throws IOException;
+  }
+
+  private static final class Key {
+
+    private final String id;
+    private final int level;
+    private final Rectangle area;
+    private final long writes;
+
+    private Key(String id, int level, Rectangle area, long writes) {
+      this.id = id;
+      this.level = level;
+      this.area = area;
+      this.writes = writes;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) {
+        return true;
+      }
+      if (!(o instanceof Key)) {
+        return false;
+      }
+      Key key = (Key) o;
+      return level == key.level && writes == key.writes && id.equals(key.id)
+             && area.equals(key.area);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(id, level, area, writes);
+    }
+  }
+}
@@ -0,0 +1,368 @@
+package com.danil.chartographer.service;
+
+import com.danil.chartographer.exception.NoSuchIdException;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * RowCache keeps bands of rows of stored images in memory. A band is {@code
+ * chartographer.cache.band-height} full rows of an image. Bands are evicted in least recently used
+ * order once their total size exceeds {@code chartographer.cache.max-bytes}. Written bands are
+ * marked dirty and written back every {@code chartographer.cache.flush-interval} milliseconds or
+ * when they are evicted, so nearby fragment writes are merged into one disk write. The cache is
+ * disabled when its size is zero, which is the default.
+ *
+ * <p>A band always holds full rows, a band of a 20000 pixels wide image takes almost 1 MB however
+ * narrow the fragment that loaded it. The cache pays off only for fragments spanning most of the
+ * width of their images, others are better served by storage directly.
+ *
+ * <p>Every band is guarded by its own monitor: it is loaded, read, written and written back only
+ * while the monitor is held. The monitor of the cache itself is never held while waiting for a
+ * band.
+ */
+@Slf4j
+@Component
+public class RowCache {
+
+  private final long maxBytes;
+  private final int bandHeight;
+  private final LinkedHashMap<Key, Band> bands = new LinkedHashMap<>(16, 0.75f, true);
+  private final ScheduledExecutorService flusher;
+  private long bytes;
+
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private final AtomicLong evictions = new AtomicLong();
+  private final AtomicLong writeBacks = new AtomicLong();
+
+  /**
+   * Creates a cache and starts its periodic write-back
+   *
+   * @param maxBytes      maximum total size of cached bands, 0 disables the cache
+   * @param bandHeight    number of rows in a band, must divide {@link ChartaLocks#BAND_HEIGHT}
+   * @param flushInterval period of writing dirty bands back in milliseconds
+   */
+  public RowCache(@Value("${chartographer.cache.max-bytes:0}") long maxBytes,
+                  @Value("${chartographer.cache.band-height:16}") int bandHeight,
+                  @Value("${chartographer.cache.flush-interval:1000}") long flushInterval) {
+    if (bandHeight <= 0 || ChartaLocks.BAND_HEIGHT % bandHeight != 0) {
+      throw new IllegalArgumentException("Height of cached bands must divide "
+                                         + ChartaLocks.BAND_HEIGHT);
+    }
+    this.maxBytes = maxBytes;
+    this.bandHeight = bandHeight;
+    if (maxBytes > 0) {
+      flusher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "row-cache-flusher");
+        thread.setDaemon(true);
+        return thread;
+      });
+      flusher.scheduleWithFixedDelay(this::flushAll, flushInterval, flushInterval,
+                                     TimeUnit.MILLISECONDS);
+    } else {
+      flusher = null;
+    }
+  }
+
+  public boolean isEnabled() {
+    return maxBytes > 0;
+  }
+
+  /**
+   * Wraps a store of the image, so that its rows are served from the cache
+   *
+   * @param id     id of the image
+   * @param store  store opened for the request
+   * @param opener opens stores of the image for writing dirty bands back
+   * @return caching store, closing it closes the given one
+   */
+  PixelStore wrap(String id, PixelStore store, Opener opener) {
+    return new CachedPixelStore(this, id, store, opener);
+  }
+
+  /**
+   * Writes back all dirty bands of the image
+   */
+  public void flush(String id) {
+    for (Band band : snapshot(id)) {
+      synchronized (band) {
+        writeBack(band);
+      }
+    }
+  }
+
+  /**
+   * Writes back all dirty bands
+   */
+  public void flushAll() {
+    for (Band band : snapshot(null)) {
+      synchronized (band) {
+        writeBack(band);
+      }
+    }
+  }
+
+  /**
+   * Drops all bands of the image without writing them back. Used when the stored image is
+   * replaced or removed.
+   */
+  public void invalidate(String id) {
+    for (Band band : snapshot(id)) {
+      synchronized (band) {
+        remove(band);
+      }
+    }
+  }
+
+  public long getHits() {
+    return hits.get();
+  }
+
+  public long getMisses() {
+    return misses.get();
+  }
+
+  public long getEvictions() {
+    return evictions.get();
+  }
+
+  public long getWriteBacks() {
+    return writeBacks.get();
+  }
+
+  public synchronized long getSize() {
+    return bytes;
+  }
+
+  public long getMaxSize() {
+    return maxBytes;
+  }
+
+  /**
+   * Returns the band containing given row, adding an empty one if it isn't cached
+   */
+  Band band(String id, int row, int width, int height, Opener opener) {
+    int index = row / bandHeight;
+    Key key = new Key(id, index);
+    synchronized (this) {
+      Band band = bands.get(key);
+      if (band != null) {
+        hits.incrementAndGet();
+        return band;
+      }
+      misses.incrementAndGet();
+      int first = index * bandHeight;
+      band = new Band(key, first, Math.min(bandHeight, height - first), width, opener);
+      bands.put(key, band);
+      bytes += band.size();
+      return band;
+    }
+  }
+
+  /**
+   * Evicts least recently used bands while the cache is too large, writing dirty ones back. The
+   * most recently used band is never evicted.
+   */
+  void evict() {
+    while (true) {
+      Band victim;
+      synchronized (this) {
+        if (bytes <= maxBytes || bands.size() <= 1) {
+          return;
+        }
+        victim = bands.values().iterator().next();
+      }
+      synchronized (victim) {
+        writeBack(victim);
+        if (remove(victim)) {
+          evictions.incrementAndGet();
+        }
+      }
+    }
+  }
+
+  private boolean remove(Band band) {
+    band.evicted = true;
+    synchronized (this) {
+      if (bands.remove(band.key, band)) {
+        bytes -= band.size();
+        return true;
+      }
+      return false;
+    }
+  }
+
+  private synchronized List<Band> snapshot(String id) {
+    List<Band> result = new ArrayList<>();
+    for (Band band : bands.values()) {
+      if (id == null || band.key.id.equals(id)) {
+        result.add(band);
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Writes the dirty part of the band back. Must be called while the monitor of the band is held.
+   */
+  private void writeBack(Band band) {
+    if (!band.isDirty() || band.evicted) {
+      return;
+    }
+    try (PixelStore store = band.opener.open(band.key.id)) {
+      int length = band.dirtyRight - band.dirtyLeft;
+      for (int row = band.dirtyTop; row < band.dirtyBottom; ++row) {
+        store.writeRow(band.dirtyLeft, band.first + row, band.data,
+                       (row * band.width + band.dirtyLeft) * BmpHeader.BYTES_PER_PIXEL, length);
+      }
+      band.clean();
+      writeBacks.incrementAndGet();
+    } catch (NoSuchIdException e) {
+      band.clean();
+    } catch (IOException e) {
+      log.error("Unable to write cached rows of charta " + band.key.id + " back", e);
+    }
+  }
+
+  @PreDestroy
+  public void close() {
+    if (flusher != null) {
+      flusher.shutdown();
+      flushAll();
+      log.info("Row cache closed: {} hits, {} misses, {} evictions, {} write-backs", getHits(),
+               getMisses(), getEvictions(), getWriteBacks());
+    }
+  }
+
+  /**
+   * Opens stores of images for writing dirty bands back
+   */
+  interface Opener {
+
+    PixelStore open(String id) throws IOException;
+  }
+
+  private static final class Key {
+
+    private final String id;
+    private final int index;
+
+    private Key(String id, int index) {
+      this.id = id;
+      this.index = index;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) {
+        return true;
+      }
+      if (!(o instanceof Key)) {
+        return false;
+      }
+      Key key = (Key) o;
+      return index == key.index && id.equals(key.id);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(id, index);
+    }
+  }
+
+  /**
+   * Rows {@code [first, first + rows)} of an image together with the rectangle of their pixels
+   * that hasn't been written back yet
+   */
+  static final class Band {
+
+    private final Key key;
+    private final int first;
+    private final int rows;
+    private final int width;
+    private final Opener opener;
+    private byte[] data;
+    private boolean evicted;
+    private int dirtyLeft;
+    private int dirtyRight;
+    private int dirtyTop;
+    private int dirtyBottom;
+
+    private Band(Key key, int first, int rows, int width, Opener opener) {
+      this.key = key;
+      this.first = first;
+      this.rows = rows;
+      this.width = width;
+      this.opener = opener;
+      clean();
+    }
+
+    private long size() {
+      return (long) rows * width * BmpHeader.BYTES_PER_PIXEL;
+    }
+
+    /**
+     * Returns whether the band can't be used anymore, because it has been evicted
+     */
+    boolean isEvicted() {
+      return evicted;
+    }
+
+    /**
+     * Reads rows of the band from the store if they haven't been read yet
+     */
+    void load(PixelStore store) throws IOException {
+      if (data != null) {
+        return;
+      }
+      byte[] loaded = new byte[(int) size()];
+      for (int row = 0; row < rows; ++row) {
+        store.readRow(0, first + row, loaded, row * width * BmpHeader.BYTES_PER_PIXEL, width);
+      }
+      data = loaded;
+    }
+
+    void read(int x, int y, byte[] destination, int offset, int length) {
+      System.arraycopy(data, position(x, y), destination, offset,
+                       length * BmpHeader.BYTES_PER_PIXEL);
+    }
+
+    void write(int x, int y, byte[] source, int offset, int length) {
+      System.arraycopy(source, offset, data, position(x, y), length * BmpHeader.BYTES_PER_PIXEL);
+      dirtyLeft = Math.min(dirtyLeft, x);
+      dirtyRight = Math.max(dirtyRight, x + length);
+      dirtyTop = Math.min(dirtyTop, y - first);
+      dirtyBottom = Math.max(dirtyBottom, y - first + 1);
+    }
+
+    private int position(int x, int y) {
+      return ((y - first) * width + x) * BmpHeader.BYTES_PER_PIXEL;
+    }
+
+    private boolean isDirty() {
+      return dirtyLeft < dirtyRight;
+    }
+
+    private void clean() {
+      dirtyLeft = Integer.MAX_VALUE;
+      dirtyRight = 0;
+      dirtyTop = Integer.MAX_VALUE;
+      dirtyBottom = 0;
+    }
+  }
+
+}
@@ -0,0 +1,28 @@
+package com.danil.chartographer.service;
+
+import java.io.IOException;
+
+/**
+ * TileCodec compresses pixels of a tile for keeping them on disk. Every codec has an id stored
+ * with images, so images stay readable after {@code chartographer.tiles.codec} is changed.
+ */
+interface TileCodec {
+
+  /**
+   * Returns the id under which the codec is stored with images
+   */
+  byte getId();
+
+  /**
+   * Compresses raw BGR pixels of a tile
+   */
+  byte[] encode(byte[] pixels) throws IOException;
+
+  /**
+   * Decompresses pixels of a tile into an array of the size of raw pixels of the tile
+   *
+   * @throws IOException if the data is corrupted
+   */
+  void decode(byte[] data, byte[] pixels) throws IOException;
+
+}
@@ -0,0 +1,198 @@
+package com.danil.chartographer.service;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Service;
+
+import java.awt.Dimension;
+import java.awt.image.BufferedImage;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Stream;
+
+/**
+ * Implementation of {@link ImageService} that keeps every image as a directory of square tiles.
+ * Tiles are created only when a fragment is written to them, so black parts of an image take no
+ * space on disk, and a request touches only tiles intersecting its fragment. Enabled with {@code
+ * chartographer.storage=tiled}, size of tiles is set with {@code chartographer.tiles.size}.
+ *
+ * <p>With {@code chartographer.tiles.codec=deflate} tiles are compressed, see {@link
+ * CompressedTiledPixelStore}. Such images don't go through the cache of rows, which writes rows
+ * back concurrently, while a compressed tile can only be rewritten as a whole.
+ */
+@Service
+@ConditionalOnProperty(name = "chartographer.storage", havingValue = "tiled")
+public class TiledImageService extends AbstractImageService {
+
+  private static final String META_FILE = "meta";
+  private static final String DIRECTORY_EXTENSION = ".tiles";
+
+  private final int tileSize;
+  private final TileCodec codec;
+  private final Map<String, Layout> layouts = new ConcurrentHashMap<>();
+
+  /**
+   * Takes command line arguments and finds there a directory for saving images
+   *
+   * @param args     command line arguments
+   * @param tileSize length of a side of a tile in pixels, compressed tiles are this long and as
+   *                 high as bands of rows locked together
+   * @param codec    name of the codec compressing tiles, {@code raw} keeps them uncompressed
+   */
+  public TiledImageService(ApplicationArguments args,
+                           @Value("${chartographer.tiles.size:512}") int tileSize,
+                           @Value("${chartographer.tiles.codec:raw}") String codec) {
+    super(args, "bmp", BufferedImage.TYPE_3BYTE_BGR);
+    if (tileSize <= 0) {
+      throw new IllegalArgumentException("Size of tiles must be positive");
+    }
+    this.tileSize = tileSize;
+    switch (codec) {
+      case "raw":
+        this.codec = null;
+        break;
+      case "deflate":
+        this.codec = new DeflateTileCodec();
+        break;
+      default:
+        throw new IllegalArgumentException("Unknown codec of tiles " + codec);
+    }
+  }
+
+  @Override
+  protected String createImage(int width, int height) throws IOException {
+    createUploadDirectory();
+
+    String uuid = UUID.randomUUID().toString();
+    createDirectory(uuid, width, height);
+
+    return uuid;
+  }
+
+  @Override
+  public BufferedImage getImage(String id) throws IOException {
+    Dimension size = getSize(id);
+    return getFragment(id, 0, 0, size.width, size.height);
+  }
+
+  @Override
+  protected void writeImage(BufferedImage image, String name) throws IOException {
+    createUploadDirectory();
+    if (getDirectory(name).exists()) {
+      deleteImage(name);
+    }
+    createDirectory(name, image.getWidth(), image.getHeight());
+    saveFragment(name, 0, 0, image);
+  }
+
+  @Override
+  protected void deleteImage(String id) throws IOException {
+    Path directory = getImageFile(id).toPath();
+    layouts.remove(id);
+    try (Stream<Path> files = Files.walk(directory)) {
+      for (Path file : (Iterable<Path>) files.sorted(Comparator.reverseOrder())::iterator) {
+        Files.delete(file);
+      }
+    }
+  }
+
+  @Override
+  protected File imageFile(String id) {
+    return getDirectory(id);
+  }
+
+  @Override
+  protected String chartaId(String fileName) {
+    if (!fileName.endsWith(DIRECTORY_EXTENSION)) {
+      return null;
+    }
+    String id = fileName.substring(0, fileName.length() - DIRECTORY_EXTENSION.length());
+    return id.isEmpty() || id.contains(".") ? null : id;
+  }
+
+  @Override
+  protected boolean isCacheable(String id) throws IOException {
+    return layout(id).codec == null;
+  }
+
+  @Override
+  protected PixelStore open(String id) throws IOException {
+    Path directory = getImageFile(id).toPath();
+    Layout layout = layout(id);
+    if (layout.codec != null) {
+      return new CompressedTiledPixelStore(directory, layout.width, layout.height,
+                                           layout.tileSize, layout.codec);
+    }
+    return new TiledPixelStore(directory, layout.width, layout.height, layout.tileSize);
+  }
+
+  /**
+   * Reads the layout of the image from its meta file unless it is already known. Images stored
+   * before tiles could be compressed have no codec in their meta file.
+   */
+  private Layout layout(String id) throws IOException {
+    Layout layout = layouts.get(id);
+    if (layout == null) {
+      Path directory = getImageFile(id).toPath();
+      try (DataInputStream in = new DataInputStream(
+              Files.newInputStream(directory.resolve(META_FILE)))) {
+        int width = in.readInt();
+        int height = in.readInt();
+        int size = in.readInt();
+        int codecId = in.read();
+        if (codecId > 0 && codecId != DeflateTileCodec.ID) {
+          throw new IOException("Charta " + id + " is stored with unknown codec " + codecId);
+        }
+        layout = new Layout(width, height, size, codecId > 0 ? new DeflateTileCodec() : null);
+      }
+      layouts.put(id, layout);
+    }
+    return layout;
+  }
+
+  private File getDirectory(String id) {
+    return new File(getPathForSaving() + "/" + id + DIRECTORY_EXTENSION);
+  }
+
+  private void createDirectory(String id, int width, int height) throws IOException {
+    Path directory = getDirectory(id).toPath();
+    Files.createDirectory(directory);
+    try (DataOutputStream out = new DataOutputStream(
+            Files.newOutputStream(directory.resolve(META_FILE)))) {
+      out.writeInt(width);
+      out.writeInt(height);
+      out.writeInt(tileSize);
+      out.writeByte(codec == null ? 0 : codec.getId());
+    }
+    layouts.put(id, new Layout(width, height, tileSize, codec));
+  }
+
+  /**
+   * Sizes of an image and of its tiles together with the codec of tiles, {@code null} for raw
+   * ones. They are kept with every image, so images stay readable after {@code
+   * chartographer.tiles.size} or {@code chartographer.tiles.codec} is changed.
+   */
+  private static class Layout {
+
+    private final int width;
+    private final int height;
+    private final int tileSize;
+    private final TileCodec codec;
+
+    private Layout(int width, int height, int tileSize, TileCodec codec) {
+      this.width = width;
+      this.height = height;
+      this.tileSize = tileSize;
+      this.codec = codec;
+    }
+  }
+}
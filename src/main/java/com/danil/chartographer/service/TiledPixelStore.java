@@ -0,0 +1,159 @@
+package com.danil.chartographer.service;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * {@link PixelStore} over an image split into square tiles, each kept in its own file of raw BGR
+ * rows. Tiles that have never been written don't exist and are read as black. Files of tiles are
+ * opened on first access and stay open until the store is closed, tiles found missing are
+ * remembered, so that the file system is asked about every tile only once.
+ */
+class TiledPixelStore implements PixelStore {
+
+  private final Path directory;
+  private final int width;
+  private final int height;
+  private final int tileSize;
+  private final Map<Long, FileChannel> tiles = new HashMap<>();
+  private final Set<Long> missing = new HashSet<>();
+
+  TiledPixelStore(Path directory, int width, int height, int tileSize) {
+    this.directory = directory;
+    this.width = width;
+    this.height = height;
+    this.tileSize = tileSize;
+  }
+
+  /**
+   * Returns name of the file keeping the tile in given row and column of tiles
+   */
+  static String tileName(int row, int column) {
+    return row + "_" + column + ".tile";
+  }
+
+  @Override
+  public int getWidth() {
+    return width;
+  }
+
+  @Override
+  public int getHeight() {
+    return height;
+  }
+
+  @Override
+  public void readRow(int x, int y, byte[] destination, int offset, int width)
+          throws IOException {
+    for (int column = x / tileSize; column * tileSize < x + width; ++column) {
+      int from = Math.max(x, column * tileSize);
+      int to = Math.min(x + width, (column + 1) * tileSize);
+      int start = offset + (from - x) * BmpHeader.BYTES_PER_PIXEL;
+      int end = offset + (to - x) * BmpHeader.BYTES_PER_PIXEL;
+      FileChannel tile = tile(y / tileSize, column, false);
+      if (tile == null) {
+        Arrays.fill(destination, start, end, (byte) 0);
+        continue;
+      }
+      ByteBuffer buffer = ByteBuffer.wrap(destination, start, end - start);
+      long position = position(from, y);
+      while (buffer.hasRemaining()) {
+        int read = tile.read(buffer, position);
+        if (read < 0) {
+          // the tile file is sparse and its tail has never been written
+          Arrays.fill(destination, buffer.position(), end, (byte) 0);
+          break;
+        }
+        position += read;
+      }
+    }
+  }
+
+  @Override
+  public void writeRow(int x, int y, byte[] source, int offset, int width) throws IOException {
+    for (int column = x / tileSize; column * tileSize < x + width; ++column) {
+      int from = Math.max(x, column * tileSize);
+      int to = Math.min(x + width, (column + 1) * tileSize);
+      ByteBuffer buffer = ByteBuffer.wrap(source, offset + (from - x) * BmpHeader.BYTES_PER_PIXEL,
+                                          (to - from) * BmpHeader.BYTES_PER_PIXEL);
+      FileChannel tile = tile(y / tileSize, column, true);
+      long position = position(from, y);
+      while (buffer.hasRemaining()) {
+        position += tile.write(buffer, position);
+      }
+    }
+  }
+
+  /**
+   * Forces all tiles of the image, since rows might have been written through other stores
+   */
+  @Override
+  public void force() throws IOException {
+    try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*.tile")) {
+      for (Path file : files) {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+          channel.force(false);
+        }
+      }
+    }
+  }
+
+  /**
+   * Returns position of pixel (x, y) of the image inside the file of its tile
+   */
+  private long position(int x, int y) {
+    return ((long) (y % tileSize) * tileSize + x % tileSize) * BmpHeader.BYTES_PER_PIXEL;
+  }
+
+  /**
+   * Returns channel of the tile or {@code null} if the tile doesn't exist and isn't going to be
+   * written
+   */
+  private FileChannel tile(int row, int column, boolean write) throws IOException {
+    long key = ((long) row << 32) | column;
+    FileChannel channel = tiles.get(key);
+    if (channel == null) {
+      if (!write && missing.contains(key)) {
+        return null;
+      }
+      Path file = directory.resolve(tileName(row, column));
+      if (!write && !Files.exists(file)) {
+        // rows being read are locked, they stay black even if the tile is created meanwhile
+        missing.add(key);
+        return null;
+      }
+      missing.remove(key);
+      channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                                 StandardOpenOption.WRITE);
+      tiles.put(key, channel);
+    }
+    return channel;
+  }
+
+  @Override
+  public void close() throws IOException {
+    IOException failure = null;
+    for (FileChannel channel : tiles.values()) {
+      try {
+        channel.close();
+      } catch (IOException e) {
+        failure = e;
+      }
+    }
+    tiles.clear();
+    if (failure != null) {
+      throw failure;
+    }
+  }
+
+}
@@ -0,0 +1,455 @@
+package com.danil.chartographer.service;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.stereotype.Component;
+
+import java.awt.Rectangle;
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * WriteAheadLog keeps an append-only log of fragment writes for every image, {@code <id>.wal} next
+ * to the image. Rows written through a logged store are only appended to the log, {@link
+ * PixelStore#force()} of the store appends a commit record, forces the log to disk and only then
+ * passes rows of the write to the image. An image therefore never holds rows of a write that isn't
+ * durably committed, and a write interrupted by a crash leaves no trace in it. Concurrent commits
+ * share a single {@link FileChannel#force} call, so the log is forced far less often than fragments
+ * are written.
+ *
+ * <p>Images themselves are forced only at checkpoints, when the log of an image grows over {@code
+ * chartographer.wal.checkpoint-bytes}: the image is forced while its writes are locked out and the
+ * log is truncated. After a crash, rows of committed writes are replayed from logs in the order
+ * they were written, rows of writes without a commit record are skipped.
+ *
+ * <p>A log record is a type byte followed by the id of the write, for rows also by {@code x},
+ * {@code y}, {@code width} and pixels of the row.
+ */
+@Slf4j
+@Component
+public class WriteAheadLog {
+
+  private static final String EXTENSION = ".wal";
+  private static final byte ROW = 1;
+  private static final byte COMMIT = 2;
+  private static final int RECORD_HEADER = 1 + Long.BYTES;
+  private static final int ROW_HEADER = RECORD_HEADER + 3 * Integer.BYTES;
+  /**
+   * Rows of a write are collected in a buffer of this size before being appended to the log
+   */
+  private static final int BUFFER_SIZE = 1 << 20;
+
+  private final String directory;
+  private final boolean enabled;
+  private final long checkpointBytes;
+  private final Map<String, LogFile> logs = new ConcurrentHashMap<>();
+  private final AtomicLong writes = new AtomicLong();
+  private final AtomicLong commits = new AtomicLong();
+  private final AtomicLong syncs = new AtomicLong();
+
+  /**
+   * @param args            command line arguments containing the directory of images
+   * @param enabled         whether writes are logged
+   * @param checkpointBytes size of the log of an image above which the image is checkpointed
+   */
+  public WriteAheadLog(ApplicationArguments args,
+                       @Value("${chartographer.wal.enabled:false}") boolean enabled,
+                       @Value("${chartographer.wal.checkpoint-bytes:67108864}")
+                               long checkpointBytes) {
+    this.directory = args.getNonOptionArgs().get(0);
+    this.enabled = enabled;
+    this.checkpointBytes = checkpointBytes;
+  }
+
+  public boolean isEnabled() {
+    return enabled;
+  }
+
+  /**
+   * Wraps a store of the image opened for a single write, so that its rows are logged
+   *
+   * @return store whose {@link PixelStore#force()} commits the write
+   */
+  PixelStore wrap(String id, PixelStore store) {
+    return new LoggedStore(logFile(id), store, writes.incrementAndGet());
+  }
+
+  /**
+   * Returns whether the image has a log
+   */
+  boolean exists(String id) {
+    return Files.exists(getFile(id));
+  }
+
+  /**
+   * Returns whether the log of the image is large enough to checkpoint the image
+   */
+  boolean needsCheckpoint(String id) {
+    LogFile logFile = logs.get(id);
+    return logFile != null && logFile.size() > checkpointBytes;
+  }
+
+  /**
+   * Empties the log of the image once the image is forced. Writes of the image must be locked out.
+   */
+  void truncate(String id) throws IOException {
+    LogFile logFile = logs.get(id);
+    if (logFile != null) {
+      logFile.truncate();
+    } else {
+      Files.deleteIfExists(getFile(id));
+    }
+  }
+
+  /**
+   * Deletes the log of a removed image
+   */
+  void delete(String id) throws IOException {
+    LogFile logFile = logs.remove(id);
+    if (logFile != null) {
+      logFile.close();
+    }
+    Files.deleteIfExists(getFile(id));
+  }
+
+  /**
+   * Returns ids of images that have logs
+   */
+  List<String> list() {
+    List<String> ids = new ArrayList<>();
+    File[] files = new File(directory).listFiles((dir, name) -> name.endsWith(EXTENSION));
+    if (files != null) {
+      for (File file : files) {
+        String name = file.getName();
+        ids.add(name.substring(0, name.length() - EXTENSION.length()));
+      }
+    }
+    return ids;
+  }
+
+  /**
+   * Writes rows of committed writes from the log of the image to the store
+   *
+   * @return region of the image covered by replayed rows or {@code null} if nothing was replayed
+   */
+  Rectangle replay(String id, PixelStore store) throws IOException {
+    Path file = getFile(id);
+    if (!Files.exists(file)) {
+      return null;
+    }
+    Set<Long> committed = new HashSet<>();
+    byte[] row = new byte[0];
+    try (DataInputStream in = open(file)) {
+      while (true) {
+        byte type = in.readByte();
+        long write = in.readLong();
+        if (type == COMMIT) {
+          committed.add(write);
+        } else {
+          in.readInt();
+          in.readInt();
+          int length = in.readInt() * BmpHeader.BYTES_PER_PIXEL;
+          if (row.length < length) {
+            row = new byte[length];
+          }
+          in.readFully(row, 0, length);
+        }
+      }
+    } catch (EOFException e) {
+      // the last record was cut short by the crash
+    }
+
+    Rectangle dirty = null;
+    int replayed = 0;
+    try (DataInputStream in = open(file)) {
+      Rectangle bounds = new Rectangle(store.getWidth(), store.getHeight());
+      while (true) {
+        byte type = in.readByte();
+        long write = in.readLong();
+        if (type != ROW) {
+          continue;
+        }
+        Rectangle area = new Rectangle(in.readInt(), in.readInt(), in.readInt(), 1);
+        int length = area.width * BmpHeader.BYTES_PER_PIXEL;
+        if (row.length < length) {
+          row = new byte[length];
+        }
+        in.readFully(row, 0, length);
+        if (committed.contains(write) && bounds.contains(area)) {
+          store.writeRow(area.x, area.y, row, 0, area.width);
+          dirty = dirty == null ? area : dirty.union(area);
+          ++replayed;
+        }
+      }
+    } catch (EOFException e) {
+      // rows of the last write have no commit record
+    }
+    log.info("Replayed {} rows of {} writes of charta {}", replayed, committed.size(), id);
+    return dirty;
+  }
+
+  public long getCommits() {
+    return commits.get();
+  }
+
+  /**
+   * Returns how many times logs have been forced, which is less than the number of commits when
+   * commits are grouped
+   */
+  public long getSyncs() {
+    return syncs.get();
+  }
+
+  private static DataInputStream open(Path file) throws IOException {
+    return new DataInputStream(new BufferedInputStream(Files.newInputStream(file)));
+  }
+
+  private LogFile logFile(String id) {
+    return logs.computeIfAbsent(id, key -> new LogFile(getFile(key)));
+  }
+
+  private Path getFile(String id) {
+    return Path.of(directory, id + EXTENSION);
+  }
+
+  /**
+   * Log file of a single image. Records are appended under the monitor of the log, forcing is
+   * guarded by a separate lock, so records are appended while the log is being forced.
+   */
+  private class LogFile {
+
+    private final Path file;
+    private final Object syncLock = new Object();
+    private FileChannel channel;
+    private long position;
+    private long synced;
+
+    private LogFile(Path file) {
+      this.file = file;
+    }
+
+    private synchronized long size() {
+      return position;
+    }
+
+    /**
+     * Appends records and returns the position right after them
+     */
+    private synchronized long append(ByteBuffer records) throws IOException {
+      if (channel == null) {
+        channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                                   StandardOpenOption.WRITE);
+        position = channel.size();
+      }
+      while (records.hasRemaining()) {
+        position += channel.write(records, position);
+      }
+      return position;
+    }
+
+    /**
+     * Reads records appended at given position
+     */
+    private synchronized void read(ByteBuffer records, long from) throws IOException {
+      while (records.hasRemaining()) {
+        if (channel.read(records, from + records.position()) < 0) {
+          throw new EOFException("Log " + file + " is shorter than its records");
+        }
+      }
+    }
+
+    /**
+     * Forces the log at least up to given position. A thread waiting for another one to force the
+     * log finds its records already forced and returns right away.
+     */
+    private void sync(long end) throws IOException {
+      synchronized (syncLock) {
+        if (synced >= end) {
+          return;
+        }
+        FileChannel forced;
+        long target;
+        synchronized (this) {
+          forced = channel;
+          target = position;
+        }
+        forced.force(false);
+        synced = target;
+        syncs.incrementAndGet();
+      }
+    }
+
+    private void truncate() throws IOException {
+      synchronized (syncLock) {
+        synchronized (this) {
+          if (channel != null) {
+            channel.truncate(0);
+            channel.force(false);
+          }
+          position = 0;
+          synced = 0;
+        }
+      }
+    }
+
+    private synchronized void close() throws IOException {
+      if (channel != null) {
+        channel.close();
+        channel = null;
+      }
+    }
+  }
+
+  /**
+   * Store of a single write appending its rows to the log and passing them to the image once the
+   * write is committed. Rows are collected in a buffer, a full buffer is appended to the log and
+   * its rows are read back from the log at commit, so a write of any size takes a bounded amount
+   * of memory. Rows written are not visible to reads of the store until the write is committed.
+   */
+  private class LoggedStore implements PixelStore {
+
+    private final LogFile logFile;
+    private final PixelStore store;
+    private final long write;
+    /**
+     * Positions in the log of records appended before the commit, every pair is a range
+     */
+    private final List<Long> appended = new ArrayList<>();
+    private ByteBuffer buffer;
+    private boolean written;
+
+    private LoggedStore(LogFile logFile, PixelStore store, long write) {
+      this.logFile = logFile;
+      this.store = store;
+      this.write = write;
+    }
+
+    @Override
+    public int getWidth() {
+      return store.getWidth();
+    }
+
+    @Override
+    public int getHeight() {
+      return store.getHeight();
+    }
+
+    @Override
+    public void readRow(int x, int y, byte[] destination, int offset, int width)
+            throws IOException {
+      store.readRow(x, y, destination, offset, width);
+    }
+
+    @Override
+    public void writeRow(int x, int y, byte[] source, int offset, int width) throws IOException {
+      int length = width * BmpHeader.BYTES_PER_PIXEL;
+      ByteBuffer record = buffer(ROW_HEADER + length);
+      record.put(ROW).putLong(write).putInt(x).putInt(y).putInt(width).put(source, offset, length);
+      if (record != buffer) {
+        append(record.flip());
+      }
+      written = true;
+    }
+
+    /**
+     * Commits the write: appends its commit record, waits for the log to be forced and writes rows
+     * of the write to the image
+     */
+    @Override
+    public void force() throws IOException {
+      if (!written) {
+        return;
+      }
+      buffer(RECORD_HEADER);
+      int rows = buffer.position();
+      buffer.put(COMMIT).putLong(write);
+      long end = logFile.append(buffer.flip());
+      logFile.sync(end);
+      commits.incrementAndGet();
+
+      for (int i = 0; i < appended.size(); i += 2) {
+        long from = appended.get(i);
+        ByteBuffer records = ByteBuffer.allocate((int) (appended.get(i + 1) - from));
+        logFile.read(records, from);
+        apply(records.flip());
+      }
+      apply(buffer.rewind().limit(rows));
+      appended.clear();
+      buffer.clear();
+      written = false;
+    }
+
+    /**
+     * Writes rows of records to the image
+     */
+    private void apply(ByteBuffer records) throws IOException {
+      byte[] row = new byte[0];
+      while (records.hasRemaining()) {
+        records.get();
+        records.getLong();
+        int x = records.getInt();
+        int y = records.getInt();
+        int width = records.getInt();
+        int length = width * BmpHeader.BYTES_PER_PIXEL;
+        if (records.hasArray()) {
+          store.writeRow(x, y, records.array(), records.arrayOffset() + records.position(),
+                         width);
+          records.position(records.position() + length);
+        } else {
+          if (row.length < length) {
+            row = new byte[length];
+          }
+          records.get(row, 0, length);
+          store.writeRow(x, y, row, 0, width);
+        }
+      }
+    }
+
+    /**
+     * Returns the buffer if it has room for a record of given length, appending buffered records
+     * to the log first if needed. Records longer than the buffer get their own one.
+     */
+    private ByteBuffer buffer(int length) throws IOException {
+      if (buffer == null) {
+        buffer = ByteBuffer.allocate(BUFFER_SIZE);
+      }
+      if (buffer.remaining() < length) {
+        append(buffer.flip());
+        buffer.clear();
+      }
+      return length > BUFFER_SIZE ? ByteBuffer.allocate(length) : buffer;
+    }
+
+    /**
+     * Appends records of the write to the log, remembering where they are
+     */
+    private void append(ByteBuffer records) throws IOException {
+      int length = records.remaining();
+      long end = logFile.append(records);
+      appended.add(end - length);
+      appended.add(end);
+    }
+
+    @Override
+    public void close() throws IOException {
+      store.close();
+    }
+  }
+
+}
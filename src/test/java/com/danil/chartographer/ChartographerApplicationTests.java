@@ -3,7 +3,7 @@ package com.danil.chartographer;
 import org.junit.jupiter.api.Test;
 import org.springframework.boot.test.context.SpringBootTest;
 
-@SpringBootTest(args = "src/test/resources/images")
+@SpringBootTest(args = "target/test-storage/images")
 class ChartographerApplicationTests {
 
   @Test
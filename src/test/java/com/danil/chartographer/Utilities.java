@@ -1,10 +1,21 @@
 package com.danil.chartographer;
 
+import com.danil.chartographer.exception.NoSuchIdException;
+import com.danil.chartographer.service.ImageService;
+import org.springframework.util.FileSystemUtils;
+
 import java.awt.*;
 import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
 
 public class Utilities {
 
+  /**
+   * File of the index of chartas, which stays in use while the service runs
+   */
+  private static final String INDEX_FILE = "chartas.index";
+
   public static BufferedImage generateImage(int width, int height, Color color) {
     BufferedImage img = new BufferedImage(width, height, BufferedImage.TYPE_3BYTE_BGR);
     for (int i = 0; i < img.getWidth(); ++i) {
@@ -14,4 +25,31 @@ public class Utilities {
     }
     return img;
   }
+
+  /**
+   * Removes every charta kept in the storage of the service together with its levels and logs.
+   * Files of chartas the service doesn't know, such as ones created behind it, are deleted.
+   */
+  public static void removeChartas(ImageService service) throws IOException {
+    File[] files = new File(service.getPathForSaving()).listFiles();
+    if (files == null) {
+      return;
+    }
+    for (File file : files) {
+      String name = file.getName();
+      if (name.startsWith(INDEX_FILE) || !name.contains(".")) {
+        continue;
+      }
+      try {
+        service.removeImage(name.substring(0, name.indexOf('.')));
+      } catch (NoSuchIdException e) {
+        // levels or logs of a charta that is gone already
+      }
+    }
+    for (File file : files) {
+      if (!file.getName().startsWith(INDEX_FILE)) {
+        FileSystemUtils.deleteRecursively(file);
+      }
+    }
+  }
 }
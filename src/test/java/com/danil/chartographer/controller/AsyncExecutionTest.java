@@ -0,0 +1,85 @@
+package com.danil.chartographer.controller;
+
+import com.danil.chartographer.service.ImageService;
+import org.junit.jupiter.api.Test;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.mock.mockito.MockBean;
+import org.springframework.boot.web.server.LocalServerPort;
+
+import java.awt.*;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.anyInt;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.eq;
+import static org.mockito.Mockito.when;
+
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT,
+                args = "target/test-storage/images",
+                properties = {"server.tomcat.threads.max=4", "server.tomcat.threads.min-spare=1",
+                              "chartographer.io.threads=16"})
+class AsyncExecutionTest {
+
+  private static final int SLOW_REQUESTS = 8;
+
+  @LocalServerPort
+  private int port;
+  @MockBean
+  private ImageService imageService;
+
+  @Test
+  void slowWritesDoNotHoldServerThreads() throws Exception {
+    String id = "slow";
+    CountDownLatch entered = new CountDownLatch(SLOW_REQUESTS);
+    CountDownLatch release = new CountDownLatch(1);
+    when(imageService.getSize(id)).thenReturn(new Dimension(1000, 1000));
+    doAnswer(invocation -> {
+      entered.countDown();
+      release.await();
+      return null;
+    }).when(imageService).saveFragment(eq(id), anyInt(), anyInt(), anyInt(), anyInt(),
+                                       any(InputStream.class));
+
+    HttpClient client = HttpClient.newBuilder().connectTimeout(Duration.ofSeconds(5)).build();
+    List<CompletableFuture<HttpResponse<Void>>> writes = new ArrayList<>();
+    try {
+      for (int i = 0; i < SLOW_REQUESTS; ++i) {
+        HttpRequest request = HttpRequest.newBuilder(
+                        uri("/chartas/" + id + "?x=0&y=0&width=10&height=10"))
+                .POST(HttpRequest.BodyPublishers.ofByteArray(new byte[]{1}))
+                .build();
+        writes.add(client.sendAsync(request, HttpResponse.BodyHandlers.discarding()));
+      }
+      // twice as many writes as server threads are blocked in the service
+      assertTrue(entered.await(10, TimeUnit.SECONDS));
+
+      HttpResponse<Void> removal = client.send(
+              HttpRequest.newBuilder(uri("/chartas/" + id)).DELETE()
+                      .timeout(Duration.ofSeconds(5)).build(),
+              HttpResponse.BodyHandlers.discarding());
+      assertEquals(200, removal.statusCode());
+    } finally {
+      release.countDown();
+    }
+    for (CompletableFuture<HttpResponse<Void>> write : writes) {
+      assertEquals(200, write.get(10, TimeUnit.SECONDS).statusCode());
+    }
+  }
+
+  private URI uri(String path) {
+    return URI.create("http://localhost:" + port + path);
+  }
+}
@@ -1,36 +1,63 @@
 package com.danil.chartographer.controller;
 
 import com.danil.chartographer.Utilities;
+import com.danil.chartographer.domain.ChartaVersion;
+import com.danil.chartographer.domain.Fragment;
+import com.danil.chartographer.domain.FragmentStatus;
+import com.danil.chartographer.exception.ImageFormatException;
 import com.danil.chartographer.exception.NoSuchIdException;
+import com.danil.chartographer.exception.OverloadException;
+import com.danil.chartographer.exception.SizeException;
+import com.danil.chartographer.service.AdmissionLimiter;
+import com.danil.chartographer.service.BmpHeader;
 import com.danil.chartographer.service.ImageService;
+import com.danil.chartographer.service.PixelBuffer;
 import org.apache.tomcat.util.http.fileupload.ByteArrayOutputStream;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
 import org.springframework.boot.test.context.SpringBootTest;
 import org.springframework.boot.test.mock.mockito.MockBean;
+import org.springframework.boot.test.mock.mockito.SpyBean;
 import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
 
 import javax.imageio.ImageIO;
 import java.awt.*;
 import java.awt.image.BufferedImage;
-
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.Mockito.anyInt;
+import static org.mockito.Mockito.anyLong;
 import static org.mockito.Mockito.anyString;
+import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.doThrow;
 import static org.mockito.Mockito.eq;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.asyncDispatch;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.delete;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.content;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.header;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.jsonPath;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.request;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
 
-@SpringBootTest(args = "src/test/resources/images")
+@SpringBootTest(args = "target/test-storage/images")
 @AutoConfigureMockMvc()
 class ImageControllerTest {
 
@@ -39,12 +66,13 @@ class ImageControllerTest {
   private MockMvc mockMvc;
   @MockBean
   private ImageService imageService;
-  private BufferedImage charta;
+  @SpyBean
+  private AdmissionLimiter limiter;
+  private final Dimension chartaSize = new Dimension(1000, 1000);
   private BufferedImage fragment;
 
   @BeforeEach
   void initImages() {
-    charta = Utilities.generateImage(1000, 1000, Color.GREEN);
     fragment = Utilities.generateImage(300, 300, Color.BLACK);
   }
 
@@ -72,29 +100,40 @@ class ImageControllerTest {
     verify(imageService, times(0)).create(25000, 30000);
   }
 
+  @Test
+  void createChartWithNonPositiveSize() throws Exception {
+    this.mockMvc.perform(post("/chartas")
+                                 .param("width", "0")
+                                 .param("height", "-30"))
+            .andExpect(status().isBadRequest());
+
+    verify(imageService, times(0)).create(anyInt(), anyInt());
+  }
+
   @Test
   void saveFragment() throws Exception {
     ByteArrayOutputStream baos = new ByteArrayOutputStream();
     ImageIO.write(fragment, "bmp", baos);
     byte[] data = baos.toByteArray();
 
-    when(imageService.getImage(any(String.class))).thenReturn(charta);
-    when(imageService.decryptImage(data)).thenReturn(fragment);
+    when(imageService.getSize(any(String.class))).thenReturn(chartaSize);
 
-    mockMvc.perform(post("/chartas/" + id)
-                            .content(data)
-                            .param("x", "100")
-                            .param("y", "200")
-                            .param("width", String.valueOf(fragment.getWidth()))
-                            .param("height", String.valueOf(fragment.getHeight())))
+    MvcResult result = mockMvc.perform(post("/chartas/" + id)
+                                               .content(data)
+                                               .param("x", "100")
+                                               .param("y", "200")
+                                               .param("width", String.valueOf(fragment.getWidth()))
+                                               .param("height",
+                                                      String.valueOf(fragment.getHeight())))
+            .andExpect(request().asyncStarted())
+            .andReturn();
+
+    mockMvc.perform(asyncDispatch(result))
             .andExpect(status().isOk());
 
-    verify(imageService, times(1)).getImage(id);
-    verify(imageService, times(1)).decryptImage(data);
-    verify(imageService, times(1)).copy(0, 0, 100, 200,
-                                        fragment.getWidth(), fragment.getHeight(), fragment,
-                                        charta);
-    verify(imageService, times(1)).save(charta, id);
+    verify(imageService, times(1)).getSize(id);
+    verify(imageService, times(1)).saveFragment(eq(id), eq(100), eq(200), eq(300), eq(300),
+                                                any(InputStream.class));
   }
 
   @Test
@@ -103,8 +142,7 @@ class ImageControllerTest {
     ImageIO.write(fragment, "bmp", baos);
     byte[] data = baos.toByteArray();
 
-    when(imageService.getImage(any(String.class))).thenReturn(charta);
-    when(imageService.decryptImage(data)).thenReturn(fragment);
+    when(imageService.getSize(any(String.class))).thenReturn(chartaSize);
 
     mockMvc.perform(post("/chartas/" + id)
                             .content(data)
@@ -114,12 +152,9 @@ class ImageControllerTest {
                             .param("height", String.valueOf(fragment.getHeight())))
             .andExpect(status().isBadRequest());
 
-    verify(imageService, times(1)).getImage(id);
-    verify(imageService, times(0)).decryptImage(any(byte[].class));
-    verify(imageService, times(0)).copy(anyInt(), anyInt(), anyInt(), anyInt(),
-                                        anyInt(), anyInt(), any(BufferedImage.class),
-                                        any(BufferedImage.class));
-    verify(imageService, times(0)).save(any(BufferedImage.class), anyString());
+    verify(imageService, times(1)).getSize(id);
+    verify(imageService, times(0)).saveFragment(anyString(), anyInt(), anyInt(), anyInt(),
+                                                anyInt(), any(InputStream.class));
   }
 
   @Test
@@ -128,23 +163,44 @@ class ImageControllerTest {
     ImageIO.write(fragment, "bmp", baos);
     byte[] data = baos.toByteArray();
 
-    when(imageService.getImage(any(String.class))).thenReturn(charta);
-    when(imageService.decryptImage(data)).thenReturn(fragment);
-
-    mockMvc.perform(post("/chartas/" + id)
-                            .content(data)
-                            .param("x", "500")
-                            .param("y", "300")
-                            .param("width", "500")
-                            .param("height", "205"))
+    when(imageService.getSize(any(String.class))).thenReturn(chartaSize);
+    doThrow(new SizeException("Provided sizes do not match sizes of fragment"))
+            .when(imageService).saveFragment(eq(id), eq(500), eq(300), eq(500), eq(205),
+                                             any(InputStream.class));
+
+    MvcResult result = mockMvc.perform(post("/chartas/" + id)
+                                               .content(data)
+                                               .param("x", "500")
+                                               .param("y", "300")
+                                               .param("width", "500")
+                                               .param("height", "205"))
+            .andExpect(request().asyncStarted())
+            .andReturn();
+
+    mockMvc.perform(asyncDispatch(result))
             .andExpect(status().isBadRequest());
 
-    verify(imageService, times(1)).getImage(id);
-    verify(imageService, times(1)).decryptImage(data);
-    verify(imageService, times(0)).copy(anyInt(), anyInt(), anyInt(), anyInt(),
-                                        anyInt(), anyInt(), any(BufferedImage.class),
-                                        any(BufferedImage.class));
-    verify(imageService, times(0)).save(any(BufferedImage.class), anyString());
+    verify(imageService, times(1)).getSize(id);
+  }
+
+  @Test
+  void saveMalformedFragment() throws Exception {
+    when(imageService.getSize(any(String.class))).thenReturn(chartaSize);
+    doThrow(new ImageFormatException("Not a bmp image"))
+            .when(imageService).saveFragment(eq(id), eq(100), eq(200), eq(300), eq(300),
+                                             any(InputStream.class));
+
+    MvcResult result = mockMvc.perform(post("/chartas/" + id)
+                                               .content(new byte[]{1, 2, 3})
+                                               .param("x", "100")
+                                               .param("y", "200")
+                                               .param("width", "300")
+                                               .param("height", "300"))
+            .andExpect(request().asyncStarted())
+            .andReturn();
+
+    mockMvc.perform(asyncDispatch(result))
+            .andExpect(status().isBadRequest());
   }
 
   @Test
@@ -153,8 +209,7 @@ class ImageControllerTest {
     ImageIO.write(fragment, "bmp", baos);
     byte[] data = baos.toByteArray();
 
-    when(imageService.getImage(any(String.class))).thenThrow(NoSuchIdException.class);
-    when(imageService.decryptImage(data)).thenReturn(fragment);
+    when(imageService.getSize(any(String.class))).thenThrow(NoSuchIdException.class);
 
     mockMvc.perform(post("/chartas/" + id)
                             .content(data)
@@ -164,12 +219,117 @@ class ImageControllerTest {
                             .param("height", String.valueOf(fragment.getHeight())))
             .andExpect(status().isNotFound());
 
-    verify(imageService, times(1)).getImage(id);
-    verify(imageService, times(0)).decryptImage(any(byte[].class));
-    verify(imageService, times(0)).copy(anyInt(), anyInt(), anyInt(), anyInt(),
-                                        anyInt(), anyInt(), any(BufferedImage.class),
-                                        any(BufferedImage.class));
-    verify(imageService, times(0)).save(any(BufferedImage.class), anyString());
+    verify(imageService, times(1)).getSize(id);
+    verify(imageService, times(0)).saveFragment(anyString(), anyInt(), anyInt(), anyInt(),
+                                                anyInt(), any(InputStream.class));
+  }
+
+  @Test
+  @SuppressWarnings("unchecked")
+  void saveFragments() throws Exception {
+    byte[] data = toBmp(fragment);
+    ByteArrayOutputStream body = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(body);
+    writeEntry(out, 100, 200, 300, 300, data);
+    writeEntry(out, 5000, 200, 300, 300, data);
+    writeEntry(out, 0, 0, 300, 300, data);
+
+    when(imageService.getSize(id)).thenReturn(chartaSize);
+    when(imageService.saveFragments(eq(id), any()))
+            .thenReturn(List.of(new FragmentStatus(0, true, null),
+                                new FragmentStatus(1, false, "Provided sizes do not match")));
+
+    MvcResult result = mockMvc.perform(post("/chartas/" + id + "/fragments")
+                                               .content(body.toByteArray()))
+            .andExpect(request().asyncStarted())
+            .andReturn();
+
+    mockMvc.perform(asyncDispatch(result))
+            .andExpect(status().isOk())
+            .andExpect(jsonPath("$[0].index").value(0))
+            .andExpect(jsonPath("$[0].saved").value(true))
+            .andExpect(jsonPath("$[1].index").value(1))
+            .andExpect(jsonPath("$[1].saved").value(false))
+            .andExpect(jsonPath("$[2].index").value(2))
+            .andExpect(jsonPath("$[2].saved").value(false))
+            .andExpect(jsonPath("$[2].message").value("Provided sizes do not match"));
+
+    ArgumentCaptor<List<Fragment>> captor = ArgumentCaptor.forClass(List.class);
+    verify(imageService, times(1)).saveFragments(eq(id), captor.capture());
+    assertEquals(2, captor.getValue().size());
+    assertEquals(100, captor.getValue().get(0).getX());
+    assertEquals(0, captor.getValue().get(1).getX());
+  }
+
+  @Test
+  void saveTruncatedFragments() throws Exception {
+    ByteArrayOutputStream body = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(body);
+    writeEntry(out, 100, 200, 300, 300, toBmp(fragment));
+    byte[] entry = body.toByteArray();
+    byte[] truncated = Arrays.copyOf(entry, entry.length - 10);
+
+    when(imageService.getSize(id)).thenReturn(chartaSize);
+
+    MvcResult result = mockMvc.perform(post("/chartas/" + id + "/fragments").content(truncated))
+            .andExpect(request().asyncStarted())
+            .andReturn();
+
+    mockMvc.perform(asyncDispatch(result))
+            .andExpect(status().isBadRequest());
+
+    verify(imageService, times(0)).saveFragments(anyString(), any());
+  }
+
+  @Test
+  void saveFragmentsBeyondLimits() throws Exception {
+    when(imageService.getSize(id)).thenReturn(chartaSize);
+
+    ByteArrayOutputStream many = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(many);
+    for (int i = 0; i <= 256; ++i) {
+      // entries beyond the charta are skipped, yet count towards the limit
+      writeEntry(out, -1, 0, 1, 1, toBmp(Utilities.generateImage(1, 1, Color.RED)));
+    }
+    MvcResult result = mockMvc.perform(post("/chartas/" + id + "/fragments")
+                                               .content(many.toByteArray()))
+            .andExpect(request().asyncStarted())
+            .andReturn();
+    mockMvc.perform(asyncDispatch(result))
+            .andExpect(status().isBadRequest());
+
+    // only the header of a fragment too big to be kept is sent, it is rejected before its data
+    ByteArrayOutputStream large = new ByteArrayOutputStream();
+    out = new DataOutputStream(large);
+    out.writeInt(0);
+    out.writeInt(0);
+    out.writeInt(5000);
+    out.writeInt(5001);
+    out.writeInt((int) BmpHeader.of(5000, 5001).getFileSize());
+    result = mockMvc.perform(post("/chartas/" + id + "/fragments").content(large.toByteArray()))
+            .andExpect(request().asyncStarted())
+            .andReturn();
+    mockMvc.perform(asyncDispatch(result))
+            .andExpect(status().isBadRequest())
+            .andExpect(jsonPath("$.message").value("Total size of fragments is too big"));
+
+    verify(imageService, times(0)).saveFragments(anyString(), any());
+  }
+
+  private static byte[] toBmp(BufferedImage image) throws IOException {
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    ImageIO.write(image, "bmp", baos);
+    return baos.toByteArray();
+  }
+
+  private static void writeEntry(DataOutputStream out, int x, int y, int width, int height,
+                                 byte[] data) throws IOException {
+    out.writeInt(x);
+    out.writeInt(y);
+    out.writeInt(width);
+    out.writeInt(height);
+    out.writeInt(data.length);
+    out.write(data);
   }
 
   @Test
@@ -178,33 +338,156 @@ class ImageControllerTest {
     ImageIO.write(fragment, "bmp", baos);
     byte[] data = baos.toByteArray();
 
-    when(imageService.getImage(id)).thenReturn(charta);
-    when(imageService.encryptImage(any(BufferedImage.class))).thenReturn(data);
+    when(imageService.getSize(id, 0)).thenReturn(chartaSize);
+    doAnswer(invocation -> {
+      invocation.getArgument(6, OutputStream.class).write(data);
+      return null;
+    }).when(imageService).writeFragment(eq(id), eq(0), eq(100), eq(200), eq(300), eq(300),
+                                        any(OutputStream.class));
+
+    MvcResult result = mockMvc.perform(get("/chartas/" + id)
+                                               .param("x", "100")
+                                               .param("y", "200")
+                                               .param("width", String.valueOf(fragment.getWidth()))
+                                               .param("height",
+                                                      String.valueOf(fragment.getHeight())))
+            .andExpect(request().asyncStarted())
+            .andReturn();
+
+    mockMvc.perform(asyncDispatch(result))
+            .andExpect(status().isOk())
+            .andExpect(header().longValue("Content-Length", data.length))
+            .andExpect(content().contentType("image/bmp"))
+            .andExpect(content().bytes(data));
+
+    verify(imageService, times(1)).getSize(id, 0);
+    verify(imageService, times(1)).writeFragment(eq(id), eq(0), eq(100), eq(200), eq(300), eq(300),
+                                                 any(OutputStream.class));
+  }
+
+  @Test
+  void getFragmentNotModified() throws Exception {
+    when(imageService.getVersion(id)).thenReturn(
+            new ChartaVersion("epoch-3", 1_600_000_000_000L, 0));
 
     mockMvc.perform(get("/chartas/" + id)
+                            .header("If-None-Match", "\"epoch-2\", \"epoch-3\"")
                             .param("x", "100")
                             .param("y", "200")
-                            .param("width", String.valueOf(fragment.getWidth()))
-                            .param("height", String.valueOf(fragment.getHeight())))
-            .andExpect(status().isOk())
-            .andExpect(content().bytes(data));
+                            .param("width", "300")
+                            .param("height", "300"))
+            .andExpect(status().isNotModified())
+            .andExpect(header().string("ETag", "\"epoch-3\""));
 
-    verify(imageService, times(1)).getImage(id);
-    verify(imageService, times(1)).copy(eq(100), eq(200),
-                                        eq(0), eq(0), eq(300), eq(300),
-                                        eq(charta), any(BufferedImage.class));
-    verify(imageService, times(1)).encryptImage(any(BufferedImage.class));
+    verify(imageService, times(0)).getSize(anyString(), anyInt());
+    verify(imageService, times(0)).writeFragment(anyString(), anyInt(), anyInt(), anyInt(),
+                                                 anyInt(), anyInt(), any(OutputStream.class));
   }
 
   @Test
-  void getFragmentWithNegativeWidthAndHeight() throws Exception {
-    ByteArrayOutputStream baos = new ByteArrayOutputStream();
-    ImageIO.write(fragment, "bmp", baos);
-    byte[] data = baos.toByteArray();
+  void getFragmentNotModifiedSince() throws Exception {
+    when(imageService.getVersion(id)).thenReturn(
+            new ChartaVersion("epoch-3", 1_600_000_000_500L, 1_599_999_999_000L));
+
+    mockMvc.perform(get("/chartas/" + id)
+                            .header("If-Modified-Since", "Sun, 13 Sep 2020 12:26:40 GMT")
+                            .param("x", "100")
+                            .param("y", "200")
+                            .param("width", "300")
+                            .param("height", "300"))
+            .andExpect(status().isNotModified());
+  }
 
-    when(imageService.getImage(id)).thenReturn(charta);
-    when(imageService.encryptImage(any(BufferedImage.class))).thenReturn(data);
+  @Test
+  void getFragmentWrittenTwiceInSecondOfIfModifiedSince() throws Exception {
+    when(imageService.getSize(id, 0)).thenReturn(chartaSize);
+    when(imageService.getVersion(id)).thenReturn(
+            new ChartaVersion("epoch-4", 1_600_000_000_900L, 1_600_000_000_100L));
+
+    MvcResult result = mockMvc.perform(get("/chartas/" + id)
+                                               .header("If-Modified-Since",
+                                                       "Sun, 13 Sep 2020 12:26:40 GMT")
+                                               .param("x", "100")
+                                               .param("y", "200")
+                                               .param("width", "300")
+                                               .param("height", "300"))
+            .andExpect(request().asyncStarted())
+            .andReturn();
+
+    mockMvc.perform(asyncDispatch(result))
+            .andExpect(status().isOk());
+  }
 
+  @Test
+  void getFragmentWithStaleTagIsModifiedWhateverTheDate() throws Exception {
+    when(imageService.getSize(id, 0)).thenReturn(chartaSize);
+    when(imageService.getVersion(id)).thenReturn(
+            new ChartaVersion("epoch-4", 1_600_000_000_000L, 0));
+
+    MvcResult result = mockMvc.perform(get("/chartas/" + id)
+                                               .header("If-None-Match", "\"epoch-3\"")
+                                               .header("If-Modified-Since",
+                                                       "Sun, 13 Sep 2020 12:30:00 GMT")
+                                               .param("x", "100")
+                                               .param("y", "200")
+                                               .param("width", "300")
+                                               .param("height", "300"))
+            .andExpect(request().asyncStarted())
+            .andReturn();
+
+    mockMvc.perform(asyncDispatch(result))
+            .andExpect(status().isOk());
+  }
+
+  @Test
+  void getFragmentModified() throws Exception {
+    when(imageService.getSize(id, 0)).thenReturn(chartaSize);
+    when(imageService.getVersion(id)).thenReturn(
+            new ChartaVersion("epoch-4", 1_600_000_000_000L, 0));
+
+    MvcResult result = mockMvc.perform(get("/chartas/" + id)
+                                               .header("If-None-Match", "\"epoch-3\"")
+                                               .param("x", "100")
+                                               .param("y", "200")
+                                               .param("width", "300")
+                                               .param("height", "300"))
+            .andExpect(request().asyncStarted())
+            .andReturn();
+
+    mockMvc.perform(asyncDispatch(result))
+            .andExpect(status().isOk())
+            .andExpect(header().string("ETag", "\"epoch-4\""))
+            .andExpect(header().dateValue("Last-Modified", 1_600_000_000_000L))
+            .andExpect(header().string("Cache-Control", "no-cache"));
+
+    verify(imageService, times(1)).writeFragment(eq(id), eq(0), eq(100), eq(200), eq(300), eq(300),
+                                                 any(OutputStream.class));
+  }
+
+  @Test
+  void getFragmentWhenOverloaded() throws Exception {
+    when(imageService.getSize(id, 0)).thenReturn(chartaSize);
+    doThrow(new OverloadException("Busy")).when(limiter).acquire(anyLong());
+
+    MvcResult result = mockMvc.perform(get("/chartas/" + id)
+                                               .param("x", "100")
+                                               .param("y", "200")
+                                               .param("width", "300")
+                                               .param("height", "300"))
+            .andExpect(request().asyncStarted())
+            .andReturn();
+
+    mockMvc.perform(asyncDispatch(result))
+            .andExpect(status().isServiceUnavailable())
+            .andExpect(header().string("Retry-After", "1"))
+            .andExpect(jsonPath("$.message").value("Busy"));
+
+    verify(imageService, times(0)).writeFragment(anyString(), anyInt(), anyInt(), anyInt(),
+                                                 anyInt(), anyInt(), any(OutputStream.class));
+  }
+
+  @Test
+  void getFragmentWithNegativeWidthAndHeight() throws Exception {
     mockMvc.perform(get("/chartas/" + id)
                             .param("x", "100")
                             .param("y", "200")
@@ -212,21 +495,14 @@ class ImageControllerTest {
                             .param("height", "-300"))
             .andExpect(status().isBadRequest());
 
-    verify(imageService, times(0)).getImage(id);
-    verify(imageService, times(0)).copy(anyInt(), anyInt(), anyInt(), anyInt(),
-                                        anyInt(), anyInt(), any(BufferedImage.class),
-                                        any(BufferedImage.class));
-    verify(imageService, times(0)).encryptImage(any(BufferedImage.class));
+    verify(imageService, times(0)).getSize(anyString(), anyInt());
+    verify(imageService, times(0)).writeFragment(anyString(), anyInt(), anyInt(), anyInt(),
+                                                 anyInt(), anyInt(), any(OutputStream.class));
   }
 
   @Test
   void getFragmentWithNonExistingId() throws Exception {
-    ByteArrayOutputStream baos = new ByteArrayOutputStream();
-    ImageIO.write(fragment, "bmp", baos);
-    byte[] data = baos.toByteArray();
-
-    when(imageService.getImage(id)).thenThrow(NoSuchIdException.class);
-    when(imageService.encryptImage(any(BufferedImage.class))).thenReturn(data);
+    when(imageService.getSize(id, 0)).thenThrow(NoSuchIdException.class);
 
     mockMvc.perform(get("/chartas/" + id)
                             .param("x", "100")
@@ -235,11 +511,188 @@ class ImageControllerTest {
                             .param("height", "3000"))
             .andExpect(status().isNotFound());
 
-    verify(imageService, times(1)).getImage(id);
-    verify(imageService, times(0)).copy(anyInt(), anyInt(), anyInt(), anyInt(),
-                                        anyInt(), anyInt(), any(BufferedImage.class),
-                                        any(BufferedImage.class));
-    verify(imageService, times(0)).encryptImage(any(BufferedImage.class));
+    verify(imageService, times(1)).getSize(id, 0);
+    verify(imageService, times(0)).writeFragment(anyString(), anyInt(), anyInt(), anyInt(),
+                                                 anyInt(), anyInt(), any(OutputStream.class));
+  }
+
+  @Test
+  void getFragmentOfLevel() throws Exception {
+    when(imageService.getSize(id, 2)).thenReturn(new Dimension(250, 250));
+
+    MvcResult result = mockMvc.perform(get("/chartas/" + id)
+                                               .param("x", "10")
+                                               .param("y", "20")
+                                               .param("width", "30")
+                                               .param("height", "40")
+                                               .param("level", "2"))
+            .andExpect(request().asyncStarted())
+            .andReturn();
+
+    mockMvc.perform(asyncDispatch(result))
+            .andExpect(status().isOk());
+
+    verify(imageService, times(1)).writeFragment(eq(id), eq(2), eq(10), eq(20), eq(30), eq(40),
+                                                 any(OutputStream.class));
+  }
+
+  @Test
+  void getFragmentOfMissingLevel() throws Exception {
+    when(imageService.getSize(id, 20)).thenThrow(SizeException.class);
+
+    mockMvc.perform(get("/chartas/" + id)
+                            .param("x", "0")
+                            .param("y", "0")
+                            .param("width", "30")
+                            .param("height", "40")
+                            .param("level", "20"))
+            .andExpect(status().isBadRequest());
+
+    verify(imageService, times(0)).writeFragment(anyString(), anyInt(), anyInt(), anyInt(),
+                                                 anyInt(), anyInt(), any(OutputStream.class));
+  }
+
+  @Test
+  void getFragmentRange() throws Exception {
+    when(imageService.getSize(id, 0)).thenReturn(chartaSize);
+    when(imageService.getVersion(id)).thenReturn(
+            new ChartaVersion("epoch-4", 1_600_000_000_000L, 0));
+    byte[] data = {1, 2, 3, 4, 5, 6, 7, 8, 9, 10};
+    doAnswer(invocation -> {
+      invocation.getArgument(8, OutputStream.class).write(data);
+      return null;
+    }).when(imageService).writeFragment(eq(id), eq(0), eq(100), eq(200), eq(300), eq(300),
+                                        eq(1000L), eq(1010L), any(OutputStream.class));
+
+    MvcResult result = mockMvc.perform(get("/chartas/" + id)
+                                               .header("Range", "bytes=1000-1009")
+                                               .header("If-Range", "\"epoch-4\"")
+                                               .param("x", "100")
+                                               .param("y", "200")
+                                               .param("width", "300")
+                                               .param("height", "300"))
+            .andExpect(request().asyncStarted())
+            .andReturn();
+
+    mockMvc.perform(asyncDispatch(result))
+            .andExpect(status().isPartialContent())
+            .andExpect(header().string("Content-Range", "bytes 1000-1009/270054"))
+            .andExpect(header().longValue("Content-Length", 10))
+            .andExpect(header().string("Accept-Ranges", "bytes"))
+            .andExpect(header().string("ETag", "\"epoch-4\""))
+            .andExpect(content().bytes(data));
+
+    verify(limiter, times(1)).acquire(10);
+  }
+
+  @Test
+  void getFragmentSuffixRange() throws Exception {
+    when(imageService.getSize(id, 0)).thenReturn(chartaSize);
+
+    MvcResult result = mockMvc.perform(get("/chartas/" + id)
+                                               .header("Range", "bytes=-100")
+                                               .param("x", "100")
+                                               .param("y", "200")
+                                               .param("width", "300")
+                                               .param("height", "300"))
+            .andExpect(request().asyncStarted())
+            .andReturn();
+
+    mockMvc.perform(asyncDispatch(result))
+            .andExpect(status().isPartialContent())
+            .andExpect(header().string("Content-Range", "bytes 269954-270053/270054"));
+
+    verify(imageService, times(1)).writeFragment(eq(id), eq(0), eq(100), eq(200), eq(300), eq(300),
+                                                 eq(269954L), eq(270054L),
+                                                 any(OutputStream.class));
+  }
+
+  @Test
+  void getFragmentRangeOfChangedCharta() throws Exception {
+    when(imageService.getSize(id, 0)).thenReturn(chartaSize);
+    when(imageService.getVersion(id)).thenReturn(
+            new ChartaVersion("epoch-5", 1_600_000_000_000L, 0));
+
+    MvcResult result = mockMvc.perform(get("/chartas/" + id)
+                                               .header("Range", "bytes=1000-")
+                                               .header("If-Range", "\"epoch-4\"")
+                                               .param("x", "100")
+                                               .param("y", "200")
+                                               .param("width", "300")
+                                               .param("height", "300"))
+            .andExpect(request().asyncStarted())
+            .andReturn();
+
+    mockMvc.perform(asyncDispatch(result))
+            .andExpect(status().isOk())
+            .andExpect(header().longValue("Content-Length", 270054));
+
+    verify(imageService, times(1)).writeFragment(eq(id), eq(0), eq(100), eq(200), eq(300), eq(300),
+                                                 any(OutputStream.class));
+  }
+
+  @Test
+  void getFragmentRangeNotSatisfiable() throws Exception {
+    when(imageService.getSize(id, 0)).thenReturn(chartaSize);
+
+    mockMvc.perform(get("/chartas/" + id)
+                            .header("Range", "bytes=270054-")
+                            .param("x", "100")
+                            .param("y", "200")
+                            .param("width", "300")
+                            .param("height", "300"))
+            .andExpect(status().isRequestedRangeNotSatisfiable())
+            .andExpect(header().string("Content-Range", "bytes */270054"));
+
+    verify(imageService, times(0)).writeFragment(anyString(), anyInt(), anyInt(), anyInt(),
+                                                 anyInt(), anyInt(), anyLong(), anyLong(),
+                                                 any(OutputStream.class));
+  }
+
+  @Test
+  void getFragments() throws Exception {
+    PixelBuffer first = PixelBuffer.of(fragment);
+    PixelBuffer second = PixelBuffer.of(Utilities.generateImage(10, 20, Color.RED));
+    List<Rectangle> areas = List.of(new Rectangle(0, 0, 300, 300), new Rectangle(5, 6, 10, 20));
+    when(imageService.getFragments(id, areas)).thenReturn(List.of(first, second));
+    doAnswer(invocation -> {
+      invocation.getArgument(1, OutputStream.class).write(new byte[]{1, 2, 3});
+      return null;
+    }).when(imageService).encryptImage(any(PixelBuffer.class), any(OutputStream.class));
+
+    MvcResult result = mockMvc.perform(get("/chartas/" + id + "/fragments")
+                                               .param("rect", "0,0,300,300")
+                                               .param("rect", "5,6,10,20"))
+            .andExpect(request().asyncStarted())
+            .andReturn();
+
+    String body = mockMvc.perform(asyncDispatch(result))
+            .andExpect(status().isOk())
+            .andExpect(content().contentTypeCompatibleWith("multipart/mixed"))
+            .andReturn().getResponse().getContentAsString();
+
+    String boundary = result.getResponse().getContentType().replaceAll(".*boundary=", "");
+    assertEquals(4, body.split("--" + boundary).length);
+    assertTrue(body.contains("Content-Location: /chartas/" + id
+                             + "?x=5&y=6&width=10&height=20"));
+    assertTrue(body.endsWith("--" + boundary + "--\r\n"));
+    verify(imageService, times(1)).encryptImage(eq(first), any(OutputStream.class));
+    verify(imageService, times(1)).encryptImage(eq(second), any(OutputStream.class));
+    // buffers of fragments are released once written
+    assertThrows(IllegalStateException.class, () -> first.readRow(0, 0, new byte[3], 0, 1));
+  }
+
+  @Test
+  void getFragmentsWithInvalidRectangle() throws Exception {
+    mockMvc.perform(get("/chartas/" + id + "/fragments")
+                            .param("rect", "0,0,300,300")
+                            .param("rect", "5,6,10"))
+            .andExpect(status().isBadRequest());
+    mockMvc.perform(get("/chartas/" + id + "/fragments")
+                            .param("rect", "0,0,300,6000"))
+            .andExpect(status().isBadRequest());
+
+    verify(imageService, times(0)).getFragments(anyString(), any());
   }
 
   @Test
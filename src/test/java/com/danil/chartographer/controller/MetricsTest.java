@@ -0,0 +1,88 @@
+package com.danil.chartographer.controller;
+
+import com.danil.chartographer.service.ImageService;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.actuate.metrics.AutoConfigureMetrics;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.web.server.LocalServerPort;
+
+import javax.imageio.ImageIO;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+
+import static com.danil.chartographer.Utilities.generateImage;
+import static com.danil.chartographer.Utilities.removeChartas;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+@AutoConfigureMetrics
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT,
+                args = "target/test-storage/images")
+class MetricsTest {
+
+  @LocalServerPort
+  private int port;
+  @Autowired
+  private ImageService service;
+  @Autowired
+  private MeterRegistry registry;
+
+  private final HttpClient client = HttpClient.newHttpClient();
+
+  @AfterEach
+  void removeStoredChartas() throws IOException {
+    removeChartas(service);
+  }
+
+  @Test
+  void phasesOfRequestsArePublished() throws Exception {
+    String id = send(HttpRequest.newBuilder(uri("/chartas/?width=200&height=100"))
+                             .POST(HttpRequest.BodyPublishers.noBody()).build());
+    ByteArrayOutputStream fragment = new ByteArrayOutputStream();
+    ImageIO.write(generateImage(50, 40, Color.RED), "bmp", fragment);
+    send(HttpRequest.newBuilder(uri("/chartas/" + id + "?x=10&y=10&width=50&height=40"))
+                 .POST(HttpRequest.BodyPublishers.ofByteArray(fragment.toByteArray())).build());
+    send(HttpRequest.newBuilder(uri("/chartas/" + id + "?x=0&y=0&width=100&height=50"))
+                 .GET().build());
+
+    String metrics = send(HttpRequest.newBuilder(uri("/actuator/prometheus")).GET().build());
+
+    for (String phase : new String[]{"lock", "decode", "write", "read", "encode"}) {
+      assertTrue(metrics.contains("chartographer_phase_seconds_count{phase=\"" + phase + "\""),
+                 phase);
+    }
+    assertTrue(metrics.contains("chartographer_storage_written_bytes_total"));
+    assertTrue(metrics.contains("chartographer_cache_requests_total{result=\"hit\""));
+    assertTrue(metrics.contains("http_server_requests_seconds_bucket"));
+    assertTrue(metrics.contains("uri=\"/chartas/{id}\""));
+  }
+
+  @Test
+  void onlyPixelsInsideBothImagesAreCounted() {
+    double before = registry.counter("chartographer.pixels.copied").count();
+    BufferedImage destination = new BufferedImage(20, 10, BufferedImage.TYPE_3BYTE_BGR);
+
+    service.copy(0, 0, 15, -5, 10, 10, generateImage(10, 10, Color.RED), destination);
+
+    assertEquals(25, registry.counter("chartographer.pixels.copied").count() - before);
+  }
+
+  private String send(HttpRequest request) throws IOException, InterruptedException {
+    HttpResponse<String> response = client.send(request, HttpResponse.BodyHandlers.ofString());
+    assertEquals(2, response.statusCode() / 100, response.body());
+    return response.body();
+  }
+
+  private URI uri(String path) {
+    return URI.create("http://localhost:" + port + path);
+  }
+}
@@ -1,46 +1,76 @@
 package com.danil.chartographer.service;
 
+import com.danil.chartographer.domain.ChartaVersion;
+import com.danil.chartographer.domain.Fragment;
+import com.danil.chartographer.domain.FragmentStatus;
+import com.danil.chartographer.exception.ImageFormatException;
 import com.danil.chartographer.exception.NoSuchIdException;
+import com.danil.chartographer.exception.SizeException;
+import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.Test;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.DefaultApplicationArguments;
 import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.util.FileSystemUtils;
 
+import javax.imageio.ImageIO;
 import java.awt.*;
 import java.awt.image.BufferedImage;
+import java.awt.image.IndexColorModel;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Objects;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static com.danil.chartographer.Utilities.generateImage;
+import static com.danil.chartographer.Utilities.removeChartas;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
 import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
-@SpringBootTest(args = "src/test/resources/images")
+@SpringBootTest(args = "target/test-storage/images", properties = "chartographer.pyramid.levels=8")
 class BmpImageServiceTest {
 
   @Autowired
   private ImageService service;
 
+  @AfterEach
+  void removeStoredChartas() throws IOException {
+    removeChartas(service);
+  }
+
   @Test
   void createDirectory() throws IOException {
     File uploadPath = new File(service.getPathForSaving());
-    if (uploadPath.exists()) {
-      clearDirectory(uploadPath);
-      Files.delete(uploadPath.toPath());
-    }
+    FileSystemUtils.deleteRecursively(uploadPath);
     assertFalse(uploadPath.exists());
 
     service.create(100, 200);
     assertTrue(new File(service.getPathForSaving()).exists());
+    assertTrue(new File(service.getPathForSaving(), ChartaIndex.FILE_NAME).exists());
   }
 
   private void clearDirectory(File dir) throws IOException {
     for (String s : Objects.requireNonNull(dir.list())) {
-      Files.delete(Path.of(dir.getAbsolutePath(), "/", s));
+      // the index stays in use while the service runs
+      if (!s.equals(ChartaIndex.FILE_NAME)) {
+        Files.delete(Path.of(dir.getAbsolutePath(), "/", s));
+      }
     }
   }
 
@@ -52,6 +82,23 @@ class BmpImageServiceTest {
     assertTrue(file.exists());
   }
 
+  @Test
+  void createBlackImage() throws IOException {
+    String name = service.create(123, 45);
+
+    File file = new File(service.getPathForSaving() + "/" + name + ".bmp");
+    assertEquals(BmpHeader.SIZE + BmpHeader.rowSize(123) * 45L, file.length());
+
+    BufferedImage image = service.getImage(name);
+    assertEquals(123, image.getWidth());
+    assertEquals(45, image.getHeight());
+    for (int i = 0; i < image.getWidth(); ++i) {
+      for (int j = 0; j < image.getHeight(); ++j) {
+        assertEquals(Color.BLACK.getRGB(), image.getRGB(i, j));
+      }
+    }
+  }
+
   @Test
   void copySmallToLarge() {
     BufferedImage src = generateImage(200, 300, Color.GREEN);
@@ -127,6 +174,70 @@ class BmpImageServiceTest {
     }
   }
 
+  @Test
+  void copyBetweenDifferentTypes() {
+    BufferedImage src = generateImage(100, 100, Color.GREEN);
+    BufferedImage dest = new BufferedImage(50, 50, BufferedImage.TYPE_INT_RGB);
+
+    service.copy(-10, 20, 0, -5, 40, 40, src, dest);
+
+    for (int i = 0; i < dest.getWidth(); ++i) {
+      for (int j = 0; j < dest.getHeight(); ++j) {
+        boolean inside = i >= 10 && i < 40 && j < 35;
+        Color color = inside ? Color.GREEN : Color.BLACK;
+        assertEquals(color.getRGB(), dest.getRGB(i, j));
+      }
+    }
+  }
+
+  @Test
+  void copyBetweenIndexedImagesWithDifferentPalettes() {
+    byte[] none = {0, 0};
+    IndexColorModel redFirst = new IndexColorModel(1, 2, new byte[]{(byte) 255, 0}, none, none);
+    IndexColorModel blackFirst = new IndexColorModel(1, 2, new byte[]{0, (byte) 255}, none, none);
+    BufferedImage src = new BufferedImage(20, 20, BufferedImage.TYPE_BYTE_INDEXED, redFirst);
+    BufferedImage dest = new BufferedImage(20, 20, BufferedImage.TYPE_BYTE_INDEXED, blackFirst);
+
+    service.copy(0, 0, 0, 0, 20, 20, src, dest);
+
+    for (int i = 0; i < dest.getWidth(); ++i) {
+      for (int j = 0; j < dest.getHeight(); ++j) {
+        assertEquals(Color.RED.getRGB(), dest.getRGB(i, j));
+      }
+    }
+  }
+
+  @Test
+  void copyWithinImage() {
+    BufferedImage image = generateImage(100, 100, Color.BLACK);
+    for (int j = 0; j < 10; ++j) {
+      image.setRGB(0, j, new Color(j, j, j).getRGB());
+    }
+
+    service.copy(0, 0, 0, 5, 1, 10, image, image);
+
+    for (int j = 0; j < 15; ++j) {
+      int expected = j < 5 ? j : j - 5;
+      assertEquals(new Color(expected, expected, expected).getRGB(), image.getRGB(0, j));
+    }
+  }
+
+  @Test
+  void copyFromSubimage() {
+    BufferedImage src = generateImage(100, 100, Color.BLACK);
+    src.setRGB(60, 70, Color.RED.getRGB());
+    BufferedImage dest = generateImage(10, 10, Color.BLACK);
+
+    service.copy(10, 20, 0, 0, 10, 10, src.getSubimage(50, 50, 40, 40), dest);
+
+    for (int i = 0; i < dest.getWidth(); ++i) {
+      for (int j = 0; j < dest.getHeight(); ++j) {
+        Color color = i == 0 && j == 0 ? Color.RED : Color.BLACK;
+        assertEquals(color.getRGB(), dest.getRGB(i, j));
+      }
+    }
+  }
+
   @Test
   void save() throws IOException {
     BufferedImage src = generateImage(200, 300, Color.GREEN);
@@ -159,6 +270,397 @@ class BmpImageServiceTest {
 
   }
 
+  @Test
+  void getSize() throws IOException {
+    String name = service.create(321, 123);
+
+    assertEquals(new Dimension(321, 123), service.getSize(name));
+  }
+
+  @Test
+  void saveAndGetFragment() throws IOException {
+    String name = service.create(301, 200);
+    service.saveFragment(name, 250, 150, generateImage(100, 100, Color.GREEN));
+
+    BufferedImage fragment = service.getFragment(name, 200, 100, 150, 150);
+    for (int i = 0; i < fragment.getWidth(); ++i) {
+      for (int j = 0; j < fragment.getHeight(); ++j) {
+        boolean inside = i >= 50 && i < 101 && j >= 50 && j < 100;
+        Color color = inside ? Color.GREEN : Color.BLACK;
+        assertEquals(color.getRGB(), fragment.getRGB(i, j));
+      }
+    }
+
+    BufferedImage charta = service.getImage(name);
+    for (int i = 0; i < charta.getWidth(); ++i) {
+      for (int j = 0; j < charta.getHeight(); ++j) {
+        Color color = i >= 250 && j >= 150 ? Color.GREEN : Color.BLACK;
+        assertEquals(color.getRGB(), charta.getRGB(i, j));
+      }
+    }
+  }
+
+  @Test
+  void getFragmentOutsideOfImage() throws IOException {
+    String name = service.create(100, 100);
+    service.saveFragment(name, 0, 0, generateImage(100, 100, Color.BLUE));
+
+    BufferedImage fragment = service.getFragment(name, -50, 80, 100, 100);
+    for (int i = 0; i < fragment.getWidth(); ++i) {
+      for (int j = 0; j < fragment.getHeight(); ++j) {
+        Color color = i >= 50 && j < 20 ? Color.BLUE : Color.BLACK;
+        assertEquals(color.getRGB(), fragment.getRGB(i, j));
+      }
+    }
+  }
+
+  @Test
+  void writeFragment() throws IOException {
+    String name = service.create(301, 200);
+    service.saveFragment(name, 250, 150, generateImage(100, 100, Color.GREEN));
+
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    service.writeFragment(name, 200, 100, 151, 150, out);
+    assertEquals(BmpHeader.SIZE + BmpHeader.rowSize(151) * 150, out.size());
+
+    BufferedImage fragment = ImageIO.read(new ByteArrayInputStream(out.toByteArray()));
+    assertEquals(151, fragment.getWidth());
+    assertEquals(150, fragment.getHeight());
+    for (int i = 0; i < fragment.getWidth(); ++i) {
+      for (int j = 0; j < fragment.getHeight(); ++j) {
+        boolean inside = i >= 50 && i < 101 && j >= 50 && j < 100;
+        Color color = inside ? Color.GREEN : Color.BLACK;
+        assertEquals(color.getRGB(), fragment.getRGB(i, j));
+      }
+    }
+  }
+
+  @Test
+  void writeFragmentRanges() throws IOException {
+    // reads of the service aren't coalesced, so ranges are streamed row by row
+    BmpImageService streaming = new BmpImageService(
+            new DefaultApplicationArguments(service.getPathForSaving()));
+    String name = streaming.create(301, 200);
+    streaming.saveFragment(name, 250, 150, generateImage(100, 100, Color.GREEN));
+    ByteArrayOutputStream full = new ByteArrayOutputStream();
+    streaming.writeFragment(name, 0, 200, 100, 151, 150, full);
+    byte[] bmp = full.toByteArray();
+
+    long[][] ranges = {{0, 10}, {20, 54}, {50, 1000}, {54, 510}, {1000, 1001}, {3000, bmp.length},
+                       {0, bmp.length}, {bmp.length, bmp.length}};
+    for (long[] range : ranges) {
+      byte[] expected = Arrays.copyOfRange(bmp, (int) range[0], (int) range[1]);
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      streaming.writeFragment(name, 0, 200, 100, 151, 150, range[0], range[1], out);
+      assertArrayEquals(expected, out.toByteArray(), Arrays.toString(range));
+
+      out.reset();
+      service.writeFragment(name, 0, 200, 100, 151, 150, range[0], range[1], out);
+      assertArrayEquals(expected, out.toByteArray(), Arrays.toString(range));
+    }
+    assertThrows(IllegalArgumentException.class,
+                 () -> streaming.writeFragment(name, 0, 200, 100, 151, 150, 10, bmp.length + 1,
+                                               new ByteArrayOutputStream()));
+    streaming.close();
+  }
+
+  @Test
+  void saveFragmentFromStream() throws IOException {
+    String name = service.create(300, 200);
+    BufferedImage fragment = generateImage(101, 50, Color.GREEN);
+    fragment.setRGB(0, 0, Color.RED.getRGB());
+
+    service.saveFragment(name, 250, 190, 101, 50, new ByteArrayInputStream(toBmp(fragment)));
+
+    BufferedImage charta = service.getImage(name);
+    for (int i = 0; i < charta.getWidth(); ++i) {
+      for (int j = 0; j < charta.getHeight(); ++j) {
+        Color color = i >= 250 && j >= 190 ? Color.GREEN : Color.BLACK;
+        if (i == 250 && j == 190) {
+          color = Color.RED;
+        }
+        assertEquals(color.getRGB(), charta.getRGB(i, j));
+      }
+    }
+  }
+
+  @Test
+  void saveFragmentFromStreamWithWrongSizes() throws IOException {
+    String name = service.create(300, 200);
+    byte[] data = toBmp(generateImage(100, 50, Color.GREEN));
+
+    assertThrows(SizeException.class,
+                 () -> service.saveFragment(name, 0, 0, 100, 51, new ByteArrayInputStream(data)));
+  }
+
+  @Test
+  void saveMalformedFragmentFromStream() throws IOException {
+    String name = service.create(300, 200);
+    byte[] data = toBmp(generateImage(100, 50, Color.GREEN));
+
+    InputStream truncated = new ByteArrayInputStream(data, 0, data.length - 1);
+    assertThrows(ImageFormatException.class,
+                 () -> service.saveFragment(name, 0, 0, 100, 50, truncated));
+    InputStream garbage = new ByteArrayInputStream(new byte[100]);
+    assertThrows(ImageFormatException.class,
+                 () -> service.saveFragment(name, 0, 0, 100, 50, garbage));
+  }
+
+  @Test
+  void concurrentFragmentsAreNotLost() throws Exception {
+    String name = service.create(400, 400);
+    ExecutorService executor = Executors.newFixedThreadPool(8);
+    List<Future<?>> futures = new ArrayList<>();
+    for (int k = 0; k < 16; ++k) {
+      int x = k % 4 * 100;
+      int y = k / 4 * 100;
+      BufferedImage fragment = generateImage(100, 100, new Color(k * 10, 255 - k * 10, k));
+      futures.add(executor.submit(() -> {
+        for (int n = 0; n < 20; ++n) {
+          service.saveFragment(name, x, y, fragment);
+          service.getFragment(name, x, y, 100, 100);
+        }
+        return null;
+      }));
+    }
+    for (Future<?> future : futures) {
+      future.get();
+    }
+    executor.shutdown();
+
+    BufferedImage charta = service.getFragment(name, 0, 0, 400, 400);
+    for (int k = 0; k < 16; ++k) {
+      int rgb = new Color(k * 10, 255 - k * 10, k).getRGB();
+      for (int i = 0; i < 100; ++i) {
+        for (int j = 0; j < 100; ++j) {
+          assertEquals(rgb, charta.getRGB(k % 4 * 100 + i, k / 4 * 100 + j));
+        }
+      }
+    }
+  }
+
+  @Test
+  void concurrentOverlappingFragmentsAreNotTorn() throws Exception {
+    String name = service.create(300, 300);
+    Color[] colors = {Color.RED, Color.GREEN, Color.BLUE, Color.WHITE};
+    ExecutorService executor = Executors.newFixedThreadPool(8);
+    List<Future<?>> futures = new ArrayList<>();
+    for (Color color : colors) {
+      BufferedImage fragment = generateImage(200, 200, color);
+      futures.add(executor.submit(() -> {
+        for (int n = 0; n < 20; ++n) {
+          service.saveFragment(name, 50, 50, fragment);
+        }
+        return null;
+      }));
+      futures.add(executor.submit(() -> {
+        for (int n = 0; n < 20; ++n) {
+          BufferedImage read = service.getFragment(name, 50, 50, 200, 200);
+          int first = read.getRGB(0, 0);
+          for (int i = 0; i < read.getWidth(); ++i) {
+            for (int j = 0; j < read.getHeight(); ++j) {
+              assertEquals(first, read.getRGB(i, j));
+            }
+          }
+        }
+        return null;
+      }));
+    }
+    for (Future<?> future : futures) {
+      future.get();
+    }
+    executor.shutdown();
+  }
+
+  @Test
+  void saveFragments() throws IOException {
+    String name = service.create(300, 300);
+    List<Fragment> fragments = List.of(
+            new Fragment(0, 200, 100, 100, toBmp(generateImage(100, 100, Color.RED))),
+            new Fragment(0, 0, 100, 100, toBmp(generateImage(100, 100, Color.GREEN))),
+            new Fragment(100, 0, 100, 100, toBmp(generateImage(100, 50, Color.GREEN))),
+            new Fragment(50, 150, 100, 100, toBmp(generateImage(100, 100, Color.BLUE))));
+
+    List<FragmentStatus> statuses = service.saveFragments(name, fragments);
+
+    assertEquals(4, statuses.size());
+    for (int i = 0; i < statuses.size(); ++i) {
+      assertEquals(i, statuses.get(i).getIndex());
+      assertEquals(i != 2, statuses.get(i).isSaved());
+    }
+    BufferedImage charta = service.getImage(name);
+    assertEquals(Color.GREEN.getRGB(), charta.getRGB(50, 50));
+    assertEquals(Color.BLACK.getRGB(), charta.getRGB(150, 50));
+    assertEquals(Color.RED.getRGB(), charta.getRGB(10, 210));
+    // the later fragment wins where fragments overlap
+    assertEquals(Color.BLUE.getRGB(), charta.getRGB(60, 210));
+  }
+
+  @Test
+  void getFragments() throws IOException {
+    String name = service.create(300, 200);
+    BufferedImage src = generateImage(300, 200, Color.BLACK);
+    for (int i = 0; i < src.getWidth(); ++i) {
+      for (int j = 0; j < src.getHeight(); ++j) {
+        src.setRGB(i, j, new Color(i % 256, j, (i + j) % 256).getRGB());
+      }
+    }
+    service.saveFragment(name, 0, 0, src);
+    List<Rectangle> areas = List.of(new Rectangle(10, 20, 50, 40), new Rectangle(40, 30, 30, 30),
+                                    new Rectangle(280, 190, 30, 30), new Rectangle(-5, 0, 1, 1));
+
+    List<PixelBuffer> fragments = service.getFragments(name, areas);
+
+    assertEquals(areas.size(), fragments.size());
+    for (int k = 0; k < areas.size(); ++k) {
+      Rectangle area = areas.get(k);
+      BufferedImage expected = service.getFragment(name, area.x, area.y, area.width,
+                                                   area.height);
+      BufferedImage actual = fragments.get(k).toImage();
+      fragments.get(k).close();
+      for (int i = 0; i < area.width; ++i) {
+        for (int j = 0; j < area.height; ++j) {
+          assertEquals(expected.getRGB(i, j), actual.getRGB(i, j));
+        }
+      }
+    }
+  }
+
+  @Test
+  void pixelBuffersRoundTrip() throws IOException {
+    BufferedImage src = generateImage(31, 7, Color.GREEN);
+    src.setRGB(30, 6, Color.RED.getRGB());
+
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    try (PixelBuffer buffer = PixelBuffer.of(src)) {
+      service.encryptImage(buffer, out);
+    }
+
+    BufferedImage decoded = ImageIO.read(new ByteArrayInputStream(out.toByteArray()));
+    assertEquals(BmpHeader.of(31, 7).getFileSize(), out.size());
+    for (int i = 0; i < src.getWidth(); ++i) {
+      for (int j = 0; j < src.getHeight(); ++j) {
+        assertEquals(src.getRGB(i, j), decoded.getRGB(i, j));
+      }
+    }
+  }
+
+  @Test
+  void pixelBuffersAreReused() throws IOException {
+    PixelBufferPool pool = new PixelBufferPool(1 << 20);
+    try (PixelBuffer first = pool.allocate(100, 100)) {
+      first.writeRow(0, 0, new byte[]{1, 2, 3}, 0, 1);
+    }
+
+    try (PixelBuffer second = pool.allocate(90, 110)) {
+      byte[] pixel = new byte[3];
+      second.readRow(0, 0, pixel, 0, 1);
+      assertArrayEquals(new byte[3], pixel);
+    }
+    assertEquals(1, pool.getAllocations());
+    assertEquals(1, pool.getReuses());
+  }
+
+  @Test
+  void encryptImageToStream() throws IOException {
+    BufferedImage src = generateImage(31, 7, Color.GREEN);
+    src.setRGB(30, 6, Color.RED.getRGB());
+
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    service.encryptImage(src, out);
+
+    BufferedImage decoded = ImageIO.read(new ByteArrayInputStream(out.toByteArray()));
+    assertEquals(BmpHeader.of(31, 7).getFileSize(), out.size());
+    for (int i = 0; i < src.getWidth(); ++i) {
+      for (int j = 0; j < src.getHeight(); ++j) {
+        assertEquals(src.getRGB(i, j), decoded.getRGB(i, j));
+      }
+    }
+  }
+
+  @Test
+  void pyramidLevels() throws IOException {
+    String name = service.create(301, 200);
+    assertEquals(new Dimension(151, 100), service.getSize(name, 1));
+    assertEquals(new Dimension(3, 2), service.getSize(name, 7));
+    assertThrows(SizeException.class, () -> service.getSize(name, 10));
+
+    BufferedImage src = generateImage(301, 200, Color.BLACK);
+    for (int i = 0; i < src.getWidth(); ++i) {
+      for (int j = 0; j < src.getHeight(); ++j) {
+        src.setRGB(i, j, new Color(i % 256, j, (i * j) % 256).getRGB());
+      }
+    }
+    service.saveFragment(name, 0, 0, src);
+    service.saveFragment(name, 101, 51, generateImage(50, 50, Color.RED));
+
+    BufferedImage expected = service.getImage(name);
+    for (int level = 1; level <= 3; ++level) {
+      expected = downsample(expected);
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      service.writeFragment(name, level, 0, 0, expected.getWidth(), expected.getHeight(), out);
+      BufferedImage actual = ImageIO.read(new ByteArrayInputStream(out.toByteArray()));
+      for (int i = 0; i < expected.getWidth(); ++i) {
+        for (int j = 0; j < expected.getHeight(); ++j) {
+          assertEquals(expected.getRGB(i, j), actual.getRGB(i, j));
+        }
+      }
+    }
+
+    service.removeImage(name);
+    assertFalse(new File(service.getPathForSaving() + "/" + name + ".level1.bmp").exists());
+  }
+
+  @Test
+  void pyramidWithMissingLevelIsRebuilt() throws IOException {
+    String name = service.create(301, 200);
+    File level2 = new File(service.getPathForSaving(), name + ".level2.bmp");
+    assertTrue(level2.exists());
+    Files.delete(level2.toPath());
+
+    BmpImageService restarted = new BmpImageService(
+            new DefaultApplicationArguments(service.getPathForSaving()));
+    restarted.setPyramidLevels(8);
+    assertEquals(new Dimension(151, 100), restarted.getSize(name, 1));
+    assertTrue(level2.exists());
+
+    restarted.removeImage(name);
+    for (int level = 1; level <= 7; ++level) {
+      assertFalse(new File(service.getPathForSaving(), name + ".level" + level + ".bmp").exists());
+    }
+    restarted.close();
+  }
+
+  private static BufferedImage downsample(BufferedImage image) {
+    BufferedImage result = new BufferedImage((image.getWidth() + 1) / 2,
+                                             (image.getHeight() + 1) / 2,
+                                             BufferedImage.TYPE_3BYTE_BGR);
+    for (int i = 0; i < result.getWidth(); ++i) {
+      for (int j = 0; j < result.getHeight(); ++j) {
+        int[] sum = new int[3];
+        int count = 0;
+        for (int x = i * 2; x < Math.min(i * 2 + 2, image.getWidth()); ++x) {
+          for (int y = j * 2; y < Math.min(j * 2 + 2, image.getHeight()); ++y) {
+            Color color = new Color(image.getRGB(x, y));
+            sum[0] += color.getRed();
+            sum[1] += color.getGreen();
+            sum[2] += color.getBlue();
+            ++count;
+          }
+        }
+        result.setRGB(i, j, new Color((sum[0] + count / 2) / count, (sum[1] + count / 2) / count,
+                                      (sum[2] + count / 2) / count).getRGB());
+      }
+    }
+    return result;
+  }
+
+  private static byte[] toBmp(BufferedImage image) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    ImageIO.write(image, "bmp", out);
+    return out.toByteArray();
+  }
+
   @Test
   void getImageIfNoFile() throws IOException {
     File uploadPath = new File(service.getPathForSaving());
@@ -169,6 +671,86 @@ class BmpImageServiceTest {
     assertThrows(NoSuchIdException.class, () -> service.getImage(name));
   }
 
+  @Test
+  void indexIsLoadedAfterRestart() throws Exception {
+    String id = service.create(120, 80);
+    service.saveFragment(id, 0, 0, generateImage(10, 10, Color.RED));
+    String removed = service.create(50, 50);
+    service.removeImage(removed);
+
+    String replaced = service.create(30, 20);
+    // the image is replaced behind the index, its entry is stale after a restart
+    File file = new File(service.getPathForSaving(), replaced + ".bmp");
+    ImageIO.write(generateImage(40, 10, Color.GREEN), "bmp", file);
+    assertTrue(file.setLastModified(file.lastModified() + 5000));
+
+    BmpImageService restarted = new BmpImageService(
+            new DefaultApplicationArguments(service.getPathForSaving()));
+    restarted.loadIndex();
+
+    assertTrue(new File(service.getPathForSaving(), ChartaIndex.FILE_NAME).exists());
+    assertEquals(new Dimension(120, 80), restarted.getSize(id));
+    assertEquals(new Dimension(40, 10), restarted.getSize(replaced));
+    assertThrows(NoSuchIdException.class, () -> restarted.getSize(removed));
+    assertThrows(NoSuchIdException.class, () -> restarted.getSize("missing"));
+    for (int i = 0; i < 500 && !restarted.isIndexVerified(); ++i) {
+      Thread.sleep(10);
+    }
+    assertTrue(restarted.isIndexVerified());
+    restarted.close();
+  }
+
+  @Test
+  void entryOfWrittenImageIsTrustedAfterRestart() throws Exception {
+    BmpImageService first = new BmpImageService(
+            new DefaultApplicationArguments(service.getPathForSaving()));
+    String id = first.create(120, 80);
+    // the write must change the time the file was modified
+    Thread.sleep(20);
+    first.saveFragment(id, 10, 10, 50, 40,
+                       new ByteArrayInputStream(toBmp(generateImage(50, 40, Color.RED))));
+    first.close();
+
+    AtomicInteger described = new AtomicInteger();
+    BmpImageService restarted = new BmpImageService(
+            new DefaultApplicationArguments(service.getPathForSaving())) {
+      @Override
+      protected ChartaIndex.Entry describe(String charta, long created, long modified)
+              throws IOException {
+        if (charta.equals(id)) {
+          described.incrementAndGet();
+        }
+        return super.describe(charta, created, modified);
+      }
+    };
+    restarted.loadIndex();
+    for (int i = 0; i < 500 && !restarted.isIndexVerified(); ++i) {
+      Thread.sleep(10);
+    }
+
+    assertTrue(restarted.isIndexVerified());
+    assertEquals(0, described.get());
+    assertEquals(Color.RED.getRGB(), restarted.getFragment(id, 10, 10, 1, 1).getRGB(0, 0));
+    restarted.close();
+  }
+
+  @Test
+  void versionChangesOnlyWithWrites() throws IOException {
+    String id = service.create(100, 100);
+    ChartaVersion created = service.getVersion(id);
+
+    service.getFragment(id, 0, 0, 10, 10);
+    assertEquals(created, service.getVersion(id));
+
+    service.saveFragment(id, 0, 0, generateImage(10, 10, Color.RED));
+    ChartaVersion written = service.getVersion(id);
+    assertNotEquals(created.getTag(), written.getTag());
+    assertTrue(written.getLastModified() >= created.getLastModified());
+
+    service.removeImage(id);
+    assertNull(service.getVersion(id));
+  }
+
   @Test
   void removeImage() throws IOException {
     BufferedImage img = generateImage(800, 600, Color.BLUE);
@@ -0,0 +1,134 @@
+package com.danil.chartographer.service;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+
+import javax.imageio.ImageIO;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static com.danil.chartographer.Utilities.generateImage;
+import static com.danil.chartographer.Utilities.removeChartas;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+@SpringBootTest(args = "target/test-storage/tiles",
+        properties = {"chartographer.storage=tiled", "chartographer.tiles.size=100",
+                "chartographer.tiles.codec=deflate"})
+class CompressedTiledImageServiceTest {
+
+  @Autowired
+  private ImageService service;
+
+  @AfterEach
+  void removeStoredChartas() throws IOException {
+    removeChartas(service);
+  }
+
+  @Test
+  void blackTilesAreNotStored() throws IOException {
+    String name = service.create(1000, 1000);
+    service.saveFragment(name, 0, 0, generateImage(300, 300, Color.BLACK));
+
+    assertArrayEquals(new String[]{"meta"}, directory(name).list());
+    assertEquals(new Dimension(1000, 1000), service.getSize(name));
+  }
+
+  @Test
+  void tilesAreCompressed() throws IOException {
+    String name = service.create(1000, 1000);
+    service.saveFragment(name, 150, 10, generateImage(200, 100, Color.GREEN));
+
+    String[] files = directory(name).list();
+    Arrays.sort(files);
+    // tiles are 100 pixels long and 64 rows high
+    assertArrayEquals(new String[]{"0_1.tile", "0_2.tile", "0_3.tile", "1_1.tile", "1_2.tile",
+            "1_3.tile", "meta"}, files);
+    long size = 0;
+    for (File file : directory(name).listFiles()) {
+      size += file.length();
+    }
+    assertTrue(size < 200 * 100 * BmpHeader.BYTES_PER_PIXEL / 10);
+  }
+
+  @Test
+  void saveAndGetFragment() throws IOException {
+    String name = service.create(301, 200);
+    BufferedImage fragment = generateImage(100, 100, Color.GREEN);
+    fragment.setRGB(99, 0, Color.RED.getRGB());
+    ByteArrayOutputStream bmp = new ByteArrayOutputStream();
+    ImageIO.write(fragment, "bmp", bmp);
+    service.saveFragment(name, 201, 50, 100, 100, new ByteArrayInputStream(bmp.toByteArray()));
+
+    BufferedImage result = service.getFragment(name, 200, 0, 150, 200);
+    for (int i = 0; i < result.getWidth(); ++i) {
+      for (int j = 0; j < result.getHeight(); ++j) {
+        boolean inside = i >= 1 && i < 101 && j >= 50 && j < 150;
+        Color color = i == 100 && j == 50 ? Color.RED : inside ? Color.GREEN : Color.BLACK;
+        assertEquals(color.getRGB(), result.getRGB(i, j));
+      }
+    }
+  }
+
+  @Test
+  void overwrittenTilesBecomeBlack() throws IOException {
+    String name = service.create(200, 200);
+    service.saveFragment(name, 0, 0, generateImage(200, 64, Color.BLUE));
+    service.saveFragment(name, 0, 0, generateImage(100, 64, Color.BLACK));
+
+    String[] files = directory(name).list();
+    Arrays.sort(files);
+    assertArrayEquals(new String[]{"0_1.tile", "meta"}, files);
+    assertEquals(Color.BLUE.getRGB(), service.getFragment(name, 150, 30, 1, 1).getRGB(0, 0));
+  }
+
+  @Test
+  void bandsOfTileAreWrittenInParallel() throws Exception {
+    String name = service.create(100, 640);
+    Color[] colors = {Color.RED, Color.GREEN, Color.BLUE, Color.WHITE, Color.YELLOW};
+    ExecutorService executor = Executors.newFixedThreadPool(colors.length);
+    try {
+      for (int round = 0; round < 4; ++round) {
+        List<Future<?>> writes = new ArrayList<>();
+        for (int i = 0; i < colors.length; ++i) {
+          int band = i * 2 + round % 2;
+          Color color = colors[(i + round) % colors.length];
+          writes.add(executor.submit(() -> {
+            service.saveFragment(name, 0, band * CompressedTiledPixelStore.TILE_HEIGHT,
+                                 generateImage(100, CompressedTiledPixelStore.TILE_HEIGHT, color));
+            return null;
+          }));
+        }
+        for (Future<?> write : writes) {
+          write.get();
+        }
+      }
+    } finally {
+      executor.shutdown();
+    }
+
+    BufferedImage image = service.getImage(name);
+    for (int band = 0; band < 10; ++band) {
+      int round = 2 + band % 2;
+      Color color = colors[(band / 2 + round) % colors.length];
+      assertEquals(color.getRGB(), image.getRGB(50, band * CompressedTiledPixelStore.TILE_HEIGHT));
+    }
+  }
+
+  private File directory(String name) {
+    return new File(service.getPathForSaving() + "/" + name + ".tiles");
+  }
+}
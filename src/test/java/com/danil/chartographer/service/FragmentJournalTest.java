@@ -0,0 +1,179 @@
+package com.danil.chartographer.service;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.web.servlet.MockMvc;
+
+import javax.imageio.ImageIO;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+import static com.danil.chartographer.Utilities.generateImage;
+import static com.danil.chartographer.Utilities.removeChartas;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.asyncDispatch;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.request;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+
+@SpringBootTest(args = "target/test-storage/images",
+                properties = "chartographer.journal.enabled=true")
+@AutoConfigureMockMvc
+class FragmentJournalTest {
+
+  @Autowired
+  private MockMvc mockMvc;
+  @Autowired
+  private ImageService service;
+  @Autowired
+  private FragmentJournal journal;
+
+  @AfterEach
+  void removeStoredChartas() throws IOException {
+    removeChartas(service);
+  }
+
+  @Test
+  void fragmentIsAcceptedAndVisibleToReads() throws Exception {
+    String id = service.create(200, 100);
+
+    for (int i = 0; i < 10; ++i) {
+      mockMvc.perform(post("/chartas/" + id)
+                              .param("x", String.valueOf(i * 10))
+                              .param("y", "10")
+                              .param("width", "50")
+                              .param("height", "50")
+                              .content(toBmp(generateImage(50, 50, i % 2 == 0 ? Color.RED
+                                                                              : Color.BLUE))))
+              .andExpect(request().asyncStarted())
+              .andDo(result -> mockMvc.perform(asyncDispatch(result))
+                      .andExpect(status().isAccepted()));
+    }
+    journal.await(id);
+
+    BufferedImage image = service.getFragment(id, 0, 0, 200, 100);
+    assertEquals(Color.BLUE.getRGB(), image.getRGB(95, 30));
+    assertEquals(Color.BLUE.getRGB(), image.getRGB(139, 59));
+    assertEquals(Color.BLACK.getRGB(), image.getRGB(140, 59));
+    assertEquals(Color.BLACK.getRGB(), image.getRGB(95, 9));
+    assertFalse(new File(service.getPathForSaving() + "/" + id + ".journal").exists());
+  }
+
+  @Test
+  void invalidFragmentIsRejected() throws Exception {
+    String id = service.create(200, 100);
+
+    mockMvc.perform(post("/chartas/" + id)
+                            .param("x", "0")
+                            .param("y", "0")
+                            .param("width", "40")
+                            .param("height", "50")
+                            .content(toBmp(generateImage(50, 50, Color.RED))))
+            .andDo(result -> mockMvc.perform(asyncDispatch(result))
+                    .andExpect(status().isBadRequest()));
+    mockMvc.perform(post("/chartas/" + id)
+                            .param("x", "0")
+                            .param("y", "0")
+                            .param("width", "50")
+                            .param("height", "50")
+                            .content(new byte[]{1, 2, 3}))
+            .andDo(result -> mockMvc.perform(asyncDispatch(result))
+                    .andExpect(status().isBadRequest()));
+
+    assertFalse(new File(service.getPathForSaving() + "/" + id + ".journal").exists());
+  }
+
+  @Test
+  void oversizedFragmentIsRejected() throws Exception {
+    String id = service.create(200, 100);
+    byte[] bmp = toBmp(generateImage(50, 50, Color.RED));
+    byte[] oversized = Arrays.copyOf(bmp, bmp.length + BmpHeader.MAX_EXTRA_HEADER + 1);
+
+    mockMvc.perform(post("/chartas/" + id)
+                            .param("x", "0")
+                            .param("y", "0")
+                            .param("width", "50")
+                            .param("height", "50")
+                            .content(oversized))
+            .andDo(result -> mockMvc.perform(asyncDispatch(result))
+                    .andExpect(status().isBadRequest()));
+
+    assertFalse(new File(service.getPathForSaving() + "/" + id + ".journal").exists());
+    assertEquals(0, journal.getPendingBytes());
+  }
+
+  @Test
+  void journalLeftByCrashIsMerged() throws IOException {
+    String id = service.create(200, 100);
+    byte[] data = toBmp(generateImage(20, 30, Color.GREEN));
+    try (DataOutputStream out = new DataOutputStream(new FileOutputStream(
+            service.getPathForSaving() + "/" + id + ".journal"))) {
+      out.writeInt(5);
+      out.writeInt(6);
+      out.writeInt(20);
+      out.writeInt(30);
+      out.writeInt(data.length);
+      out.write(data);
+      // entry cut short while being appended
+      out.writeInt(0);
+      out.writeInt(0);
+    }
+
+    journal.recover();
+    journal.await(id);
+
+    BufferedImage image = service.getFragment(id, 0, 0, 200, 100);
+    assertEquals(Color.GREEN.getRGB(), image.getRGB(5, 6));
+    assertEquals(Color.GREEN.getRGB(), image.getRGB(24, 35));
+    assertEquals(Color.BLACK.getRGB(), image.getRGB(25, 35));
+    assertFalse(new File(service.getPathForSaving() + "/" + id + ".journal").exists());
+  }
+
+  @Test
+  void damagedJournalEndsAtDamagedEntry() throws IOException {
+    byte[] data = toBmp(generateImage(20, 30, Color.GREEN));
+    for (int length : new int[]{-1, 10, Integer.MAX_VALUE, data.length + 1}) {
+      String id = service.create(200, 100);
+      File file = new File(service.getPathForSaving() + "/" + id + ".journal");
+      try (DataOutputStream out = new DataOutputStream(new FileOutputStream(file))) {
+        out.writeInt(5);
+        out.writeInt(6);
+        out.writeInt(20);
+        out.writeInt(30);
+        out.writeInt(data.length);
+        out.write(data);
+        // entry with a length it can't have
+        out.writeInt(50);
+        out.writeInt(60);
+        out.writeInt(20);
+        out.writeInt(30);
+        out.writeInt(length);
+        out.write(data);
+      }
+
+      journal.recover();
+      journal.await(id);
+
+      BufferedImage image = service.getFragment(id, 0, 0, 200, 100);
+      assertEquals(Color.GREEN.getRGB(), image.getRGB(5, 6), String.valueOf(length));
+      assertEquals(Color.BLACK.getRGB(), image.getRGB(50, 60), String.valueOf(length));
+      assertFalse(file.exists());
+    }
+  }
+
+  private static byte[] toBmp(BufferedImage image) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    ImageIO.write(image, "bmp", out);
+    return out.toByteArray();
+  }
+}
@@ -0,0 +1,84 @@
+package com.danil.chartographer.service;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+
+import static com.danil.chartographer.Utilities.generateImage;
+import static com.danil.chartographer.Utilities.removeChartas;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+@SpringBootTest(args = "target/test-storage/images", properties = "chartographer.storage=mapped")
+class MappedImageServiceTest {
+
+  @Autowired
+  private ImageService service;
+
+  @AfterEach
+  void removeStoredChartas() throws IOException {
+    removeChartas(service);
+  }
+
+  @Test
+  void mappedServiceIsUsed() {
+    assertTrue(service instanceof MappedImageService);
+  }
+
+  @Test
+  void onlyRecentlyUsedImagesStayMapped() throws IOException {
+    MappedImageService mapped = (MappedImageService) service;
+    mapped.setMaxImages(2);
+    try {
+      String first = service.create(50, 50);
+      String second = service.create(50, 50);
+      String third = service.create(50, 50);
+      service.saveFragment(first, 0, 0, generateImage(10, 10, Color.RED));
+      service.saveFragment(second, 0, 0, generateImage(10, 10, Color.GREEN));
+      service.saveFragment(third, 0, 0, generateImage(10, 10, Color.BLUE));
+      assertEquals(2, mapped.getMappedImages());
+
+      // the first image is mapped again
+      assertEquals(Color.RED.getRGB(), service.getFragment(first, 0, 0, 1, 1).getRGB(0, 0));
+      assertEquals(Color.BLUE.getRGB(), service.getFragment(third, 0, 0, 1, 1).getRGB(0, 0));
+      assertEquals(2, mapped.getMappedImages());
+    } finally {
+      mapped.setMaxImages(256);
+    }
+  }
+
+  @Test
+  void saveAndGetFragment() throws IOException {
+    String name = service.create(301, 200);
+    service.saveFragment(name, 250, 150, generateImage(100, 100, Color.GREEN));
+
+    BufferedImage fragment = service.getFragment(name, 200, 100, 150, 150);
+    for (int i = 0; i < fragment.getWidth(); ++i) {
+      for (int j = 0; j < fragment.getHeight(); ++j) {
+        boolean inside = i >= 50 && i < 101 && j >= 50 && j < 100;
+        Color color = inside ? Color.GREEN : Color.BLACK;
+        assertEquals(color.getRGB(), fragment.getRGB(i, j));
+      }
+    }
+  }
+
+  @Test
+  void fragmentIsVisibleInFile() throws IOException {
+    String name = service.create(100, 100);
+    service.saveFragment(name, 10, 20, generateImage(30, 40, Color.RED));
+
+    BufferedImage charta = service.getImage(name);
+    for (int i = 0; i < charta.getWidth(); ++i) {
+      for (int j = 0; j < charta.getHeight(); ++j) {
+        boolean inside = i >= 10 && i < 40 && j >= 20 && j < 60;
+        Color color = inside ? Color.RED : Color.BLACK;
+        assertEquals(color.getRGB(), charta.getRGB(i, j));
+      }
+    }
+  }
+}
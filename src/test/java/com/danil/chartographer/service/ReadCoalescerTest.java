@@ -0,0 +1,154 @@
+package com.danil.chartographer.service;
+
+import com.danil.chartographer.exception.OverloadException;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+
+import javax.imageio.ImageIO;
+import java.awt.*;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.danil.chartographer.Utilities.generateImage;
+import static com.danil.chartographer.Utilities.removeChartas;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+@SpringBootTest(args = "target/test-storage/images",
+                properties = "chartographer.reads.coalesce-max-bytes=1000000")
+class ReadCoalescerTest {
+
+  private static final Rectangle AREA = new Rectangle(0, 0, 10, 10);
+
+  @Autowired
+  private ImageService service;
+
+  @AfterEach
+  void removeStoredChartas() throws IOException {
+    removeChartas(service);
+  }
+
+  @Test
+  void identicalReadsShareSingleLoad() throws Exception {
+    ReadCoalescer coalescer = new ReadCoalescer(1000);
+    CountDownLatch release = new CountDownLatch(1);
+    AtomicInteger loads = new AtomicInteger();
+    byte[] bytes = {1, 2, 3};
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    try {
+      List<Future<byte[]>> reads = new ArrayList<>();
+      for (int i = 0; i < 4; ++i) {
+        reads.add(executor.submit(() -> coalescer.read("id", 0, 0, AREA, () -> {
+          loads.incrementAndGet();
+          await(release);
+          return bytes;
+        })));
+      }
+      while (coalescer.getCoalesced() < 3) {
+        Thread.sleep(10);
+      }
+      release.countDown();
+
+      for (Future<byte[]> read : reads) {
+        assertSame(bytes, read.get(10, TimeUnit.SECONDS));
+      }
+      assertEquals(1, loads.get());
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  @Test
+  void readAfterWriteDoesNotJoinEarlierRead() throws Exception {
+    ReadCoalescer coalescer = new ReadCoalescer(1000);
+    CountDownLatch loading = new CountDownLatch(1);
+    CountDownLatch release = new CountDownLatch(1);
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    try {
+      Future<byte[]> before = executor.submit(() -> coalescer.read("id", 0, 0, AREA, () -> {
+        loading.countDown();
+        await(release);
+        return new byte[]{1};
+      }));
+      assertTrue(loading.await(10, TimeUnit.SECONDS));
+
+      // a write has completed meanwhile
+      byte[] after = coalescer.read("id", 1, 0, AREA, () -> new byte[]{2});
+      release.countDown();
+
+      assertArrayEquals(new byte[]{2}, after);
+      assertArrayEquals(new byte[]{1}, before.get(10, TimeUnit.SECONDS));
+      assertEquals(0, coalescer.getCoalesced());
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  @Test
+  void failedLoadIsNotShared() {
+    ReadCoalescer coalescer = new ReadCoalescer(1000);
+    assertThrows(IOException.class, () -> coalescer.read("id", 0, 0, AREA, () -> {
+      throw new IOException("Disk failed");
+    }));
+    // the failed read is not shared with later ones
+    assertThrows(IllegalStateException.class, () -> coalescer.read("id", 0, 0, AREA, () -> {
+      throw new IllegalStateException();
+    }));
+  }
+
+  @Test
+  void coalescedReadsSeeCompletedWrites() throws IOException {
+    String id = service.create(100, 100);
+    ByteArrayOutputStream first = new ByteArrayOutputStream();
+    service.writeFragment(id, 0, 0, 0, 20, 20, first);
+
+    service.saveFragment(id, 0, 0, generateImage(20, 20, Color.RED));
+    ByteArrayOutputStream second = new ByteArrayOutputStream();
+    service.writeFragment(id, 0, 0, 0, 20, 20, second);
+
+    assertEquals(Color.BLACK.getRGB(),
+                 ImageIO.read(new ByteArrayInputStream(first.toByteArray())).getRGB(5, 5));
+    assertEquals(Color.RED.getRGB(),
+                 ImageIO.read(new ByteArrayInputStream(second.toByteArray())).getRGB(5, 5));
+  }
+
+  @Test
+  void admissionIsLimitedByBytesInFlight() {
+    AdmissionLimiter limiter = new AdmissionLimiter(100);
+    AdmissionLimiter.Permit first = limiter.acquire(60);
+    assertThrows(OverloadException.class, () -> limiter.acquire(60));
+    assertEquals(1, limiter.getRejected());
+
+    first.close();
+    first.close();
+    assertEquals(0, limiter.getBytesInFlight());
+    // a request larger than the limit is admitted when nothing else is in flight
+    try (AdmissionLimiter.Permit large = limiter.acquire(1000)) {
+      assertEquals(100, limiter.getBytesInFlight());
+    }
+    assertEquals(0, limiter.getBytesInFlight());
+  }
+
+  private static void await(CountDownLatch latch) throws IOException {
+    try {
+      latch.await();
+    } catch (InterruptedException e) {
+      throw new InterruptedIOException();
+    }
+  }
+}
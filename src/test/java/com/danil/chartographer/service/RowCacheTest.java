@@ -0,0 +1,91 @@
+package com.danil.chartographer.service;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+
+import javax.imageio.ImageIO;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+
+import static com.danil.chartographer.Utilities.generateImage;
+import static com.danil.chartographer.Utilities.removeChartas;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+@SpringBootTest(args = "target/test-storage/images",
+        properties = {"chartographer.cache.max-bytes=100000",
+                "chartographer.cache.band-height=16",
+                "chartographer.cache.flush-interval=3600000"})
+class RowCacheTest {
+
+  @Autowired
+  private ImageService service;
+  @Autowired
+  private RowCache cache;
+
+  @AfterEach
+  void removeStoredChartas() throws IOException {
+    removeChartas(service);
+  }
+
+  @Test
+  void repeatedReadsAreServedFromCache() throws IOException {
+    String name = service.create(100, 100);
+    service.getFragment(name, 0, 0, 50, 16);
+    long misses = cache.getMisses();
+    long hits = cache.getHits();
+
+    service.getFragment(name, 50, 0, 50, 16);
+
+    assertEquals(misses, cache.getMisses());
+    assertEquals(hits + 16, cache.getHits());
+  }
+
+  @Test
+  void writesStayInCacheUntilFlushed() throws IOException {
+    String name = service.create(100, 100);
+    service.saveFragment(name, 10, 10, generateImage(20, 20, Color.GREEN));
+
+    File file = new File(service.getPathForSaving() + "/" + name + ".bmp");
+    assertEquals(Color.BLACK.getRGB(), ImageIO.read(file).getRGB(15, 15));
+    assertEquals(Color.GREEN.getRGB(), service.getFragment(name, 15, 15, 1, 1).getRGB(0, 0));
+
+    cache.flush(name);
+    assertEquals(Color.GREEN.getRGB(), ImageIO.read(file).getRGB(15, 15));
+  }
+
+  @Test
+  void evictedBandsAreWrittenBack() throws IOException {
+    String name = service.create(1000, 300);
+    BufferedImage fragment = generateImage(1000, 300, Color.BLUE);
+    fragment.setRGB(999, 299, Color.RED.getRGB());
+    long evictions = cache.getEvictions();
+
+    service.saveFragment(name, 0, 0, fragment);
+
+    assertTrue(cache.getEvictions() > evictions);
+    assertTrue(cache.getSize() <= cache.getMaxSize());
+    BufferedImage image = service.getImage(name);
+    for (int i = 0; i < image.getWidth(); ++i) {
+      for (int j = 0; j < image.getHeight(); ++j) {
+        assertEquals(fragment.getRGB(i, j), image.getRGB(i, j));
+      }
+    }
+  }
+
+  @Test
+  void removedImageIsDroppedFromCache() throws IOException {
+    String name = service.create(100, 100);
+    service.saveFragment(name, 0, 0, generateImage(100, 100, Color.GREEN));
+
+    service.removeImage(name);
+    cache.flushAll();
+
+    assertFalse(new File(service.getPathForSaving() + "/" + name + ".bmp").exists());
+  }
+}
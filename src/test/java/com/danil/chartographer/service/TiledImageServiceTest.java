@@ -0,0 +1,106 @@
+package com.danil.chartographer.service;
+
+import com.danil.chartographer.exception.NoSuchIdException;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+import static com.danil.chartographer.Utilities.generateImage;
+import static com.danil.chartographer.Utilities.removeChartas;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+@SpringBootTest(args = "target/test-storage/tiles",
+        properties = {"chartographer.storage=tiled", "chartographer.tiles.size=64"})
+class TiledImageServiceTest {
+
+  @Autowired
+  private ImageService service;
+  @Autowired
+  private RowCache cache;
+
+  @AfterEach
+  void removeStoredChartas() throws IOException {
+    removeChartas(service);
+  }
+
+  @Test
+  void tiledServiceIsUsed() {
+    assertTrue(service instanceof TiledImageService);
+  }
+
+  @Test
+  void createWithoutTiles() throws IOException {
+    String name = service.create(20000, 50000);
+
+    File directory = new File(service.getPathForSaving() + "/" + name + ".tiles");
+    assertArrayEquals(new String[]{"meta"}, directory.list());
+    assertEquals(new Dimension(20000, 50000), service.getSize(name));
+  }
+
+  @Test
+  void saveFragmentTouchesOnlyIntersectingTiles() throws IOException {
+    String name = service.create(1000, 1000);
+    service.saveFragment(name, 100, 50, generateImage(50, 20, Color.GREEN));
+    cache.flush(name);
+
+    File directory = new File(service.getPathForSaving() + "/" + name + ".tiles");
+    String[] files = directory.list();
+    Arrays.sort(files);
+    assertArrayEquals(new String[]{"0_1.tile", "0_2.tile", "1_1.tile", "1_2.tile", "meta"}, files);
+  }
+
+  @Test
+  void saveAndGetFragment() throws IOException {
+    String name = service.create(301, 200);
+    service.saveFragment(name, 250, 150, generateImage(100, 100, Color.GREEN));
+
+    BufferedImage fragment = service.getFragment(name, 200, 100, 150, 150);
+    for (int i = 0; i < fragment.getWidth(); ++i) {
+      for (int j = 0; j < fragment.getHeight(); ++j) {
+        boolean inside = i >= 50 && i < 101 && j >= 50 && j < 100;
+        Color color = inside ? Color.GREEN : Color.BLACK;
+        assertEquals(color.getRGB(), fragment.getRGB(i, j));
+      }
+    }
+  }
+
+  @Test
+  void saveAndGetImage() throws IOException {
+    BufferedImage src = generateImage(150, 130, Color.BLUE);
+    src.setRGB(149, 129, Color.RED.getRGB());
+
+    String name = "tiled_image";
+    service.save(src, name);
+    BufferedImage res = service.getImage(name);
+
+    assertEquals(src.getWidth(), res.getWidth());
+    assertEquals(src.getHeight(), res.getHeight());
+    for (int i = 0; i < src.getWidth(); ++i) {
+      for (int j = 0; j < src.getHeight(); ++j) {
+        assertEquals(src.getRGB(i, j), res.getRGB(i, j));
+      }
+    }
+  }
+
+  @Test
+  void removeImage() throws IOException {
+    String name = service.create(200, 200);
+    service.saveFragment(name, 0, 0, generateImage(100, 100, Color.GREEN));
+
+    service.removeImage(name);
+
+    assertFalse(new File(service.getPathForSaving() + "/" + name + ".tiles").exists());
+    assertThrows(NoSuchIdException.class, () -> service.getSize(name));
+  }
+}
@@ -0,0 +1,163 @@
+package com.danil.chartographer.service;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+
+import javax.imageio.ImageIO;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+import static com.danil.chartographer.Utilities.generateImage;
+import static com.danil.chartographer.Utilities.removeChartas;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+@SpringBootTest(args = "target/test-storage/images",
+                properties = {"chartographer.wal.enabled=true",
+                              "chartographer.wal.checkpoint-bytes=100000"})
+class WriteAheadLogTest {
+
+  @Autowired
+  private ImageService service;
+  @Autowired
+  private WriteAheadLog wal;
+
+  @AfterEach
+  void removeStoredChartas() throws IOException {
+    removeChartas(service);
+  }
+
+  @Test
+  void committedWritesAreReplayed() throws IOException {
+    String id = service.create(100, 50);
+    byte[] red = row(100, Color.RED);
+    byte[] green = row(100, Color.GREEN);
+
+    // writes that were logged, but never reached the image before a crash
+    try (PixelStore store = wal.wrap(id, new LostStore(100, 50))) {
+      for (int y = 10; y < 20; ++y) {
+        store.writeRow(0, y, red, 0, 100);
+      }
+      store.force();
+    }
+    try (PixelStore store = wal.wrap(id, new LostStore(100, 50))) {
+      for (int y = 15; y < 25; ++y) {
+        store.writeRow(0, y, green, 0, 100);
+      }
+    }
+
+    service.recover();
+
+    BufferedImage image = service.getFragment(id, 0, 0, 100, 50);
+    assertEquals(Color.BLACK.getRGB(), image.getRGB(50, 9));
+    assertEquals(Color.RED.getRGB(), image.getRGB(0, 10));
+    assertEquals(Color.RED.getRGB(), image.getRGB(99, 19));
+    assertEquals(Color.BLACK.getRGB(), image.getRGB(50, 20));
+    assertEquals(0, new File(service.getPathForSaving() + "/" + id + ".wal").length());
+  }
+
+  @Test
+  void rowsReachImageOnlyOnceCommitted() throws IOException {
+    String id = service.create(100, 50);
+    byte[] red = row(100, Color.RED);
+
+    // a crash between writing rows and committing them
+    try (PixelStore store = wal.wrap(id, ((AbstractImageService) service).open(id))) {
+      for (int y = 10; y < 20; ++y) {
+        store.writeRow(0, y, red, 0, 100);
+      }
+    }
+    service.recover();
+
+    BufferedImage image = service.getFragment(id, 0, 0, 100, 50);
+    for (int y = 0; y < 50; ++y) {
+      assertEquals(Color.BLACK.getRGB(), image.getRGB(50, y));
+    }
+
+    // rows of a write spilled to the log are written to the image from there
+    int rows = (1 << 20) / red.length + 10;
+    try (PixelStore store = wal.wrap(id, ((AbstractImageService) service).open(id))) {
+      for (int k = 0; k < rows; ++k) {
+        store.writeRow(0, k % 50, red, 0, 100);
+      }
+      store.force();
+    }
+    image = ImageIO.read(new File(service.getPathForSaving(), id + ".bmp"));
+    assertEquals(Color.RED.getRGB(), image.getRGB(0, 0));
+    assertEquals(Color.RED.getRGB(), image.getRGB(99, 49));
+  }
+
+  @Test
+  void commitsAreGroupedAndLogIsCheckpointed() throws IOException {
+    String id = service.create(200, 200);
+    long commits = wal.getCommits();
+    long syncs = wal.getSyncs();
+
+    for (int i = 0; i < 10; ++i) {
+      service.saveFragment(id, i * 10, i * 10, generateImage(100, 100, Color.BLUE));
+    }
+
+    assertEquals(commits + 10, wal.getCommits());
+    assertTrue(wal.getSyncs() - syncs <= 10);
+    // every fragment takes 30000 bytes of the log, so the log has been emptied at least once
+    assertTrue(new File(service.getPathForSaving() + "/" + id + ".wal").length() < 100000);
+    assertEquals(Color.BLUE.getRGB(), service.getFragment(id, 189, 189, 1, 1).getRGB(0, 0));
+  }
+
+  private static byte[] row(int width, Color color) {
+    byte[] row = new byte[width * BmpHeader.BYTES_PER_PIXEL];
+    for (int i = 0; i < row.length; i += BmpHeader.BYTES_PER_PIXEL) {
+      row[i] = (byte) color.getBlue();
+      row[i + 1] = (byte) color.getGreen();
+      row[i + 2] = (byte) color.getRed();
+    }
+    return row;
+  }
+
+  /**
+   * Store losing all writes, the way they are lost when the process crashes before writing them
+   * back
+   */
+  private static class LostStore implements PixelStore {
+
+    private final int width;
+    private final int height;
+
+    private LostStore(int width, int height) {
+      this.width = width;
+      this.height = height;
+    }
+
+    @Override
+    public int getWidth() {
+      return width;
+    }
+
+    @Override
+    public int getHeight() {
+      return height;
+    }
+
+    @Override
+    public void readRow(int x, int y, byte[] destination, int offset, int width) {
+      Arrays.fill(destination, offset, offset + width * BmpHeader.BYTES_PER_PIXEL, (byte) 0);
+    }
+
+    @Override
+    public void writeRow(int x, int y, byte[] source, int offset, int width) {
+    }
+
+    @Override
+    public void force() {
+    }
+
+    @Override
+    public void close() {
+    }
+  }
+}